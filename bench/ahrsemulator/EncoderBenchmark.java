@@ -0,0 +1,83 @@
+package ahrsemulator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Packet encoding - moving the attitude to the next time step, patching the
+ * values (and timestamp or timer) into the pre-rendered MIP (3DM-GX4-25) and
+ * 3DM-GX2 data packets, and finishing the checksum.  These are the encoders
+ * the emulator sends its data packets with.  Run with -prof gc to confirm
+ * nothing is allocated per packet.
+ *
+ * @author Mike Fouche
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncoderBenchmark
+{
+    // MIP data packet with the Euler angles only.
+    private static final int[] EULER_FORMAT = { 0x0C };
+    // MIP data packet with a typical 3DM-GX4-25 stream - acceleration,
+    // angular rate, magnetic field, Euler angles, and the GPS timestamp.
+    private static final int[] STREAM_FORMAT = { 0x04, 0x05, 0x06, 0x0C, MipDataEncoder.GPS_TIMESTAMP };
+
+    // Generates the attitude.
+    private MotionSource motion;
+    // The attitude the packets report.
+    private AttitudeState attitude;
+    // MIP data packet encoders.
+    private MipDataEncoder mipEuler;
+    private MipDataEncoder mipStream;
+    // 3DM-GX2 single byte protocol reply encoders.
+    private SingleByteProtocol singleByte;
+    // Time step - changed every call so nothing is constant folded.
+    private long step;
+
+    @Setup
+    public void setup()
+    {
+        motion = SinusoidMotion.defaultProfile(2);
+        attitude = new AttitudeState();
+        mipEuler = new MipDataEncoder(EULER_FORMAT, EULER_FORMAT.length);
+        mipStream = new MipDataEncoder(STREAM_FORMAT, STREAM_FORMAT.length);
+        singleByte = new SingleByteProtocol();
+    }
+
+    //--------------------------------------------------------------------------
+    @Benchmark
+    public byte[] gx2Euler()
+    {
+        attitude.update(motion, ++step);
+        return singleByte.encode(SingleByteProtocol.EULER_ANGLES, attitude, (int)step);
+    }
+
+    @Benchmark
+    public byte[] gx4Euler()
+    {
+        attitude.update(motion, ++step);
+        return mipEuler.encode(attitude, step * ( SimulationClock.STEP_NANOS / 1.0e9 ));
+    }
+
+    @Benchmark
+    public byte[] gx4Stream()
+    {
+        attitude.update(motion, ++step);
+        return mipStream.encode(attitude, step * ( SimulationClock.STEP_NANOS / 1.0e9 ));
+    }
+
+} // end of class EncoderBenchmark
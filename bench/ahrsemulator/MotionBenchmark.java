@@ -0,0 +1,88 @@
+package ahrsemulator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Motion generation - the cost of producing roll, pitch, and heading for one
+ * time step.
+ * <p>
+ * mathSin is the original three Math.sin calls, kept as the reference the
+ * table-driven generator is measured against.
+ *
+ * @author Mike Fouche
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionBenchmark
+{
+    // Number of time steps generated by the block benchmark.
+    private static final int BLOCK = 1024;
+
+    // Emulator whose compEulerAngles is measured (never started).
+    private AHRSOutput emulator;
+    // The default motion profile.
+    private SinusoidMotion motion;
+    // Receives the generated angles.
+    private float[] euler;
+    // Integer time step.
+    private int i;
+
+    @Setup
+    public void setup()
+    {
+        emulator = new AHRSOutput(new PipeTransport(), 2, new ConsoleLog());
+        motion = SinusoidMotion.defaultProfile(2);
+        euler = new float[3 * BLOCK];
+    }
+
+    //--------------------------------------------------------------------------
+    @Benchmark
+    public void compEulerAngles()
+    {
+        emulator.compEulerAngles(i++);
+    }
+
+    @Benchmark
+    public void sample(Blackhole bh)
+    {
+        motion.sample(i++, euler, 0);
+        bh.consume(euler[0] + euler[1] + euler[2]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public void sampleBlock(Blackhole bh)
+    {
+        motion.sampleBlock(i, BLOCK, euler, 0);
+        i += BLOCK;
+        bh.consume(euler[3 * BLOCK - 1]);
+    }
+
+    @Benchmark
+    public void mathSin(Blackhole bh)
+    {
+        float roll = 50.0f * (float)Math.sin(((double)i)/50.0) * (float)Math.PI / 180.0f;
+        float pitch = 50.0f * (float)Math.sin(((double)i)/40.0) * (float)Math.PI / 180.0f;
+        float heading = 50.0f * (float)Math.sin(((double)i)/30.0) * (float)Math.PI / 180.0f;
+        i++;
+        bh.consume(roll + pitch + heading);
+    }
+
+} // end of class MotionBenchmark
@@ -0,0 +1,150 @@
+package ahrsemulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Checks that the sensor noise is repeatable - two emulators with the same
+ * noise seed, polled with the same requests, must send byte for byte the same
+ * data packets, and an emulator with another seed must not.
+ * <p>
+ * The emulators run 3DM-GX2s on as fast as possible clocks over in-memory
+ * links, so the time steps depend only on the requests.  The polls alternate
+ * between 0xCC (acceleration, angular rate, magnetic field, orientation
+ * matrix) and 0xCF (Euler angles, angular rate), so every sensor's errors
+ * are in the packets.  Each run is repeated with the polls one time step
+ * apart and with time steps skipped between them, which moves the biases
+ * over the gap in one go (SensorError.advance).
+ * <p>
+ * Not a JMH benchmark - run it on its own (no JMH needed):
+ * <pre>
+ *   ant noise-check
+ * </pre>
+ * It exits with status 1 if any check fails.
+ *
+ * @author Mike Fouche
+ */
+public class NoiseRepeatCheck
+{
+    // The data commands polled for, in turn.
+    private static final int[] POLLS = { 0xCC, 0xCF };
+    // Number of polls per run.
+    private static final int POLL_COUNT = 4000;
+    // Time steps between polls - 1 is every step, the others skip steps.
+    private static final int[] STEPS_APART = { 1, 7, 250 };
+    // Noise seeds - the first two emulators share SEED, the third gets
+    // OTHER_SEED.
+    private static final long SEED = 12345L;
+    private static final long OTHER_SEED = 12346L;
+
+    /**
+     * @param args Not used.
+     * @throws Exception If an emulator fails.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int failures = 0;
+        for (int stepsApart : STEPS_APART)
+        {
+            byte[] first = run(SEED, stepsApart);
+            byte[] second = run(SEED, stepsApart);
+            byte[] other = run(OTHER_SEED, stepsApart);
+
+            String name = ( stepsApart == 1 ) ? "every time step"
+                                              : "every "+stepsApart+" time steps";
+            if( !Arrays.equals(first, second) )
+            {
+                System.out.println("FAIL  "+name+": same seed, packets differ at byte "+mismatch(first, second));
+                failures++;
+            }
+            else if( Arrays.equals(first, other) )
+            {
+                System.out.println("FAIL  "+name+": another seed sent the same packets");
+                failures++;
+            }
+            else
+            {
+                System.out.println("ok    "+name+": "+first.length+" bytes repeated exactly");
+            }
+        }
+
+        System.exit(( failures == 0 ) ? 0 : 1);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Polls a noisy emulator and collects what it sends.
+     *
+     * @param seed Noise seed.
+     * @param stepsApart Time steps between polls.
+     * @return Every byte the emulator sent.
+     */
+    private static byte[] run(long seed, int stepsApart) throws IOException
+    {
+        PipeTransport link = new PipeTransport();
+        AHRSOutput emulator = new AHRSOutput(link, 1, new ConsoleLog());
+        emulator.setClock(new SimulationClock(0.0, stepsApart * SimulationClock.STEP_NANOS));
+        emulator.setNoiseModel(NoiseModel.typical(seed));
+        emulator.startEmulator().join();
+
+        SingleByteProtocol protocol = new SingleByteProtocol();
+        OutputStream host = link.getHostOutputStream();
+        InputStream device = link.getHostInputStream();
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        byte[] reply = new byte[256];
+        try
+        {
+            for(int k = 0; k < POLL_COUNT; k++)
+            {
+                int command = POLLS[k % POLLS.length];
+                host.write(command);
+                host.flush();
+
+                int len = protocol.length(command);
+                readFully(device, reply, len);
+                sent.write(reply, 0, len);
+            }
+        }
+        finally
+        {
+            emulator.stopEmulator().join();
+            link.close();
+        }
+
+        return sent.toByteArray();
+    }
+
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException
+    {
+        int got = 0;
+        while( got < len )
+        {
+            int n = in.read(b, got, len - got);
+            if( n < 0 )
+            {
+                throw new IOException("Emulator closed the link");
+            }
+            got += n;
+        }
+    }
+
+    /**
+     * Finds the first byte two streams differ in.
+     */
+    private static int mismatch(byte[] a, byte[] b)
+    {
+        int n = Math.min(a.length, b.length);
+        for(int k = 0; k < n; k++)
+        {
+            if( a[k] != b[k] )
+            {
+                return k;
+            }
+        }
+        return n;
+    }
+
+} // end of class NoiseRepeatCheck
@@ -0,0 +1,81 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Command parsing - the MIP frame parser working through a stream of 3DM-GX4-25
+ * poll commands.
+ * <p>
+ * The stream is handed to the parser in chunks of chunkSize bytes: a large
+ * chunk keeps every command on the in-place fast path, a small one splits
+ * commands across reads and exercises the frame buffer.
+ *
+ * @author Mike Fouche
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark
+{
+    // Number of commands in the stream.
+    private static final int COMMANDS = 256;
+    // MIP poll IMU data command (Euler angles).
+    private static final byte[] POLL = {0x75, 0x65, 0x0C, 0x04, 0x04, 0x01, 0x00, 0x00,
+                                        (byte)0xEF, (byte)0xDA};
+
+    // Bytes handed to the parser per call.
+    @Param({"1024", "7"})
+    public int chunkSize;
+
+    // The command stream.
+    private byte[] stream;
+    // The parser under test.
+    private MipParser parser;
+    // Receives the parsed commands.
+    private MipParser.Handler handler;
+    // Sum of the command descriptors seen - returned so the work isn't dead.
+    private int descriptors;
+
+    @Setup
+    public void setup()
+    {
+        stream = new byte[COMMANDS * POLL.length];
+        for(int k = 0; k < COMMANDS; k++)
+        {
+            System.arraycopy(POLL, 0, stream, k * POLL.length, POLL.length);
+        }
+        parser = new MipParser();
+        handler = (b, off, len) -> descriptors += b[off + 2];
+    }
+
+    //--------------------------------------------------------------------------
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    public int parsePoll() throws IOException
+    {
+        for(int off = 0; off < stream.length; off += chunkSize)
+        {
+            parser.parse(stream, off, Math.min(chunkSize, stream.length - off), handler);
+        }
+
+        return descriptors;
+    }
+
+} // end of class ParserBenchmark
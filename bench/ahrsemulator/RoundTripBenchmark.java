@@ -0,0 +1,103 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end - the host sends an Euler angle request over an in-memory
+ * transport and waits for the complete data packet from a running emulator
+ * thread.
+ * <p>
+ * Runs in throughput and sample time mode, so the report has both the request
+ * rate and the latency percentiles (p50 ... p99.99).
+ *
+ * @author Mike Fouche
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark
+{
+    // 3DM-GX2 Euler angle request.
+    private static final byte[] GX2_REQUEST = {(byte)0xCE};
+    // MIP poll IMU data command (Euler angles).
+    private static final byte[] MIP_REQUEST = {0x75, 0x65, 0x0C, 0x04, 0x04, 0x01, 0x00, 0x00,
+                                               (byte)0xEF, (byte)0xDA};
+
+    // AHRS model - 1 = 3DM-GX2, 2 = 3DM-GX4-25.
+    @Param({"1", "2"})
+    public int ahrsNum;
+
+    // The in-memory link.
+    private PipeTransport link;
+    // The emulator thread.
+    private AHRSOutput emulator;
+    // Host side of the link.
+    private OutputStream host;
+    private InputStream device;
+    // The request for the selected model.
+    private byte[] request;
+    // Receives the data packet.
+    private byte[] reply;
+
+    @Setup
+    public void setup()
+    {
+        link = new PipeTransport();
+        emulator = new AHRSOutput(link, ahrsNum, new ConsoleLog());
+        emulator.startEmulator().join();
+
+        host = link.getHostOutputStream();
+        device = link.getHostInputStream();
+        request = ( ahrsNum == 1 ) ? GX2_REQUEST : MIP_REQUEST;
+        // The MIP poll is answered with the ACK (10 bytes) and then the data
+        // packet.
+        reply = new byte[( ahrsNum == 1 ) ? 19 : 10 + 20];
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        emulator.stopEmulator().join();
+        link.close();
+    }
+
+    //--------------------------------------------------------------------------
+    @Benchmark
+    public byte[] eulerRequest() throws IOException
+    {
+        host.write(request, 0, request.length);
+
+        int got = 0;
+        while( got < reply.length )
+        {
+            int n = device.read(reply, got, reply.length - got);
+            if( n < 0 )
+            {
+                throw new IOException("Emulator closed the link");
+            }
+            got += n;
+        }
+
+        return reply;
+    }
+
+} // end of class RoundTripBenchmark
@@ -11,16 +11,26 @@ package ahrsemulator;
  * At the current time, it will only emulate the Euler angle data packet which
  * consists of stabilized roll, pitch, and heading.
  * 
+ * Run with --headless (followed by the HeadlessEmulator options) to start the
+ * emulators without the GUI.
+ * 
  * @author Mike Fouche
  */
 public class AHRSEmulator 
 {
     /**
      *
-     * @param args None.
+     * @param args None for the GUI, or --headless followed by the 
+     * HeadlessEmulator options.
      */
     public static void main(String[] args) 
     {
+        if( args.length > 0 && args[0].equals("--headless") )
+        {
+            HeadlessEmulator.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
         BuildFrame bf = new BuildFrame();
     }
     
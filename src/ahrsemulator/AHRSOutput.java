@@ -6,27 +6,93 @@ import gnu.io.SerialPort;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Processes data received from the serial port - if the value corresponds to a
- * Euler angle data request, 
+ * Euler angle data request,
  * <p>
- * it creates simulated roll / pitch / heading data, assembles it into a data 
+ * it creates simulated roll / pitch / heading data, assembles it into a data
  * packet (the protocol depends on which AHRS model is selected), and sends it
  * to the serial port.
- * 
+ * <p>
+ * The emulator can either run as its own thread (startEmulator /
+ * stopEmulator), which blocks on the transport, or be serviced by an
+ * EmulatorFleet worker (openLink / service), which only reads what has
+ * already arrived.  The emulated model can be switched on the open link
+ * (switchModel) without stopping the emulator.
+ *
  * @author Mike Fouche
  */
 public class AHRSOutput extends Thread
 {
-    // Serial port inputstream.
+    // 3DM-GX2 timer rate (ticks per second).
+    private static final double GX2_TIMER_HZ = 19660800.0;
+    // 3DM-GX3-25 timer rate (ticks per second).
+    private static final double GX3_TIMER_HZ = 62500.0;
+    // Packet rate when the host turns continuous mode on (0xC4) and no rate
+    // has been set (packets per second).
+    private static final double DEFAULT_CONTINUOUS_HZ = 100.0;
+    
+    // Communications link to the host (serial port, TCP, UDP, pipe).
+    private final Transport transport;
+    // Transport inputstream.
     private InputStream in;
-    // Serial port outputstream.
+    // Transport outputstream.
     private OutputStream out;
-    // Object to hold and arrange the data packet.
-    private ByteBuffer byteBuffer;
+    // Number of packets the output queue holds - 0 to write straight to the
+    // transport.
+    private int outputQueueDepth;
+    // What to do when the output queue is full.
+    private OutputStage.Overflow overflow;
+    // Writer thread and output queue - null when writing straight to the
+    // transport.
+    private OutputStage outputStage;
+    // Longest a packet may wait for others to join its write (microseconds)
+    // - 0 to write every packet on its own.
+    private long coalesceMicros;
+    // Collects the packets of a burst into one write - null when writing
+    // every packet on its own, or through the output queue.
+    private CoalescingOutputStream coalescer;
+    // Line rate the output is paced to (bits per second) - 0 for no pacing.
+    private int paceBaudRate;
+    // Bits per character of the paced line.
+    private int paceFrameBits;
+    // Time from a request to the first byte of the reply on the paced line
+    // (microseconds).
+    private long replyDelayMicros;
+    // Holds the output to the line rate - null for no pacing.
+    private BaudPacer pacer;
+    // Last MIP baud rate setting seen - the pacer follows changes to it.
+    private int mipBaudRate;
+    // MIP continuous rate of the IMU message format the emulator last saw
+    // (packets per second).
+    private double mipStreamRate;
+    // Number of time steps of polled packets to render ahead - 0 to render
+    // each one on demand.
+    private int prerenderDepth;
+    // Polled packets rendered ahead - null unless pre-rendering.
+    private PrerenderRing prerender;
+    // Pre-rendered packet being sent.
+    private final byte[] prerenderBuffer;
+    // True if the packets carry sensor noise.
+    private boolean noisy;
+    // Reusable encoder which holds the pre-rendered MIP data packet for the
+    // IMU message format (continuous mode) - null for the single byte
+    // protocol models.
+    private MipDataEncoder mipStreamEncoder;
+    // Reusable encoder for the fields asked for by the last IMU data poll.
+    private MipDataEncoder mipPollEncoder;
+    // Receives the descriptors of an IMU message format.
+    private final int[] mipFormat;
+    // Command table and reply encoders of the single byte protocol (3DM-GX2,
+    // 3DM-GX3-25-OEM) - null for the MIP models.
+    private SingleByteProtocol singleByte;
+    // Receives each complete single byte protocol command.
+    private final SingleByteProtocol.Handler singleByteHandler;
+    // Single byte protocol errors already counted in the metrics.
+    private long singleByteErrors;
     // Generated stabilized roll value.
     private float roll;
     // Generated stabilized pitch value.
@@ -35,355 +101,1276 @@ public class AHRSOutput extends Thread
     private float heading;
     // AHRS model number.
     private int ahrsNum;
-    // This object allows thread-safe communications (synchronized methods) 
-    // between this thread and other objects.
-    private ThreadQueue threadQueue;
+    // Model to switch to before the next command is processed - 0 if none.
+    private final AtomicInteger pendingModel;
+    // Start / stop state machine.
+    private final EmulatorLifecycle lifecycle;
     // This object is used to exchanged data between different objects - it
     // is loaded into the constructors of any objects that are part of the data
     // exchange.
-    private DataObject dataObject;
-    
+    private EmulatorLog dataObject;
+    // Byte array which is loaded with data coming into the serial port.
+    private final byte[] buffer;
+    // Integer time step.
+    private int i;
+    // Time step the motion starts at.
+    private int firstStep;
+    // Collects the MIP command packets (3DM-GX4-25).
+    private final MipParser mipParser;
+    // Receives each complete MIP command from the parser.
+    private final MipParser.Handler mipHandler;
+    // Executes the MIP commands and keeps the device settings they change -
+    // null for the single byte protocol models.
+    private MipCommandSet mipCommands;
+    // Sends the MIP command replies and polled data packets.
+    private final MipResponder mipResponder;
+    // Simulated time - drives the motion, the timer, and the timestamps.
+    private SimulationClock clock;
+    // Generates roll, pitch, and heading for each time step.
+    private MotionSource motion;
+    // True if the motion source was set by the user (it is kept when the
+    // model is switched).
+    private boolean customMotion;
+    // Attitude at the current time step, and the rates, accelerations, etc.
+    // derived from it.
+    private final AttitudeState attitude;
+    // Continuous mode packet scheduler - null if continuous mode has never
+    // been used.
+    private RateScheduler streamScheduler;
+    // Continuous mode packet rate (packets per simulated second) and period
+    // (simulated nanoseconds).
+    private double streamRateHz;
+    private long streamPeriodNanos;
+    // True while in continuous mode.
+    private boolean streaming;
+    // Data command whose reply is sent in continuous mode (single byte
+    // protocol).
+    private int streamCommand;
+    // Records the traffic on the link - null if it is not captured.
+    private CaptureWriter capture;
+    // Capture being played back instead of generated packets - null if none.
+    private CaptureReplay replay;
+    // Counters and latency histogram (JMX / Prometheus) of the current model.
+    private EmulatorMetrics metrics;
+    // Metrics of each model this emulator has run as, by model number - kept
+    // (and registered) across model switches.
+    private final EmulatorMetrics[] modelMetrics;
+    // Time (System.nanoTime) the bytes being processed arrived - 0 when the
+    // emulator is not answering a request (continuous mode).
+    private long requestNanos;
+    // MIP checksum failures already counted in the metrics.
+    private long checksumErrors;
+
+    /**
+     * Constructor
+     *
+     * @param sPort The serial port object.
+     * @param ahrsNum This number represents the AHRS model selected.
+     * @param dObj The data object which is used to exchange data between
+     * different objects.
+     */
+    public AHRSOutput(SerialPort sPort, int ahrsNum, EmulatorLog dObj)
+    {
+        this(new SerialTransport(sPort), ahrsNum, dObj);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param link The transport (serial port, TCP, UDP, pipe) which carries
+     * the data requests and data packets.
+     * @param ahrsNum This number represents the AHRS model selected.
+     * @param dObj The data object which is used to exchange data between
+     * different objects.
+     */
+    public AHRSOutput(Transport link, int ahrsNum, EmulatorLog dObj)
+    {
+        this.transport = link;
+        this.dataObject = dObj;
+
+        lifecycle = new EmulatorLifecycle();
+        pendingModel = new AtomicInteger();
+        buffer = new byte[1024];
+        prerenderBuffer = new byte[OutputStage.SLOT_SIZE];
+        mipParser = new MipParser();
+        mipHandler = this::mipCommand;
+        mipResponder = new MipResponder();
+        mipFormat = new int[MipCommandSet.MAX_FORMAT];
+        singleByteHandler = this::singleByteCommand;
+        clock = new SimulationClock(1.0);
+        attitude = new AttitudeState();
+
+        selectModel(ahrsNum);
+
+        modelMetrics = new EmulatorMetrics[5];
+        metrics = new EmulatorMetrics(getModelName(), link.getName());
+        if( ahrsNum > 0 && ahrsNum < modelMetrics.length )
+        {
+            modelMetrics[ahrsNum] = metrics;
+        }
+    }
+
+    /**
+     * Loads everything that depends on the AHRS model.
+     *
+     * @param model The AHRS model number.
+     */
+    private void selectModel(int model)
+    {
+        ahrsNum = model;
+
+        // The 3DM-GX2 (and GX3-25-OEM) use the single byte command protocol,
+        // the others use MIP packets.
+        if( ahrsNum == 1 || ahrsNum == 4 )
+        {
+            singleByte = new SingleByteProtocol();
+            mipCommands = null;
+        }
+        else
+        {
+            singleByte = null;
+            mipCommands = new MipCommandSet();
+            mipCommands.setPowerUpStream(streaming);
+            mipBaudRate = mipCommands.getBaudRate();
+            mipStreamRate = mipCommands.getStreamRate();
+        }
+        singleByteErrors = 0;
+        streamCommand = SingleByteProtocol.EULER_ANGLES;
+        mipStreamEncoder = null;
+        mipPollEncoder = null;
+        mipParser.reset();
+
+        // The 3DM-GX4-25 motion starts 20 time steps in.
+        firstStep = ( ahrsNum == 2 ) ? 20 : 0;
+        i = firstStep;
+
+        if( !customMotion )
+        {
+            motion = SinusoidMotion.defaultProfile(ahrsNum);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Starts the emulator thread.  Does not wait.
+     *
+     * @return Completes once the link is open and the emulator is serving
+     * (exceptionally if the link cannot be opened).
+     */
+    public CompletableFuture<Void> startEmulator()
+    {
+        start();
+        return lifecycle.getStarted();
+    }
+
+    /**
+     * Asks the emulator to stop.  Does not wait - a thread blocked in a read
+     * is interrupted.
+     *
+     * @return Completes once the emulator has stopped.
+     */
+    public CompletableFuture<Void> stopEmulator()
+    {
+        return lifecycle.stop();
+    }
+
+    /**
+     * Switches the emulated AHRS model (protocol, packets, motion) on the
+     * running link - no restart, the link stays open.  The switch takes
+     * effect before the next command is processed.  Does not wait, so it is
+     * safe to call from the Swing event thread.
+     *
+     * @param model The AHRS model number.
+     */
+    public synchronized void switchModel(int model)
+    {
+        if( model < 1 || model >= modelMetrics.length )
+        {
+            throw new IllegalArgumentException("Unknown AHRS model "+model);
+        }
+
+        // Set up (and publish) the new model's metrics here rather than on
+        // the emulator thread - registering an MBean is slow.
+        if( modelMetrics[model] == null )
+        {
+            modelMetrics[model] = new EmulatorMetrics(modelName(model), transport.getName());
+            if( lifecycle.isActive() )
+            {
+                MetricsRegistry.getDefault().register(modelMetrics[model]);
+            }
+        }
+
+        pendingModel.set(model);
+    }
+
+    /**
+     * Retrieves the start / stop state machine.
+     *
+     * @return The lifecycle.
+     */
+    public EmulatorLifecycle getLifecycle()
+    {
+        return lifecycle;
+    }
+
+    /**
+     * Replaces the default motion profile.  Must be set before the emulator
+     * is started.
+     *
+     * @param source Generates roll, pitch, and heading for each time step.
+     */
+    public void setMotionSource(MotionSource source)
+    {
+        this.motion = source;
+        this.customMotion = true;
+    }
+
+    /**
+     * Adds sensor noise and bias drift to the data packets.  Must be set
+     * before the emulator is started.  Each emulator needs its own noise
+     * model.
+     *
+     * @param model The errors - null for the exact values.
+     */
+    public void setNoiseModel(NoiseModel model)
+    {
+        attitude.setNoiseModel(model);
+        noisy = model != null;
+    }
+
+    /**
+     * Selects continuous mode - the emulator sends the Euler angle data packet
+     * at a fixed rate without waiting to be polled (commands are still
+     * answered).  Must be set before the emulator is started.  The single
+     * byte protocol models can also be switched in and out of continuous
+     * mode by the host (0xC4 / 0xFA).
+     *
+     * @param rateHz Packet rate (packets per second), or 0 for poll mode.
+     */
+    public void setContinuous(double rateHz)
+    {
+        streamScheduler = ( rateHz > 0.0 ) ? newStreamScheduler(rateHz) : null;
+        streaming = streamScheduler != null;
+
+        if( mipCommands != null )
+        {
+            mipCommands.setPowerUpStream(streaming);
+        }
+    }
+
+    /**
+     * Decouples generating packets from writing them - the packets go
+     * through a queue of preallocated slots to a writer thread of their own,
+     * so a slow or stalled port does not hold up reading the host's
+     * requests.  Must be set before the emulator is started.  Not for
+     * emulators serviced by a SelectorServer, which does its own writing.
+     *
+     * @param depth Number of packets the queue holds, or 0 to write straight
+     * to the transport.
+     * @param policy What to do when the queue is full - wait, drop the oldest
+     * packet, or keep only the latest continuous mode data packet.
+     */
+    public void setOutputQueue(int depth, OutputStage.Overflow policy)
+    {
+        this.outputQueueDepth = depth;
+        this.overflow = policy;
+    }
+
+    /**
+     * Sends the packets of a burst (the replies to pipelined polls, or the
+     * packets the writer thread finds waiting) in one write instead of one
+     * write each.  Must be set before the emulator is started.
+     *
+     * @param maxDelayMicros Longest a packet may wait for others to join its
+     * write (microseconds).  0 writes every packet on its own - the writer
+     * thread of an output queue still sends whatever is ready in one write.
+     */
+    public void setCoalescing(long maxDelayMicros)
+    {
+        this.coalesceMicros = maxDelayMicros;
+    }
+
+    /**
+     * Paces the output to a serial line's baud rate, and delays each reply
+     * by the device's response latency - for socket and pipe transports,
+     * which would otherwise carry the packets far faster than the real
+     * sensor.  A MIP set baud rate command changes the pace.  Must be set
+     * before the emulator is started.  A paced write takes as long as the
+     * line would, so emulators sharing a thread should also have an output
+     * queue.
+     *
+     * @param baud Line rate (bits per second), or 0 for no pacing.
+     * @param frameBits Bits per character - BaudPacer.FRAME_8N1 for 8N1.
+     * @param replyMicros Time from a request to the first byte of its reply
+     * (microseconds).
+     */
+    public void setBaudPacing(int baud, int frameBits, long replyMicros)
+    {
+        this.paceBaudRate = baud;
+        this.paceFrameBits = frameBits;
+        this.replyDelayMicros = replyMicros;
+    }
+
+    /**
+     * Renders the polled data packets ahead of time on a thread of their own,
+     * so answering a poll is a copy instead of the computing, encoding, and
+     * checksumming - see PrerenderRing.  The packet timestamps - of every
+     * data packet, rendered ahead or not - are those of the start of the
+     * motion time step.  Must be set before the emulator is
+     * started.  Has no effect with a noise model (the noise belongs to the
+     * emulator thread), an as fast as possible clock, or in replay mode.
+     *
+     * @param depth Number of time steps to render ahead, or 0 to render each
+     * packet when it is polled for.
+     */
+    public void setPrerender(int depth)
+    {
+        this.prerenderDepth = depth;
+    }
+
+    /**
+     * Replaces the real time clock - e.g. with a scaled or as fast as
+     * possible one for long, repeatable runs.  Must be set before the
+     * emulator is started.  Each emulator needs its own clock.
+     *
+     * @param simClock The clock.
+     */
+    public void setClock(SimulationClock simClock)
+    {
+        this.clock = simClock;
+
+        // The continuous mode packets go out at the new clock's rate.
+        if( streamScheduler != null )
+        {
+            streamScheduler = newStreamScheduler(streamRateHz);
+        }
+    }
+
+    /**
+     * Retrieves the simulated time.
+     *
+     * @return The clock.
+     */
+    public SimulationClock getClock()
+    {
+        return clock;
+    }
+
+    /**
+     * Retrieves the continuous mode scheduler (and its rate / jitter
+     * statistics).
+     *
+     * @return The scheduler, or null in poll mode.
+     */
+    public RateScheduler getStreamScheduler()
+    {
+        return streamScheduler;
+    }
+
+    /**
+     * Records every command received and every packet sent in a capture file,
+     * as they cross the transport (after any output queue or baud rate
+     * pacing).  Must be set before the emulator is started.
+     *
+     * @param writer The capture file.
+     */
+    public void setCapture(CaptureWriter writer)
+    {
+        this.capture = writer;
+    }
+
+    /**
+     * Selects replay mode - instead of generating data packets the emulator
+     * plays back the packets of a capture, and ignores the host's commands.
+     * Must be set before the emulator is started.
+     *
+     * @param playback The capture and the replay speed.
+     */
+    public void setReplay(CaptureReplay playback)
+    {
+        this.replay = playback;
+    }
+
+    /**
+     * Retrieves the counters and latency histogram of the current model.
+     *
+     * @return The metrics.
+     */
+    public EmulatorMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Withdraws the metrics of every model this emulator has run as from
+     * JMX / Prometheus - their counts live on in the model totals.
+     */
+    public synchronized void unregisterMetrics()
+    {
+        for (EmulatorMetrics m : modelMetrics)
+        {
+            if( m != null )
+            {
+                MetricsRegistry.getDefault().unregister(m);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the replay of a capture, if the emulator is in replay mode.
+     *
+     * @return The replay, or null.
+     */
+    public CaptureReplay getReplay()
+    {
+        return replay;
+    }
+
+    @Override
+    public void run()
+    {
+        // Number of bytes read from the transport.
+        int len;
+
+        // Already started (or stopped before it started).
+        if( !lifecycle.begin(this) )
+        {
+            return;
+        }
+
+        // Why the emulator stopped - null if it was asked to.
+        Throwable failure = null;
+
+        try
+        {
+            // Open the link - e.g. a TCP server waits here for the host.
+            openLink();
+            lifecycle.running();
+
+            // In replay mode the packet clock drives the loop instead of the
+            // incoming data.
+            len = ( replay != null ) ? replayLoop() : 0;
+
+            // While there is data in the serial port.
+            while( len > -1 )
+            {
+                // In continuous mode the packet clock drives the loop until
+                // the host turns it off.
+                if( streaming )
+                {
+                    len = streamLoop();
+                    continue;
+                }
+
+                // Read the data in the serial port buffer.
+                len = in.read(buffer);
+
+                // If the emulator has been told to stop (AHRSSelect) then
+                // exit the thread - bytes that arrived during the read are
+                // not answered, they may belong to the next emulator's
+                // session.
+                if( !lifecycle.isActive() )
+                {
+                    len = -1;
+                }
+                else if( len > 0 )
+                {
+                    process(buffer, len);
+                    flushOutput();
+                }
+            }
+        }
+        catch(Exception e)
+        {
+            // Being stopped interrupts a blocking read - that is not an error.
+            if( lifecycle.isActive() )
+            {
+                failure = e;
+            }
+        }
+
+        // Notify the user that the thread is terminating.
+        if( failure == null )
+        {
+            dataObject.setSentData("Exiting "+getModelName()+" serial communications thread ...");
+        }
+        else
+        {
+            dataObject.setSentData("Exception in module "+getModelName()+": "+failure);
+        }
+
+        if( prerender != null )
+        {
+            dataObject.setSentData(getModelName()+" "+prerender.report());
+        }
+
+        // Nothing more will be queued.
+        closeOutputStage();
+
+        // The counts live on in the model totals.
+        unregisterMetrics();
+
+        // Clear the interrupt used to stop the thread and let anyone waiting
+        // know that the link is free.
+        Thread.interrupted();
+        lifecycle.finished(failure);
+
+    } // end of method run
+
+    /**
+     * Continuous mode loop - sends a data packet at every deadline and answers
+     * any commands that arrived in between.
+     *
+     * @return -1 once the thread has been told to stop, 0 if the host turned
+     * continuous mode off.
+     */
+    private int streamLoop() throws IOException, InterruptedException
+    {
+        streamScheduler.start(System.nanoTime());
+
+        while( streaming && lifecycle.isActive() )
+        {
+            // As fast as possible - the next packet is due as soon as the
+            // last one has gone.
+            if( !clock.isAsFastAsPossible() )
+            {
+                streamScheduler.awaitNext();
+            }
+            if( pendingModel.get() != 0 )
+            {
+                applyPendingModel();
+            }
+            sendStreamPacket();
+            flushOutput();
+            if( !clock.isAsFastAsPossible() )
+            {
+                streamScheduler.markSent(System.nanoTime());
+            }
+            service();
+        }
+
+        dataObject.setSentData(getModelName()+" continuous mode: "+streamReport());
+
+        return lifecycle.isActive() ? 0 : -1;
+    }
+
+    /**
+     * Replay loop - sends the packets of the capture at their (scaled) times
+     * and discards the commands that arrive in between.
+     *
+     * @return -1 once the capture has been played or the thread has been told
+     * to stop.
+     */
+    private int replayLoop() throws IOException, InterruptedException
+    {
+        replay.start(System.nanoTime());
+
+        while( !replay.isFinished() && lifecycle.isActive() )
+        {
+            long next = replay.send(System.nanoTime(), out, metrics);
+            service();
+            RateScheduler.awaitDeadline(next);
+        }
+
+        dataObject.setSentData(getModelName()+" "+replay.report());
+
+        return -1;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Opens the transport and sets up the input and output streams.  This is
+     * done by run() - it only needs to be called directly when the emulator is
+     * serviced by an EmulatorFleet instead of running as its own thread.
+     *
+     * @throws IOException If the transport cannot be opened.
+     */
+    public void openLink() throws IOException
+    {
+        // Open the link.
+        transport.open();
+        // Build the transport inputstream.
+        in = transport.getInputStream();
+        // Build the transport outputstream.
+        out = transport.getOutputStream();
+
+        // Record the traffic in both directions as it crosses the transport,
+        // so the capture has the times the bytes actually went out.
+        if( capture != null )
+        {
+            in = capture.tap(in);
+            out = capture.tap(out);
+        }
+
+        // Only as fast as the serial line would carry the bytes.
+        if( paceBaudRate > 0 )
+        {
+            pacer = new BaudPacer(out, paceBaudRate, paceFrameBits, replyDelayMicros);
+            out = pacer;
+        }
+
+        // The packets of a burst go out in one write.
+        if( coalesceMicros > 0 && outputQueueDepth == 0 )
+        {
+            coalescer = new CoalescingOutputStream(out, coalesceMicros);
+            out = coalescer;
+        }
+
+        // Power-up - simulated time starts once the host is connected.
+        clock.start(System.nanoTime());
+        startPrerender();
+
+        // Packets are handed to the writer thread rather than written here.
+        if( outputQueueDepth > 0 )
+        {
+            outputStage = new OutputStage(out, outputQueueDepth, overflow, transport.getName(),
+                                          metrics);
+            outputStage.setCoalesceDelay(coalesceMicros);
+            outputStage.start();
+            out = outputStage;
+        }
+
+        // Publish the metrics (JMX, Prometheus).
+        synchronized (this)
+        {
+            for (EmulatorMetrics m : modelMetrics)
+            {
+                if( m != null )
+                {
+                    MetricsRegistry.getDefault().register(m);
+                }
+            }
+        }
+    }
+
+    /**
+     * Non-blocking service call - processes whatever data requests have
+     * already arrived and returns without waiting for more.
+     *
+     * @return The number of bytes processed (0 if nothing was waiting).
+     * @throws IOException If the transport fails.
+     */
+    public int service() throws IOException
+    {
+        int total = 0;
+        int avail = in.available();
+
+        while( avail > 0 )
+        {
+            int len = in.read(buffer, 0, Math.min(avail, buffer.length));
+            if( len <= 0 )
+            {
+                break;
+            }
+
+            process(buffer, len);
+            total += len;
+            avail -= len;
+        }
+        flushOutput();
+
+        return total;
+    }
+
+    /**
+     * Ends a burst - sends the packets the coalescer is holding.
+     */
+    private void flushOutput() throws IOException
+    {
+        if( coalescer != null )
+        {
+            coalescer.flush();
+        }
+    }
+
+    /**
+     * Retrieves whether the emulator sends packets on its own clock
+     * (continuous or replay mode) rather than only when polled.
+     *
+     * @return True if serviceStream has to be called.
+     */
+    public boolean isStreaming()
+    {
+        return ( replay != null ) ? !replay.isFinished() : streaming;
+    }
+
+    /**
+     * Starts the continuous mode or replay clock - the fleet workers call
+     * this instead of run().
+     *
+     * @param now The current time (System.nanoTime).
+     * @throws IOException If the capture cannot be read.
+     */
+    public void startStream(long now) throws IOException
+    {
+        if( replay != null )
+        {
+            replay.start(now);
+        }
+        else if( streaming )
+        {
+            streamScheduler.start(now);
+        }
+    }
+
+    /**
+     * Non-blocking continuous mode call - sends the data packet (or the
+     * replayed packets) if it is due.
+     *
+     * @param now The current time (System.nanoTime).
+     * @return The time the next packet is due (System.nanoTime).
+     * @throws IOException If the transport fails.
+     */
+    public long serviceStream(long now) throws IOException
+    {
+        if( pendingModel.get() != 0 )
+        {
+            applyPendingModel();
+        }
+
+        if( replay != null )
+        {
+            long next = replay.send(now, out, metrics);
+            flushOutput();
+            if( replay.isFinished() )
+            {
+                dataObject.setSentData(getModelName()+" on "+transport.getName()+" "+replay.report());
+            }
+            return next;
+        }
+
+        if( clock.isAsFastAsPossible() )
+        {
+            sendStreamPacket();
+            flushOutput();
+            return now;
+        }
+
+        if( streamScheduler.isDue(now) )
+        {
+            sendStreamPacket();
+            flushOutput();
+            streamScheduler.markSent(System.nanoTime());
+        }
+
+        return streamScheduler.getNextDeadline();
+    }
+
+    /**
+     * Carries out a model switch asked for by switchModel - runs on the
+     * emulator's own thread, between commands.
+     */
+    private void applyPendingModel()
+    {
+        int model = pendingModel.getAndSet(0);
+
+        if( model == 0 || model == ahrsNum )
+        {
+            return;
+        }
+
+        selectModel(model);
+        metrics = modelMetrics[model];
+        if( outputStage != null )
+        {
+            outputStage.setMetrics(metrics);
+        }
+        startPrerender();
+
+        dataObject.setSentData("Switched "+transport.getName()+" to "+getModelName());
+    }
+
     /**
-     * Constructor
-     * 
-     * @param sPort The serial port object.
-     * @param tQ The thread object which allows thread-safe communication 
-     * between this thread and several other objects.
-     * @param ahrsNum This number represents the AHRS model selected.
-     * @param dObj The data object which is used to exchange data between 
-     * different objects.
+     * Hands the bytes of one read to the emulator for the selected AHRS model.
+     *
+     * @param buffer Bytes received from the transport.
+     * @param len Number of bytes received.
+     * @throws IOException If the data packet cannot be sent.
      */
-    public AHRSOutput(SerialPort sPort, ThreadQueue tQ, int ahrsNum, DataObject dObj)
+    private void process(byte[] buffer, int len) throws IOException
     {
-        this.ahrsNum = ahrsNum;
-        this.threadQueue = tQ;
-        this.dataObject = dObj;
-        
-        // Set up input and output stream objects.
-        try
+        if( pendingModel.get() != 0 )
+        {
+            applyPendingModel();
+        }
+
+        metrics.addBytesIn(len);
+
+        // A replaying emulator only plays the capture back.
+        if( replay != null )
         {
-            // Build the serial port inputstream.
-            in = sPort.getInputStream();
-            // Build the serial port outputstream.
-            out = sPort.getOutputStream();
-        } 
-        catch ( IOException e )
+            return;
+        }
+
+        // Response latency is measured from here.
+        requestNanos = System.nanoTime();
+        if( pacer != null )
         {
-            dataObject.setSentData("Exception: "+e+", in AHRSOutput");
+            pacer.holdReply(requestNanos);
         }
-    }
 
-    @Override
-    public void run()
-    {     
-        // Set the thread status to "active".
-        threadQueue.setThreadStatus(true);
-        
-        switch (ahrsNum) 
+        switch (ahrsNum)
         {
             case 1:
                 // 3DM-GX2
-                ahrs_Type_1();
+                ahrs_Type_1(buffer, len);
                 break;
             case 2:
                 // 3DM-GX4-25
-                ahrs_Type_2();
+                ahrs_Type_2(buffer, len);
                 break;
             case 3:
                 // 3DM-GX3-35
-                ahrs_Type_3();
+                ahrs_Type_3(buffer, len);
                 break;
             case 4:
                 // 3DM-GX3-25-OEM
-                ahrs_Type_4();
+                ahrs_Type_4(buffer, len);
                 break;
             default:
                 break;
         }
-        
-        // Notify the thread that it must terminate.
-        threadQueue.setThreadStatus(false);
 
-    } // end of method run
+        requestNanos = 0;
+    }
+
+    /**
+     * Retrieves the AHRS model name used in the user messages.
+     *
+     * @return The model name - e.g. "3DM-GX2".
+     */
+    public String getModelName()
+    {
+        return modelName(ahrsNum);
+    }
+
+    /**
+     * Retrieves the name of an AHRS model.
+     *
+     * @param model The AHRS model number.
+     * @return The model name - e.g. "3DM-GX2".
+     */
+    private static String modelName(int model)
+    {
+        switch (model)
+        {
+            case 1:
+                return "3DM-GX2";
+            case 2:
+                return "3DM-GX4-25";
+            case 3:
+                return "3DM-GX3-35";
+            case 4:
+                return "3DM-GX3-25-OEM";
+            default:
+                return "AHRS "+model;
+        }
+    }
+
+    /**
+     * Retrieves the transport this emulator is attached to.
+     *
+     * @return The transport.
+     */
+    public Transport getTransport()
+    {
+        return transport;
+    }
+
+    /**
+     * Closes the transport, and stops the writer and pre-render threads if
+     * there are any.
+     */
+    public void closeLink()
+    {
+        closeOutputStage();
+        transport.close();
+    }
+
+    private void closeOutputStage()
+    {
+        stopPrerender();
+        if( outputStage != null )
+        {
+            outputStage.close();
+            outputStage = null;
+        }
+    }
+
+    /**
+     * Starts rendering the polled packets of the current model ahead, if
+     * asked to and the packets can be.
+     */
+    private void startPrerender()
+    {
+        stopPrerender();
+
+        // The noise is drawn on the emulator thread, and an as fast as
+        // possible clock has no time to render ahead of.
+        if( prerenderDepth == 0 || noisy || clock.isAsFastAsPossible() || replay != null )
+        {
+            return;
+        }
+
+        prerender = new PrerenderRing(prerenderDepth, motion, clock, firstStep, timerHz(),
+                                      transport.getName());
+        prerender.start();
+    }
+
+    private void stopPrerender()
+    {
+        if( prerender != null )
+        {
+            prerender.close();
+            prerender = null;
+        }
+    }
 
     //--------------------------------------------------------------------------
     /**
      * 3DM-GX2 emulator.
      * <p>
-     * Receives the data packet request - if it's for Euler angles then it 
-     * generates stabilized roll, pitch, and heading values based on sinusoidal
-     * waves - each with different amplitude, phase, and frequency - and outputs
-     * the data to the serial port.  
+     * Answers every single byte protocol command in the bytes received - see
+     * SingleByteProtocol for the commands and replies.  The data packets carry
+     * the stabilized roll, pitch, and heading values, based on sinusoidal waves
+     * - each with different amplitude, phase, and frequency - and the rates,
+     * accelerations, etc. that go with them.
+     *
+     * @param buffer Bytes received from the transport.
+     * @param len Number of bytes received.
+     * @throws IOException If the data packet cannot be sent.
      */
-    public void ahrs_Type_1()
+    public void ahrs_Type_1(byte[] buffer, int len) throws IOException
     {
-        // Number of bytes currently in the serial port buffer.
-        int len;
-        // Integer time step.
-        int i = 0;
-
-        // Byte array which is loaded with data coming into the serial port.
-        byte[] buffer = new byte[30]; 
-        // Temporary - tack on the last 6 bytes.
-        byte[] buffPad = new byte[6];
-        // Fill with some data (that's meaningless) - will fix this later.
-        buffPad[0] = 0x01;
-        buffPad[1] = 0x02;
-        buffPad[2] = 0x03;
-        buffPad[3] = 0x04;
-        buffPad[4] = 0x05;
-        buffPad[5] = 0x06;
-
-        // Long which is used to mask the first byte received.
-        long buff2;
-        // Byte array, which contains the Euler angles, that is sent to the 
-        // serial port.
-        byte[] buffSend = new byte[19];
-
-        try
-        {    
-            // Check to see if data is in UART buffer
-            len = in.available();
-            
-            // While there is data in the serial port.
-            while( len > -1)
-            {
-                // Read the data in the serial port buffer.
-                len = in.read(buffer);
+        singleByteCommands(buffer, len);
+    }
 
-                if( len == 1)
-                {
-                    // buff2 is a Long, mask the first 8 bits
-                    buff2 = ( (int)buffer[0] ) & 0xFF;
-                    // If the request for Euler angles then proceed.
-                    if( buff2 == 206)
-                    {
-                        // Compute roll, pitch, and heading.
-                        compEulerAngles(i,20.0f,10.0f,50.0f);
-                        
-                        // Allocate byte buffer size.
-                        byteBuffer = ByteBuffer.allocate(19);
-                        // Set up byte order.
-                        byteBuffer.order(ByteOrder.BIG_ENDIAN);
-                        // Echo Euler command word back at front of data pack
-                        byte comWord = (byte)buff2;
-                        // Load command word.
-                        byteBuffer.put(comWord);
-                        // Load roll, pitch, and heading.
-                        byteBuffer.putFloat(roll);
-                        byteBuffer.putFloat(pitch);
-                        byteBuffer.putFloat(heading);
-                        // Load trailing stuff which doesn't matter for now.
-                        byteBuffer.put(buffPad);
-                        // Load data packet into byte array.
-                        buffSend = byteBuffer.array();
-                        // Send the data packet to the serial port.
-                        out.write(buffSend);
-                        
-                        // Increment the integer time counter.
-                        i++;
-                    }
-                }
-                
-                // If the serial status has been set to false by object AHRSSelect
-                // then exit the thread.
-                if( !threadQueue.getSerialStatus() )
-                {
-                    len = -1;
-                }    
-            }
+    /**
+     * Hands the bytes of one read to the single byte protocol engine.
+     *
+     * @param buffer Bytes received from the transport.
+     * @param len Number of bytes received.
+     * @throws IOException If a reply cannot be sent.
+     */
+    private void singleByteCommands(byte[] buffer, int len) throws IOException
+    {
+        // Every command in this read (and any command completed by it) is
+        // handed to singleByteCommand.
+        singleByte.parse(buffer, 0, len, singleByteHandler);
 
-            // Notify the user that the thread is terminating.
-            dataObject.setSentData("Exiting 3DM-GX2 serial communications thread ...");
+        // Bytes that are not a command are skipped (and counted).
+        if( singleByte.getErrors() != singleByteErrors )
+        {
+            metrics.addParseErrors(singleByte.getErrors() - singleByteErrors);
+            singleByteErrors = singleByte.getErrors();
         }
-        catch(Exception e)
+    }
+
+    /**
+     * Carries out one single byte protocol command.
+     *
+     * @param command The command byte.
+     * @param argument For the continuous mode command, the data command to
+     * send continuously.
+     * @throws IOException If the reply cannot be sent.
+     */
+    private void singleByteCommand(int command, int argument) throws IOException
+    {
+        metrics.addRequest();
+
+        switch (command)
         {
-            dataObject.setSentData("Exception in module 3DM-GX2: "+e);
-        }    
+            case SingleByteProtocol.CONTINUOUS:
+                byte[] reply = singleByte.encodeContinuous(argument,
+                                                           timerTicks(clock.nanos(System.nanoTime())));
+                out.write(reply, 0, reply.length);
+                metrics.addPacket(reply.length);
+
+                streamCommand = argument;
+                startStreaming(DEFAULT_CONTINUOUS_HZ);
+                break;
+            case SingleByteProtocol.STOP_CONTINUOUS:
+                streaming = false;
+                break;
+            default:
+                sendDataPacket(command);
+                break;
+        }
     }
 
     //--------------------------------------------------------------------------
     /**
      * 3DM-GX4-25 emulator.
      * <p>
-     * Receives the data packet request - if it's for Euler angles then it 
-     * generates stabilized roll, pitch, and heading values based on sinusoidal
-     * waves - each with different amplitude, phase, and frequency - and outputs
-     * the data to the serial port.  
+     * Executes the MIP commands in the bytes received (see MipCommandSet) -
+     * a poll for IMU data is answered with the ACK and then the data packet
+     * of stabilized roll, pitch, and heading values based on sinusoidal waves
+     * - each with different amplitude, phase, and frequency.
+     *
+     * @param buffer Bytes received from the transport.
+     * @param len Number of bytes received.
+     * @throws IOException If the data packet cannot be sent.
      */
-    public void ahrs_Type_2()
+    public void ahrs_Type_2(byte[] buffer, int len) throws IOException
     {
-        // Number of bytes currently in the serial port buffer.
-        int len;
-        // Integer time step.
-        // Integer time step.
-        int i = 20;
-        
-        // Byte array which is loaded with data coming into the serial port.
-        byte[] buffer = new byte[30]; 
-        // Byte array, which contains the Euler angles, that is sent to the 
-        // serial port.
-        byte[] buffSend = new byte[20];
-        // The processed data request bytes.
-        byte[] synchBuff = new byte[2];
-        // Long which is used to mask the incoming command bytes.
-        long buff2;
-        // Number of bytes loaded into the final "received byte array".
-        int buffCtr = 0;
-        // Lead data request byte.
-        int leadIn = 0;
-        // Lagging data request byte.
-        int lagIn  = 0;
-        
-        try
+        // The parser hands every complete, checksum-verified command in this
+        // read (and any command completed by it) to mipCommand.
+        mipParser.parse(buffer, 0, len, mipHandler);
+
+        // The parser drops (and counts) commands with a bad checksum.
+        if( mipParser.getChecksumErrors() != checksumErrors )
         {
-            // Check to see if data is in UART buffer.  Note that 
-            len = in.available();
-            
-            // While there is data in the serial port.
-            while( len > -1 )
+            metrics.addChecksumFailures(mipParser.getChecksumErrors() - checksumErrors);
+            checksumErrors = mipParser.getChecksumErrors();
+        }
+    }
+
+    /**
+     * Executes one MIP command packet - see MipCommandSet for the commands.
+     *
+     * @param command Byte array holding the command packet.
+     * @param off Offset of the leading synch byte.
+     * @param len Command packet length.
+     * @throws IOException If a reply cannot be sent.
+     */
+    private void mipCommand(byte[] command, int off, int len) throws IOException
+    {
+        metrics.addRequest();
+        mipCommands.execute(command, off, len, mipResponder);
+
+        // Idle, resume, enable / disable stream, and reset switch the
+        // continuous data stream - at the rate of the IMU message format,
+        // which also takes over from a power-up rate.
+        double rate = mipCommands.getStreamRate();
+        if( mipCommands.isStreaming() != streaming )
+        {
+            if( streaming )
             {
-                // Read the data in the serial port buffer.
-                len = in.read(buffer);
-                
-                for(int j = 0; j < len; j++)
-                {
-                    synchBuff[buffCtr] = buffer[0];
-                    // Increment the counter for message ID bytes.
-                    buffCtr++;
-                    // If two bytes have been loaded then decode the values.
-                    if( buffCtr == 2 )
-                    {
-                        // Decode the 1st byte.
-                        buff2 = ( (int)synchBuff[0] ) & 0xFF;
-                        leadIn = (int)buff2;
-                        // Decode the 2nd byte.
-                        buff2 = ( (int)synchBuff[1] ) & 0xFF;
-                        lagIn = (int)buff2;
-                        // Reset the counter.
-                        buffCtr = 0;
-                        
-                        // If the message byte values are correct then assemble
-                        // the Euler angle data packet.
-                        if( leadIn == 117 && lagIn == 101 )  // 75 & 65
-                        {
-                            // Compute roll, pitch, and heading.
-                            compEulerAngles(i,50.0f,50.0f,50.0f);
-
-                            // Synch
-
-                            // |0x75| - leading synch
-                            // |0x65| - lagging synch
-
-                            // Command and field length descriptors
-
-                            // |0x80| - IMU dataset command
-                            // |0x0E| - data set field length (number of bytes), 14 in this case
-
-                            // NOTE that there can be multiple fields.  If there is only one
-                            // field then this value will agree with the field length value below.
-
-                            // Start of data packet
-
-                            // |0x0E| - field length (14) for this field 
-                            // |0x0C| - data type - Euler angles
-                            // 4 bytes of roll
-                            // 4 bytes of pitch
-                            // 4 bytes of heading
-
-                            // Checksum
-
-                            // |0x60| MSB check sum
-                            // |0x65| LSB check sum
-
-                            byteBuffer = ByteBuffer.allocate(20);
-                            // Set up byte order.
-                            byteBuffer.order(ByteOrder.BIG_ENDIAN);
-
-                            // Load synch bytes at front of data pack
-                            byte leadSynch = 0x75;
-                            byteBuffer.put(leadSynch);
-                            byte lagSynch  = 0x65;
-                            byteBuffer.put(lagSynch);
-
-                            // Load IMU dataset command
-                            byte commType = (byte)0x80;
-                            byteBuffer.put(commType);
-                            // data set field length
-                            byte fieldLength = 0x0E;
-                            byteBuffer.put(fieldLength);
-
-                            // Start of data packet
-                            // Load field length of this one field
-                            byteBuffer.put(fieldLength);
-                            // Load data type - Euler Angles
-                            byte dataType = 0x0C;
-                            byteBuffer.put(dataType);
-
-                            // Load roll - 4 bytes
-                            byteBuffer.putFloat(roll);
-                            // Load pitch - 4 bytes
-                            byteBuffer.putFloat(pitch);
-                            // Load heading - 4 bytes
-                            byteBuffer.putFloat(heading);
-
-                            // Load trailing checksum bytes
-                            byte msbChecksum = 0x60;
-                            byteBuffer.put(msbChecksum);
-                            byte lsbChecksum = 0x65;
-                            byteBuffer.put(lsbChecksum);
-
-                            // Load data packet into byte array.
-                            buffSend = byteBuffer.array();
-
-                            // Send data packet out to the serial port.
-                            out.write(buffSend);
-
-                            i++;
-                        }
-                    }    
-                } 
-                
-                // If the serial status has been set to false by object AHRSSelect
-                // then exit the thread.
-                if( !threadQueue.getSerialStatus() )
-                {
-                    len = -1;
-                }    
-            } 
-            
-            // Notify the user that the thread is terminating.
-            dataObject.setSentData("Exiting 3DM-GX4-25 serial communications thread ...");
+                streaming = false;
+            }
+            else
+            {
+                streamScheduler = newStreamScheduler(rate);
+                startStreaming(rate);
+            }
         }
-        catch(Exception e)
+        else if( streaming && rate != mipStreamRate )
+        {
+            // A new format while streaming - the next packet is due one new
+            // period from now.
+            streamScheduler = newStreamScheduler(rate);
+            streamScheduler.start(System.nanoTime());
+        }
+        mipStreamRate = rate;
+
+        if( mipCommands.getBaudRate() != mipBaudRate )
+        {
+            mipBaudRate = mipCommands.getBaudRate();
+            if( pacer != null )
+            {
+                changeBaudRate(mipBaudRate);
+            }
+        }
+    }
+
+    /**
+     * Moves the pacer to a new line rate once everything sent so far - the
+     * ACK of the set baud rate command last - has gone out at the old one.
+     * With an output queue the ACK may still be waiting, so the writer
+     * thread makes the change right after writing it.
+     */
+    private void changeBaudRate(final int baud) throws IOException
+    {
+        if( outputStage != null )
+        {
+            final BaudPacer line = pacer;
+            outputStage.afterQueued(() -> line.setBaudRate(baud));
+            return;
+        }
+
+        // The coalescer may still be holding the ACK.
+        flushOutput();
+        pacer.setBaudRate(baud);
+    }
+
+    /**
+     * Turns continuous mode on - the first packet is due one period from now.
+     *
+     * @param rateHz Packet rate if no rate has been set.
+     */
+    private void startStreaming(double rateHz)
+    {
+        if( streaming )
+        {
+            return;
+        }
+
+        if( streamScheduler == null )
+        {
+            streamScheduler = newStreamScheduler(rateHz);
+        }
+        streamScheduler.start(System.nanoTime());
+        streaming = true;
+    }
+
+    /**
+     * Builds the continuous mode scheduler - the packets go out at the
+     * simulated rate, so faster than real time on a scaled clock.
+     *
+     * @param rateHz Packets per simulated second.
+     * @return The scheduler.
+     */
+    private RateScheduler newStreamScheduler(double rateHz)
+    {
+        streamRateHz = rateHz;
+        streamPeriodNanos = Math.max(1L, Math.round(1.0e9 / rateHz));
+
+        return new RateScheduler(clock.toWallRate(rateHz));
+    }
+
+    /**
+     * Summarizes a continuous mode run.
+     *
+     * @return The scheduler statistics, or how much time was simulated when
+     * running as fast as possible.
+     */
+    private String streamReport()
+    {
+        return clock.isAsFastAsPossible() ? clock.report(System.nanoTime())
+                                          : streamScheduler.report();
+    }
+
+    /**
+     * Sends the continuous mode data packet - the reply to the continuous
+     * mode command (single byte protocol) or the IMU message format (MIP).
+     *
+     * @throws IOException If the data packet cannot be sent.
+     */
+    private void sendStreamPacket() throws IOException
+    {
+        if( singleByte != null )
+        {
+            sendDataPacket(streamCommand);
+        }
+        else
+        {
+            int n = mipCommands.getFormat(mipFormat);
+            if( mipStreamEncoder == null || !mipStreamEncoder.matches(mipFormat, n) )
+            {
+                mipStreamEncoder = new MipDataEncoder(mipFormat, n);
+            }
+            sendMipPacket(mipStreamEncoder);
+        }
+    }
+
+    /**
+     * Generates the next roll, pitch, and heading values and sends a single
+     * byte protocol data packet.
+     *
+     * @param command The data command to answer.
+     * @throws IOException If the data packet cannot be sent.
+     */
+    private void sendDataPacket(int command) throws IOException
+    {
+        // A polled packet may be ready already.
+        if( prerender != null && !streaming )
+        {
+            int step = timeStep();
+            int n = prerender.take(command, step, prerenderBuffer);
+            if( n > 0 )
+            {
+                i = step;
+                writeDataPacket(prerenderBuffer, n);
+                return;
+            }
+        }
+
+        // Compute roll, pitch, and heading.
+        i = timeStep();
+        compEulerAngles(i);
+
+        // Patch the values into the pre-rendered data packet (see
+        // SingleByteProtocol for the layouts).
+        writeDataPacket(singleByte.encode(command, attitude, timerTicks(packetNanos(i))),
+                        singleByte.length(command));
+    }
+
+    /**
+     * Generates the next roll, pitch, and heading values and sends a MIP IMU
+     * data packet.
+     *
+     * @param mipEncoder The encoder for the fields to send.
+     * @throws IOException If the data packet cannot be sent.
+     */
+    private void sendMipPacket(MipDataEncoder mipEncoder) throws IOException
+    {
+        // Compute roll, pitch, and heading - every field is derived from
+        // the same attitude.
+        i = timeStep();
+        compEulerAngles(i);
+
+        double seconds = packetNanos(i) / 1.0e9;
+        writeDataPacket(mipEncoder.encode(attitude, seconds), mipEncoder.length());
+    }
+
+    /**
+     * Sends a data packet and moves on to the next time step.
+     *
+     * @param buffSend The data packet.
+     * @param sendLen Number of bytes in the data packet.
+     * @throws IOException If the data packet cannot be sent.
+     */
+    private void writeDataPacket(byte[] buffSend, int sendLen) throws IOException
+    {
+        // Send the data packet to the serial port - a continuous mode packet
+        // may replace one the writer has not got to yet.
+        if( streaming && outputStage != null )
+        {
+            outputStage.writeLatest(buffSend, 0, sendLen);
+        }
+        else
+        {
+            out.write(buffSend, 0, sendLen);
+        }
+
+        metrics.addPacket(sendLen);
+        if( requestNanos != 0 )
+        {
+            metrics.addLatency(System.nanoTime() - requestNanos);
+        }
+
+        // Move simulated time on - only an as fast as possible clock counts
+        // packets.
+        if( streaming )
+        {
+            clock.advance(streamPeriodNanos);
+        }
+        else
         {
-            dataObject.setSentData("Exception in module 3DM-GX4-25: "+e);
-            
-        }    
+            clock.tick();
+        }
     }
 
     //--------------------------------------------------------------------------
     /**
      * 3DM-GX3-35 emulator.  This module is not complete.
      * <p>
-     * Receives the data packet request - if it's for Euler angles then it 
+     * Receives the data packet request - if it's for Euler angles then it
      * generates stabilized roll, pitch, and heading values based on sinusoidal
      * waves - each with different amplitude, phase, and frequency - and outputs
-     * the data to the serial port.  
+     * the data to the serial port.
+     *
+     * @param buffer Bytes received from the transport.
+     * @param len Number of bytes received.
      */
-    public void ahrs_Type_3()
+    public void ahrs_Type_3(byte[] buffer, int len)
     {
-        int i = 0;
-        
-        // Byte array which is loaded with data coming into the serial port.
-        byte[] buffer = new byte[30]; // nominal 1024;
-        byte[] buffSend = new byte[19];
         // Long which is used to mask the incoming command bytes.
         long buff2 = 0; // temporary until code is implemented.
 
         if( buff2 == 206)
         {
-            compEulerAngles(i,20.0f,10.0f,50.0f);
+            compEulerAngles(i);
 
             try
             {
@@ -392,67 +1379,131 @@ public class AHRSOutput extends Thread
             catch(Exception e)
             {
                 System.out.println("Exception: "+e);
-            }    
-        }    
+            }
+        }
     }
 
     //--------------------------------------------------------------------------
     /**
-     * 3DM-GX3-25-OEM emulator.  This module is not complete.
+     * 3DM-GX3-25-OEM emulator.
      * <p>
-     * Receives the data packet request - if it's for Euler angles then it 
-     * generates stabilized roll, pitch, and heading values based on sinusoidal
-     * waves - each with different amplitude, phase, and frequency - and outputs
-     * the data to the serial port.  
+     * The 3DM-GX3-25 speaks the same single byte protocol as the 3DM-GX2 (with
+     * a slower timer) - see ahrs_Type_1.
+     *
+     * @param buffer Bytes received from the transport.
+     * @param len Number of bytes received.
+     * @throws IOException If the data packet cannot be sent.
      */
-    public void ahrs_Type_4()
+    public void ahrs_Type_4(byte[] buffer, int len) throws IOException
     {
-        int i = 0;
-        
-         // Byte array which is loaded with data coming into the serial port.
-        byte[] buffer = new byte[30]; // nominal 1024;
-        byte[] buffSend = new byte[19];
-        // Long which is used to mask the incoming command bytes.
-        long buff2 = 0; // temporary until code is implemented.
+        singleByteCommands(buffer, len);
+    }
 
-        if( buff2 == 206)
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves the value of the on-board timer that the single byte protocol
+     * (3DM-GX2, 3DM-GX3-25) puts in every reply.
+     *
+     * @param simNanos Simulated time (nanoseconds).
+     * @return Timer ticks of simulated time.
+     */
+    private int timerTicks(long simNanos)
+    {
+        // The timer is 32 bits and simply rolls over - the same sum as
+        // PrerenderRing's, so the packets match to the byte.
+        return (int)(long)( simNanos * ( timerHz() / 1.0e9 ) );
+    }
+
+    /**
+     * Retrieves the simulated time a data packet reports.  When pre-rendering,
+     * a packet made on demand carries the start of its time step like the
+     * pre-rendered ones, so the time in a reply doesn't depend on whether the
+     * poll found its packet ready, and never goes backwards.
+     *
+     * @param step Integer time step of the packet.
+     * @return Simulated nanoseconds since power-up.
+     */
+    private long packetNanos(int step)
+    {
+        if( prerender != null )
         {
-            compEulerAngles(i,20.0f,10.0f,50.0f);
+            return ( step - firstStep ) * SimulationClock.STEP_NANOS;
+        }
+        return clock.nanos(System.nanoTime());
+    }
 
-            try
-            {
+    /**
+     * Retrieves the on-board timer rate of the single byte protocol models.
+     *
+     * @return Ticks per second.
+     */
+    private double timerHz()
+    {
+        return ( ahrsNum == 4 ) ? GX3_TIMER_HZ : GX2_TIMER_HZ;
+    }
 
-            }
-            catch(Exception e)
-            {
-                System.out.println("Exception: "+e);
-            }    
-        }    
+    /**
+     * Retrieves the motion time step for the current simulated time.
+     *
+     * @return The integer time step.
+     */
+    private int timeStep()
+    {
+        return firstStep + (int)clock.step(System.nanoTime());
     }
-    
+
     //--------------------------------------------------------------------------
     /**
      * Generates the roll, pitch, and heading values for all of the AHRS models.
-     * 
+     *
      * @param i Integer time step.
-     * @param rA Amplitude for Roll sinusoidal equation.
-     * @param pA Amplitude for Pitch sinusoidal equation.
-     * @param hA Amplitude for Heading sinusoidal equation.
-     */
-    public void compEulerAngles(int i, float rA, float pA, float hA)
-    {
-        // Create sinusoidal roll motion
-        roll = rA * (float)Math.sin(((double)i)/50.0);
-        // Convert to radians
-        roll = roll * (float)Math.PI / 180.0f;
-        // Create sinusoidal pitch motion
-        pitch = pA * (float)Math.sin(((double)i)/40.0);
-        // Convert to radians
-        pitch = pitch * (float)Math.PI / 180.0f;
-        // Create sinusoidal heading motion
-        heading = hA * (float)Math.sin(((double)i)/30.0);
-        // Convert to radians
-        heading = heading * (float)Math.PI / 180.0f;
+     */
+    public void compEulerAngles(int i)
+    {
+        // Sinusoidal roll, pitch, and heading motion (radians) - see
+        // SinusoidMotion for the default profiles.
+        attitude.update(motion, i);
+
+        roll = attitude.getRoll();
+        pitch = attitude.getPitch();
+        heading = attitude.getHeading();
     }
-    
+
+    //--------------------------------------------------------------------------
+    // Inner class - sends the MIP command replies and polled data packets
+    private class MipResponder implements MipCommandSet.Handler
+    {
+        @Override
+        public void onReply(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            metrics.addPacket(len);
+        }
+
+        @Override
+        public void onPollImu() throws IOException
+        {
+            int n = mipCommands.getPollFormat(mipFormat);
+
+            // The packet may be ready already.
+            if( prerender != null )
+            {
+                int step = timeStep();
+                int len = prerender.take(mipFormat, n, step, prerenderBuffer);
+                if( len > 0 )
+                {
+                    i = step;
+                    writeDataPacket(prerenderBuffer, len);
+                    return;
+                }
+            }
+
+            if( mipPollEncoder == null || !mipPollEncoder.matches(mipFormat, n) )
+            {
+                mipPollEncoder = new MipDataEncoder(mipFormat, n);
+            }
+            sendMipPacket(mipPollEncoder);
+        }
+    }
+
 } // end of class AHRSOutput
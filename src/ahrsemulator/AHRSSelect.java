@@ -4,8 +4,10 @@ package ahrsemulator;
 import java.awt.Color;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.util.concurrent.CompletableFuture;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 /**
  * Loads the mouse listeners into each AHRS panel.  When the user clicks a
@@ -31,9 +33,11 @@ public final class AHRSSelect
     // corresponds to the AHRS panel that is clicked. 0 = 3DM-GX2, 
     // 1 = 3DM-GX4-25, etc.  
     private final EmulatorMain eM;
-    // This object allows thread-safe communications (synchronized methods) 
-    // between this thread and other objects.
-    private final ThreadQueue tQue;
+    // The running emulator - null if none has been started.
+    private AHRSOutput emulator;
+    // Completes once the last emulator started has let go of the serial
+    // port - null if none has been started.
+    private CompletableFuture<Void> released;
     
     /**
      *
@@ -51,7 +55,6 @@ public final class AHRSSelect
         this.dataObject = dO;
         
         eM = new EmulatorMain(dataObject);
-        tQue = new ThreadQueue();
 
         // The integer array holds the value of which AHRS has been selected.
         // e.g. {0, 1, 0, 0} means that the 2nd AHRS has been selected.
@@ -73,6 +76,31 @@ public final class AHRSSelect
         }    
     }
     
+    //--------------------------------------------------------------------------
+    /**
+     * Launches the AHRS thread for the selected model - unless the user has
+     * deselected it, or an emulator has been started since.  Event thread
+     * only.
+     */
+    private void startSelected()
+    {
+        if( emulator != null || !dataObject.getSerialConnect() )
+        {
+            return;
+        }
+
+        for(int i = 0; i < 4; i++)
+        {
+            if( clicked[i] == 1 )
+            {
+                emulator = new AHRSOutput(dataObject.getSerialPortObject(), i+1, dataObject);
+                released = emulator.getLifecycle().getStopped();
+                emulator.startEmulator();
+                return;
+            }
+        }
+    }
+
     //--------------------------------------------------------------------------
     private class PanelSelect implements MouseListener
     {
@@ -92,22 +120,6 @@ public final class AHRSSelect
             // If serial port is connected then proceed forward.
             if( dataObject.getSerialConnect() )
             {   
-                // If another thread is operating then tell it to stop.
-                tQue.setSerialStatus(false);
-                // Wait until the other thread has stopped.  "threadStatus"
-                // will be true until the thread has terminated.
-                while( tQue.getThreadStatus() )
-                {
-                    try
-                    {
-                        Thread.sleep(100);
-                    }
-                    catch(Exception ex)
-                    {
-                        System.out.println("Exception: "+ex);
-                    }    
-                }    
-                
                 // If the AHRS model previous state is "unclicked" (the indicator
                 // light is off) - the user is switching from another AHRS model 
                 // to this one.
@@ -120,11 +132,28 @@ public final class AHRSSelect
                     // Set the String name and load to DataObject with a message
                     // the lets the user know that it's being activated.
                     eM.launchEmulator(ahrsNum+1);
-                    // Set the thread status to "active".
-                    tQue.setSerialStatus(true);
-                    // Launch the AHRS thread.
-                    new AHRSOutput(dataObject.getSerialPortObject(),
-                                            tQue,ahrsNum+1,dataObject).start();
+
+                    if( emulator != null && emulator.getLifecycle().isActive() )
+                    {
+                        // An emulator is already serving the port - switch
+                        // its protocol in place, nothing has to stop.
+                        emulator.switchModel(ahrsNum+1);
+                    }
+                    else if( released == null || released.isDone() )
+                    {
+                        emulator = null;
+                        startSelected();
+                    }
+                    else
+                    {
+                        // The last emulator may still be inside a read on
+                        // the port - start once it has let go, so it can't
+                        // answer the new session's bytes.  Nothing here waits
+                        // for it, so the GUI never freezes.
+                        emulator = null;
+                        released.thenRun(() -> SwingUtilities.invokeLater(AHRSSelect.this::startSelected));
+                    }
+
                     // Set the other AHRS indicator lights to red since they
                     // are not active.
                     for(int i = 0; i < 4; i++)
@@ -137,10 +166,18 @@ public final class AHRSSelect
                     }    
                 }
                 else
-                // The AHRS model previous state is "clicked" (active) which 
-                // means that another one is being selected so this one's indicator
-                // light is changed to red.
+                // The AHRS model previous state is "clicked" (active) - clicking
+                // it again stops the emulator and its indicator light is
+                // changed to red.
                 {
+                    if( emulator != null )
+                    {
+                        // The emulator thread lets go of the port on its own
+                        // - don't wait for it on the event thread.  The next
+                        // emulator starts once it has.
+                        released = emulator.stopEmulator();
+                        emulator = null;
+                    }
                     lightPanel[ahrsNum].setBackground(Color.red);
                     clicked[ahrsNum] = 0;
                 }
@@ -0,0 +1,411 @@
+package ahrsemulator;
+
+/**
+ * The attitude of the emulated sensor at one time step, and the quantities
+ * derived from it that the data packets carry.
+ * <p>
+ * Roll, pitch, and heading come from the motion source.  Everything else is
+ * what a sensor moving that way would measure:
+ * <ul>
+ * <li>angular rate - body rates (rad/s) from the change of the Euler angles
+ * over one time step;</li>
+ * <li>quaternion - q0 (scalar), q1, q2, q3, rotating the earth fixed (north,
+ * east, down) frame into the sensor frame;</li>
+ * <li>orientation matrix - transforms an earth fixed vector into the sensor
+ * frame, stored row by row;</li>
+ * <li>acceleration - gravity only (g), as seen in the sensor frame, so a
+ * level sensor reads -1 g on its z axis;</li>
+ * <li>magnetic field - a fixed earth field (Gauss) seen in the sensor
+ * frame;</li>
+ * <li>delta theta / delta velocity - angular rate / acceleration integrated
+ * over one time step.</li>
+ * </ul>
+ * The derived quantities are only computed when a packet asks for them, and
+ * at most once per time step - the Euler angle trigonometry is done once, for
+ * the quaternion, and the orientation matrix (and with it the acceleration
+ * and magnetic field) is built from the quaternion, so a packet with any mix
+ * of fields costs one pass.
+ * <p>
+ * With a noise model the reported attitude (Euler angles, quaternion, matrix)
+ * carries the attitude error, and the angular rate, acceleration, and
+ * magnetic field carry the gyro, accelerometer, and magnetometer errors - each
+ * drawn once per time step, so the delta theta / delta velocity agree with
+ * the rates / accelerations of the same step.
+ *
+ * @author Mike Fouche
+ */
+public class AttitudeState
+{
+    /**
+     * Roll, pitch, heading (radians).
+     */
+    public static final int EULER = 0;
+    /**
+     * Angular rate about x, y, z (rad/s).
+     */
+    public static final int ANGULAR_RATE = 1;
+    /**
+     * Acceleration along x, y, z (g).
+     */
+    public static final int ACCELERATION = 2;
+    /**
+     * Magnetic field along x, y, z (Gauss).
+     */
+    public static final int MAGNETIC_FIELD = 3;
+    /**
+     * Orientation matrix M11, M12, M13, M21, ... M33.
+     */
+    public static final int ORIENTATION_MATRIX = 4;
+    /**
+     * Quaternion q0, q1, q2, q3.
+     */
+    public static final int QUATERNION = 5;
+    /**
+     * Angle turned through about x, y, z in one time step (radians).
+     */
+    public static final int DELTA_THETA = 6;
+    /**
+     * Velocity change along x, y, z in one time step (g * seconds).
+     */
+    public static final int DELTA_VELOCITY = 7;
+
+    // Time between time steps (seconds) - the angular rates are per second.
+    private static final float STEP_SECONDS = 0.01f;
+    // Earth magnetic field - north, east, down (Gauss).
+    private static final float FIELD_NORTH = 0.22f;
+    private static final float FIELD_DOWN = 0.42f;
+
+    // Generates the attitude - null until the first update.
+    private MotionSource motion;
+    // Time step of the current attitude.
+    private long step;
+    // Errors added to the exact values - null for none.
+    private NoiseModel noise;
+    // Roll, pitch, and heading at this time step.
+    private final float[] euler;
+    // Roll, pitch, and heading reported - with the attitude error.
+    private final float[] reported;
+    // Roll, pitch, and heading at the time step before.
+    private final float[] previous;
+    // Body angular rates.
+    private final float[] rates;
+    // Acceleration and magnetic field in the sensor frame.
+    private final float[] acceleration;
+    private final float[] field;
+    // Orientation matrix, row by row.
+    private final float[] matrix;
+    // Quaternion, scalar first.
+    private final float[] quaternion;
+    // Sines and cosines of roll and pitch.
+    private float sinRoll;
+    private float cosRoll;
+    private float sinPitch;
+    private float cosPitch;
+    // True once the rates / the quaternion and matrix / the acceleration /
+    // the magnetic field have been computed for this step.
+    private boolean ratesValid;
+    private boolean matrixValid;
+    private boolean accelerationValid;
+    private boolean fieldValid;
+
+    /**
+     * Constructor
+     */
+    public AttitudeState()
+    {
+        euler = new float[3];
+        reported = new float[3];
+        previous = new float[3];
+        rates = new float[3];
+        acceleration = new float[3];
+        field = new float[3];
+        matrix = new float[9];
+        quaternion = new float[4];
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Adds sensor errors to the quantities.
+     *
+     * @param model The errors - null for the exact values.
+     */
+    public void setNoiseModel(NoiseModel model)
+    {
+        this.noise = model;
+    }
+
+    /**
+     * Moves to a new time step.
+     *
+     * @param source Generates roll, pitch, and heading.
+     * @param timeStep Integer time step.
+     */
+    public void update(MotionSource source, long timeStep)
+    {
+        this.motion = source;
+        this.step = timeStep;
+
+        source.sample(timeStep, euler, 0);
+
+        System.arraycopy(euler, 0, reported, 0, 3);
+        if( noise != null )
+        {
+            noise.applyAttitude(reported, timeStep);
+        }
+
+        ratesValid = false;
+        matrixValid = false;
+        accelerationValid = false;
+        fieldValid = false;
+    }
+
+    /**
+     * Retrieves the roll.
+     *
+     * @return Roll (radians).
+     */
+    public float getRoll()
+    {
+        return reported[0];
+    }
+
+    /**
+     * Retrieves the pitch.
+     *
+     * @return Pitch (radians).
+     */
+    public float getPitch()
+    {
+        return reported[1];
+    }
+
+    /**
+     * Retrieves the heading.
+     *
+     * @return Heading (radians).
+     */
+    public float getHeading()
+    {
+        return reported[2];
+    }
+
+    /**
+     * Copies one quantity into an array.
+     *
+     * @param quantity EULER, ANGULAR_RATE, ACCELERATION, MAGNETIC_FIELD,
+     * ORIENTATION_MATRIX, QUATERNION, DELTA_THETA, or DELTA_VELOCITY.
+     * @param dst Receives the values.
+     * @param off Offset of the first value.
+     * @return The offset after the last value.
+     */
+    public int put(int quantity, float[] dst, int off)
+    {
+        switch (quantity)
+        {
+            case EULER:
+                System.arraycopy(reported, 0, dst, off, 3);
+                return off + 3;
+            case ANGULAR_RATE:
+                computeRates();
+                System.arraycopy(rates, 0, dst, off, 3);
+                return off + 3;
+            case ACCELERATION:
+                computeAcceleration();
+                System.arraycopy(acceleration, 0, dst, off, 3);
+                return off + 3;
+            case MAGNETIC_FIELD:
+                computeField();
+                System.arraycopy(field, 0, dst, off, 3);
+                return off + 3;
+            case ORIENTATION_MATRIX:
+                computeMatrix();
+                System.arraycopy(matrix, 0, dst, off, 9);
+                return off + 9;
+            case QUATERNION:
+                computeMatrix();
+                System.arraycopy(quaternion, 0, dst, off, 4);
+                return off + 4;
+            case DELTA_THETA:
+                computeRates();
+                dst[off] = rates[0] * STEP_SECONDS;
+                dst[off + 1] = rates[1] * STEP_SECONDS;
+                dst[off + 2] = rates[2] * STEP_SECONDS;
+                return off + 3;
+            case DELTA_VELOCITY:
+                computeAcceleration();
+                dst[off] = acceleration[0] * STEP_SECONDS;
+                dst[off + 1] = acceleration[1] * STEP_SECONDS;
+                dst[off + 2] = acceleration[2] * STEP_SECONDS;
+                return off + 3;
+            default:
+                throw new IllegalArgumentException("Unknown quantity "+quantity);
+        }
+    }
+
+    /**
+     * Retrieves the number of values in a quantity.
+     *
+     * @param quantity EULER, ANGULAR_RATE, ACCELERATION, MAGNETIC_FIELD,
+     * ORIENTATION_MATRIX, QUATERNION, DELTA_THETA, or DELTA_VELOCITY.
+     * @return 9 for the matrix, 4 for the quaternion, 3 for the others.
+     */
+    public static int size(int quantity)
+    {
+        switch (quantity)
+        {
+            case ORIENTATION_MATRIX:
+                return 9;
+            case QUATERNION:
+                return 4;
+            default:
+                return 3;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    private void computeRates()
+    {
+        if( ratesValid )
+        {
+            return;
+        }
+
+        motion.sample(step - 1, previous, 0);
+
+        float rollDot = angleDifference(euler[0], previous[0]) / STEP_SECONDS;
+        float pitchDot = angleDifference(euler[1], previous[1]) / STEP_SECONDS;
+        float headingDot = angleDifference(euler[2], previous[2]) / STEP_SECONDS;
+
+        // The roll and pitch sines and cosines come with the quaternion.
+        computeMatrix();
+
+        // Euler angle rates to body rates.
+        rates[0] = rollDot - headingDot * sinPitch;
+        rates[1] = pitchDot * cosRoll + headingDot * sinRoll * cosPitch;
+        rates[2] = headingDot * cosRoll * cosPitch - pitchDot * sinRoll;
+
+        if( noise != null )
+        {
+            noise.applyGyro(rates, step);
+        }
+
+        ratesValid = true;
+    }
+
+    private void computeAcceleration()
+    {
+        if( accelerationValid )
+        {
+            return;
+        }
+
+        computeMatrix();
+
+        // Gravity is straight down - the accelerometers read minus the third
+        // column of the matrix.
+        acceleration[0] = -matrix[2];
+        acceleration[1] = -matrix[5];
+        acceleration[2] = -matrix[8];
+
+        if( noise != null )
+        {
+            noise.applyAccel(acceleration, step);
+        }
+
+        accelerationValid = true;
+    }
+
+    private void computeField()
+    {
+        if( fieldValid )
+        {
+            return;
+        }
+
+        computeMatrix();
+
+        field[0] = matrix[0] * FIELD_NORTH + matrix[2] * FIELD_DOWN;
+        field[1] = matrix[3] * FIELD_NORTH + matrix[5] * FIELD_DOWN;
+        field[2] = matrix[6] * FIELD_NORTH + matrix[8] * FIELD_DOWN;
+
+        if( noise != null )
+        {
+            noise.applyMag(field, step);
+        }
+
+        fieldValid = true;
+    }
+
+    private void computeMatrix()
+    {
+        if( matrixValid )
+        {
+            return;
+        }
+
+        // Half angle sines and cosines - the only trigonometry.
+        long rollPhase = FastSine.phase(reported[0] * 0.5);
+        long pitchPhase = FastSine.phase(reported[1] * 0.5);
+        long headingPhase = FastSine.phase(reported[2] * 0.5);
+        float sr = FastSine.sin(rollPhase);
+        float cr = FastSine.cos(rollPhase);
+        float sp = FastSine.sin(pitchPhase);
+        float cp = FastSine.cos(pitchPhase);
+        float sh = FastSine.sin(headingPhase);
+        float ch = FastSine.cos(headingPhase);
+
+        float q0 = cr * cp * ch + sr * sp * sh;
+        float q1 = sr * cp * ch - cr * sp * sh;
+        float q2 = cr * sp * ch + sr * cp * sh;
+        float q3 = cr * cp * sh - sr * sp * ch;
+
+        // Whole angle roll and pitch terms, for the angular rates.
+        sinRoll = 2.0f * sr * cr;
+        cosRoll = cr * cr - sr * sr;
+        sinPitch = 2.0f * sp * cp;
+        cosPitch = cp * cp - sp * sp;
+
+        quaternion[0] = q0;
+        quaternion[1] = q1;
+        quaternion[2] = q2;
+        quaternion[3] = q3;
+
+        // Orientation matrix from the quaternion.
+        float q00 = q0 * q0;
+        float q11 = q1 * q1;
+        float q22 = q2 * q2;
+        float q33 = q3 * q3;
+
+        matrix[0] = q00 + q11 - q22 - q33;
+        matrix[1] = 2.0f * ( q1 * q2 + q0 * q3 );
+        matrix[2] = 2.0f * ( q1 * q3 - q0 * q2 );
+        matrix[3] = 2.0f * ( q1 * q2 - q0 * q3 );
+        matrix[4] = q00 - q11 + q22 - q33;
+        matrix[5] = 2.0f * ( q2 * q3 + q0 * q1 );
+        matrix[6] = 2.0f * ( q1 * q3 + q0 * q2 );
+        matrix[7] = 2.0f * ( q2 * q3 - q0 * q1 );
+        matrix[8] = q00 - q11 - q22 + q33;
+
+        matrixValid = true;
+    }
+
+    /**
+     * Difference of two angles, wrapped to +/- pi.
+     */
+    private static float angleDifference(float a, float b)
+    {
+        float d = a - b;
+
+        if( d > (float)Math.PI )
+        {
+            d -= 2.0f * (float)Math.PI;
+        }
+        else if( d < -(float)Math.PI )
+        {
+            d += 2.0f * (float)Math.PI;
+        }
+
+        return d;
+    }
+
+} // end of class AttitudeState
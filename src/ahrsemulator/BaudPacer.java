@@ -0,0 +1,183 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Holds the output to what a serial line would carry - on a TCP, UDP, or
+ * pipe transport the emulator would otherwise answer far faster than the
+ * real sensor ever could, and a driver's timing bugs would stay hidden.
+ * <p>
+ * The line is a token bucket that fills at the character rate (baud rate /
+ * bits per character, 10 for 8N1) and holds no burst: every character costs
+ * one character time, and bytes are released to the transport, a few at a
+ * time like a UART receive FIFO, only once the last of them would have
+ * arrived at the host.  A reply also can't start until the device's response
+ * latency after the request has passed.
+ * <p>
+ * The waits are on the nanosecond clock (RateScheduler.awaitDeadline), not
+ * Thread.sleep.  A write blocks the calling thread for the whole
+ * transmission, like a real serial port - emulators sharing a thread should
+ * use an output queue, so only their writer threads wait.
+ *
+ * @author Mike Fouche
+ */
+public class BaudPacer extends OutputStream
+{
+    /**
+     * Bits per character for 8N1 framing (start bit, 8 data bits, stop bit).
+     */
+    public static final int FRAME_8N1 = 10;
+    // Bytes released to the transport at a time.
+    private static final int CHUNK = 16;
+
+    // Where the bytes go.
+    private final OutputStream link;
+    // Bits per character (start, data, parity, stop).
+    private final int frameBits;
+    // Time from a request to the first byte of the reply (nanoseconds).
+    private final long replyDelayNanos;
+    // Line rate (bits per second).
+    private volatile int baudRate;
+    // Time one character takes on the line (picoseconds - nanoseconds would
+    // drift, e.g. 86805.6 ns at 115200 8N1).
+    private volatile long charPicos;
+    // Time (System.nanoTime) the line finishes the characters already sent,
+    // and the picoseconds past it.
+    private long lineFreeNanos;
+    private long lineFreePicos;
+    // Time (System.nanoTime) before which the next reply can't start.
+    private volatile long holdNanos;
+
+    /**
+     * Constructor
+     *
+     * @param link The transport's output stream.
+     * @param baudRate Line rate (bits per second).
+     * @param frameBits Bits per character - FRAME_8N1 for 8N1.
+     * @param replyDelayMicros Time from a request to the first byte of the
+     * reply (microseconds).
+     */
+    public BaudPacer(OutputStream link, int baudRate, int frameBits, long replyDelayMicros)
+    {
+        if( frameBits < 7 || frameBits > 13 )
+        {
+            throw new IllegalArgumentException("Bad character size "+frameBits+" bits");
+        }
+
+        this.link = link;
+        this.frameBits = frameBits;
+        this.replyDelayNanos = replyDelayMicros * 1000L;
+
+        setBaudRate(baudRate);
+        lineFreeNanos = System.nanoTime();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Changes the line rate - e.g. when the host sets a new baud rate.
+     *
+     * @param baud Line rate (bits per second).
+     */
+    public final void setBaudRate(int baud)
+    {
+        if( baud <= 0 )
+        {
+            throw new IllegalArgumentException("Bad baud rate "+baud);
+        }
+
+        this.baudRate = baud;
+        this.charPicos = Math.round(frameBits * 1.0e12 / baud);
+    }
+
+    /**
+     * Retrieves the line rate.
+     *
+     * @return Bits per second.
+     */
+    public int getBaudRate()
+    {
+        return baudRate;
+    }
+
+    /**
+     * A request has arrived - the reply can't start until the response
+     * latency has passed.
+     *
+     * @param requestNanos Time the request arrived (System.nanoTime).
+     */
+    public void holdReply(long requestNanos)
+    {
+        holdNanos = requestNanos + replyDelayNanos;
+    }
+
+    //--------------------------------------------------------------------------
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    /**
+     * Sends the bytes at the line rate - returns once the last one would have
+     * arrived.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        // The line may still be busy with the last write, and the device
+        // may still be thinking about the request.
+        long t = lineFreeNanos;
+        long picos = lineFreePicos;
+        long now = System.nanoTime();
+        if( now - t > 0 )
+        {
+            t = now;
+            picos = 0;
+        }
+        long hold = holdNanos;
+        if( hold - t > 0 )
+        {
+            t = hold;
+            picos = 0;
+        }
+
+        long perChar = charPicos;
+        try
+        {
+            while( len > 0 )
+            {
+                int n = Math.min(len, CHUNK);
+
+                picos += n * perChar;
+                t += picos / 1000;
+                picos %= 1000;
+
+                RateScheduler.awaitDeadline(t);
+                link.write(b, off, n);
+
+                off += n;
+                len -= n;
+            }
+        }
+        catch(InterruptedException e)
+        {
+            // Being stopped - let the caller see the interrupt too.
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while sending");
+        }
+        finally
+        {
+            lineFreeNanos = t;
+            lineFreePicos = picos;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        link.flush();
+    }
+
+} // end of class BaudPacer
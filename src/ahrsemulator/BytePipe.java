@@ -0,0 +1,211 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded, one-way byte pipe between two threads inside the same JVM.
+ * <p>
+ * java.io.PipedInputStream is not used because it records the reader and
+ * writer threads and reports a "broken pipe" as soon as either of them ends -
+ * which does not work when the emulator is run from a thread pool.
+ *
+ * @author Mike Fouche
+ */
+public class BytePipe
+{
+    // Circular byte buffer.
+    private final byte[] ring;
+    // Index of the next byte to be read.
+    private int head;
+    // Number of bytes currently in the pipe.
+    private int count;
+    // True once either end has been closed.
+    private boolean closed;
+
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * Constructor
+     *
+     * @param capacity Number of bytes the pipe can hold before the writer
+     * blocks.
+     */
+    public BytePipe(int capacity)
+    {
+        ring = new byte[capacity];
+        head = 0;
+        count = 0;
+        closed = false;
+
+        in = new PipeInputStream();
+        out = new PipeOutputStream();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves the reading end of the pipe.
+     *
+     * @return The input stream.
+     */
+    public InputStream getInputStream()
+    {
+        return in;
+    }
+
+    /**
+     * Retrieves the writing end of the pipe.
+     *
+     * @return The output stream.
+     */
+    public OutputStream getOutputStream()
+    {
+        return out;
+    }
+
+    /**
+     * Closes the pipe.  Bytes already in the pipe can still be read, after
+     * which the reader sees the end of the stream.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+
+    //--------------------------------------------------------------------------
+    private synchronized int available()
+    {
+        return count;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException
+    {
+        if( len == 0 )
+        {
+            return 0;
+        }
+
+        // Wait for data (or for the pipe to be closed).
+        while( count == 0 )
+        {
+            if( closed )
+            {
+                return -1;
+            }
+            waitForPipe();
+        }
+
+        int n = Math.min(len, count);
+        // Copy in (at most) two pieces - up to the end of the ring and then
+        // from the start of the ring.
+        int first = Math.min(n, ring.length - head);
+        System.arraycopy(ring, head, b, off, first);
+        System.arraycopy(ring, 0, b, off + first, n - first);
+
+        head = (head + n) % ring.length;
+        count -= n;
+        notifyAll();
+
+        return n;
+    }
+
+    private synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+        while( len > 0 )
+        {
+            // Wait for room (or for the pipe to be closed).
+            while( count == ring.length && !closed )
+            {
+                waitForPipe();
+            }
+            if( closed )
+            {
+                throw new IOException("Pipe closed");
+            }
+
+            int tail = (head + count) % ring.length;
+            int n = Math.min(len, ring.length - count);
+            int first = Math.min(n, ring.length - tail);
+            System.arraycopy(b, off, ring, tail, first);
+            System.arraycopy(b, off + first, ring, 0, n - first);
+
+            count += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    private void waitForPipe() throws InterruptedIOException
+    {
+        try
+        {
+            wait();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on pipe");
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class for the reading end of the pipe
+    private class PipeInputStream extends InputStream
+    {
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return BytePipe.this.read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return BytePipe.this.read(b, off, len);
+        }
+
+        @Override
+        public int available()
+        {
+            return BytePipe.this.available();
+        }
+
+        @Override
+        public void close()
+        {
+            BytePipe.this.close();
+        }
+
+    } // end of inner class PipeInputStream
+
+    //--------------------------------------------------------------------------
+    // Inner class for the writing end of the pipe
+    private class PipeOutputStream extends OutputStream
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            BytePipe.this.write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            BytePipe.this.write(b, off, len);
+        }
+
+        @Override
+        public void close()
+        {
+            BytePipe.this.close();
+        }
+
+    } // end of inner class PipeOutputStream
+
+} // end of class BytePipe
@@ -0,0 +1,207 @@
+package ahrsemulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Steps through the records of a capture file (see CaptureWriter for the
+ * layout).
+ * <p>
+ * The file is read through a read-only memory-mapped window (256 MB at a
+ * time) that is moved along as the records are consumed, so captures of any
+ * size can be replayed without reading them onto the heap.  The data of the
+ * current record is handed out as a view of the mapped window - it is not
+ * copied, and nothing is allocated per record.
+ *
+ * @author Mike Fouche
+ */
+public class CaptureReader implements Closeable
+{
+    // Size of the mapped window.
+    private static final long WINDOW = 256L << 20;
+
+    // The capture file.
+    private final FileChannel channel;
+    // File size.
+    private final long fileSize;
+    // Capture start time (ms since 1970).
+    private final long startMillis;
+    // Mapped part of the file the current record is in.
+    private MappedByteBuffer window;
+    // File offset of the mapped window.
+    private long windowStart;
+    // View of the current record's data.
+    private ByteBuffer data;
+    // File offset of the next record.
+    private long next;
+    // Current record type, length, and time.
+    private byte type;
+    private int length;
+    private long nanos;
+
+    /**
+     * Constructor
+     *
+     * @param fileName Name of the capture file.
+     * @throws IOException If the file cannot be read or is not a capture file.
+     */
+    public CaptureReader(String fileName) throws IOException
+    {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        fileSize = channel.size();
+
+        if( !ensure(0, CaptureWriter.HEADER_SIZE) || window.getLong(0) != CaptureWriter.MAGIC )
+        {
+            channel.close();
+            throw new IOException("Not a capture file: "+fileName);
+        }
+
+        startMillis = window.getLong(8);
+        rewind();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Moves to the next record.
+     *
+     * @return False if there are no more records.
+     * @throws IOException If the file cannot be read.
+     */
+    public boolean next() throws IOException
+    {
+        if( !ensure(next, CaptureWriter.RECORD_HEADER) )
+        {
+            return false;
+        }
+
+        int at = (int)( next - windowStart );
+        byte t = window.get(at);
+        int n = window.getInt(at + 1);
+
+        // Zero type - end of the data.  A record cut short by a crash is
+        // also the end.
+        if( t == 0 || n < 0 || !ensure(next, CaptureWriter.RECORD_HEADER + n) )
+        {
+            return false;
+        }
+
+        at = (int)( next - windowStart );
+        type = t;
+        length = n;
+        nanos = window.getLong(at + 5);
+
+        data.limit(at + CaptureWriter.RECORD_HEADER + n);
+        data.position(at + CaptureWriter.RECORD_HEADER);
+
+        next += CaptureWriter.RECORD_HEADER + n;
+        return true;
+    }
+
+    /**
+     * Moves back to the first record.
+     */
+    public final void rewind()
+    {
+        next = CaptureWriter.HEADER_SIZE;
+        length = 0;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves the type of the current record.
+     *
+     * @return CaptureWriter.RECEIVED or CaptureWriter.SENT.
+     */
+    public byte getType()
+    {
+        return type;
+    }
+
+    /**
+     * Retrieves the number of data bytes in the current record.
+     *
+     * @return The record length.
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Retrieves the time of the current record.
+     *
+     * @return Nanoseconds since the capture started.
+     */
+    public long getNanos()
+    {
+        return nanos;
+    }
+
+    /**
+     * Retrieves the data of the current record - a view of the mapped file,
+     * positioned on the first byte and limited to the last.  The same buffer
+     * object is reused for every record; it is only valid until the next call
+     * to next().
+     *
+     * @return The record data.
+     */
+    public ByteBuffer getData()
+    {
+        return data;
+    }
+
+    /**
+     * Retrieves the time the capture was started.
+     *
+     * @return Milliseconds since 1970.
+     */
+    public long getStartMillis()
+    {
+        return startMillis;
+    }
+
+    @Override
+    public void close()
+    {
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e)
+        {
+            // Nothing more can be done.
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Makes sure a range of the file is inside the mapped window, moving the
+     * window if it is not.
+     *
+     * @return False if the range runs past the end of the file.
+     */
+    private boolean ensure(long position, int size) throws IOException
+    {
+        if( position + size > fileSize )
+        {
+            return false;
+        }
+
+        if( window == null || position < windowStart
+                           || position + size > windowStart + window.capacity() )
+        {
+            windowStart = position;
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                 Math.min(fileSize - position, Math.max(WINDOW, size)));
+            data = window.duplicate();
+        }
+
+        return true;
+    }
+
+} // end of class CaptureReader
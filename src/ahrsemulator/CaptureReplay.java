@@ -0,0 +1,176 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Plays the packets of a capture file back out - the packets the emulator (or
+ * a real device) sent, at the times it sent them.
+ * <p>
+ * Times are taken relative to the first sent packet and divided by the time
+ * scale: 1.0 replays with the original timing, 2.0 twice as fast, 0 as fast
+ * as the link will take them.  The commands in the capture are not replayed -
+ * they are what the host sent.
+ *
+ * @author Mike Fouche
+ */
+public class CaptureReplay
+{
+    // Most packets sent in one call when replaying as fast as possible, so a
+    // fleet worker is never stuck in one emulator.
+    private static final int MAX_BURST = 1000;
+
+    // The capture being replayed.
+    private final CaptureReader reader;
+    // Replay speed - 1.0 is the original timing, 0 as fast as possible.
+    private final double timeScale;
+    // Staging buffer - the transports take byte arrays.
+    private byte[] chunk;
+    // Replay start time (System.nanoTime).
+    private long startNanos;
+    // Capture time of the first sent packet (ns), or -1 before it is found.
+    private long origin;
+    // Time the current packet is due (System.nanoTime).
+    private long due;
+    // True once every packet has been sent.
+    private boolean finished;
+    // Number of packets and bytes sent.
+    private long packets;
+    private long bytes;
+
+    /**
+     * Constructor
+     *
+     * @param reader The capture to replay.
+     * @param timeScale Replay speed - 1.0 for the original timing, 0 for as
+     * fast as possible.
+     */
+    public CaptureReplay(CaptureReader reader, double timeScale)
+    {
+        if( timeScale < 0.0 )
+        {
+            throw new IllegalArgumentException("Time scale can't be negative: "+timeScale);
+        }
+
+        this.reader = reader;
+        this.timeScale = timeScale;
+        this.chunk = new byte[1024];
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Starts (or restarts) the replay - the first packet is due now.
+     *
+     * @param now The current time (System.nanoTime).
+     * @throws IOException If the capture cannot be read.
+     */
+    public void start(long now) throws IOException
+    {
+        reader.rewind();
+        startNanos = now;
+        origin = -1;
+        finished = false;
+        packets = 0;
+        bytes = 0;
+
+        advance();
+    }
+
+    /**
+     * Sends every packet that is due.
+     *
+     * @param now The current time (System.nanoTime).
+     * @param out The stream going to the host.
+     * @param metrics Counts each packet sent.
+     * @return The time the next packet is due (System.nanoTime).
+     * @throws IOException If the capture cannot be read or the packet cannot
+     * be sent.
+     */
+    public long send(long now, OutputStream out, EmulatorMetrics metrics) throws IOException
+    {
+        int burst = 0;
+
+        while( !finished && now - due >= 0 && burst < MAX_BURST )
+        {
+            ByteBuffer data = reader.getData();
+            int len = data.remaining();
+
+            // One write per packet - a UDP transport sends each write as a
+            // datagram.
+            if( len > chunk.length )
+            {
+                chunk = new byte[len];
+            }
+            data.get(chunk, 0, len);
+            out.write(chunk, 0, len);
+            metrics.addPacket(len);
+
+            packets++;
+            bytes += len;
+            burst++;
+
+            advance();
+        }
+
+        return due;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves whether every packet has been sent.
+     *
+     * @return True once the replay is over.
+     */
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    /**
+     * Retrieves the number of packets sent.
+     *
+     * @return The packet count.
+     */
+    public long getPacketCount()
+    {
+        return packets;
+    }
+
+    /**
+     * Summarizes the replay for the display window.
+     *
+     * @return The replay statistics as text.
+     */
+    public String report()
+    {
+        return String.format("replayed %d packets (%d bytes) in %.3f s at %s",
+                             packets, bytes, ( System.nanoTime() - startNanos ) / 1.0e9,
+                             ( timeScale > 0.0 ) ? timeScale+"x" : "full speed");
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Moves to the next sent packet and works out when it is due.
+     */
+    private void advance() throws IOException
+    {
+        while( reader.next() )
+        {
+            if( reader.getType() == CaptureWriter.SENT )
+            {
+                if( origin < 0 )
+                {
+                    origin = reader.getNanos();
+                }
+
+                long offset = reader.getNanos() - origin;
+                due = startNanos + ( ( timeScale > 0.0 ) ? (long)( offset / timeScale ) : 0L );
+                return;
+            }
+        }
+
+        finished = true;
+    }
+
+} // end of class CaptureReplay
@@ -0,0 +1,315 @@
+package ahrsemulator;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records the raw traffic of an emulator - every command received and every
+ * packet sent - in an append-only capture file.
+ * <p>
+ * The file is written through a memory-mapped window (64 MB at a time) that is
+ * moved along as the file grows, so a record is just a copy into the page
+ * cache - no system call, no heap buffer.  File layout, big-endian:
+ * <pre>
+ *   header:  8 bytes magic "AHRSCAP1", 8 bytes start time (ms since 1970)
+ *   record:  1 byte type (RECEIVED / SENT), 4 bytes length,
+ *            8 bytes time since the capture started (ns), length data bytes
+ * </pre>
+ * The type byte is written last, so a reader never sees a half written
+ * record, and a zero type byte (the unwritten, zero filled tail of the last
+ * window) marks the end of the data even if the file was not closed.
+ * <p>
+ * The easiest way to capture an emulator is to tap its streams - see
+ * tap(InputStream) and tap(OutputStream).
+ *
+ * @author Mike Fouche
+ */
+public class CaptureWriter implements Closeable
+{
+    /**
+     * File magic - "AHRSCAP1".
+     */
+    public static final long MAGIC = 0x4148525343415031L;
+    /**
+     * File header size (bytes).
+     */
+    public static final int HEADER_SIZE = 16;
+    /**
+     * Record header size (bytes) - type, length, time.
+     */
+    public static final int RECORD_HEADER = 13;
+    /**
+     * Record type - bytes received from the host.
+     */
+    public static final byte RECEIVED = 1;
+    /**
+     * Record type - bytes sent to the host.
+     */
+    public static final byte SENT = 2;
+
+    // Size of the mapped window.
+    private static final long WINDOW = 64L << 20;
+
+    // Name of the capture file.
+    private final String fileName;
+    // The capture file.
+    private final FileChannel channel;
+    // Mapped part of the file the next record goes into.
+    private MappedByteBuffer window;
+    // File offset of the mapped window.
+    private long windowStart;
+    // Capture start time (System.nanoTime) - record times count from here.
+    private final long startNanos;
+    // Number of records written.
+    private long records;
+    // True once the file has been closed.
+    private boolean closed;
+
+    /**
+     * Constructor - creates (or truncates) the capture file.
+     *
+     * @param fileName Name of the capture file.
+     * @throws IOException If the file cannot be created.
+     */
+    public CaptureWriter(String fileName) throws IOException
+    {
+        this.fileName = fileName;
+
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                                   StandardOpenOption.TRUNCATE_EXISTING,
+                                   StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(0, HEADER_SIZE);
+
+        startNanos = System.nanoTime();
+        window.putLong(MAGIC);
+        window.putLong(System.currentTimeMillis());
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Appends a record.
+     *
+     * @param type RECEIVED or SENT.
+     * @param b Byte array.
+     * @param off Offset of the first byte.
+     * @param len Number of bytes.
+     * @throws IOException If the file cannot grow.
+     */
+    public synchronized void record(byte type, byte[] b, int off, int len) throws IOException
+    {
+        if( closed )
+        {
+            return;
+        }
+
+        long nanos = System.nanoTime() - startNanos;
+        int size = RECORD_HEADER + len;
+
+        if( window.remaining() < size )
+        {
+            map(windowStart + window.position(), size);
+        }
+
+        // Everything but the type byte first - the record only becomes
+        // visible once the type is in place.
+        int start = window.position();
+        window.position(start + 1);
+        window.putInt(len);
+        window.putLong(nanos);
+        window.put(b, off, len);
+        window.put(start, type);
+
+        records++;
+    }
+
+    /**
+     * Appends a record of bytes received from the host.
+     *
+     * @param b Byte array.
+     * @param off Offset of the first byte.
+     * @param len Number of bytes.
+     * @throws IOException If the file cannot grow.
+     */
+    public void received(byte[] b, int off, int len) throws IOException
+    {
+        record(RECEIVED, b, off, len);
+    }
+
+    /**
+     * Appends a record of bytes sent to the host.
+     *
+     * @param b Byte array.
+     * @param off Offset of the first byte.
+     * @param len Number of bytes.
+     * @throws IOException If the file cannot grow.
+     */
+    public void sent(byte[] b, int off, int len) throws IOException
+    {
+        record(SENT, b, off, len);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Wraps the stream of bytes coming from the host so every read is
+     * recorded.
+     *
+     * @param in The transport input stream.
+     * @return The recording input stream.
+     */
+    public InputStream tap(InputStream in)
+    {
+        return new TapInputStream(in);
+    }
+
+    /**
+     * Wraps the stream of bytes going to the host so every write is recorded.
+     *
+     * @param out The transport output stream.
+     * @return The recording output stream.
+     */
+    public OutputStream tap(OutputStream out)
+    {
+        return new TapOutputStream(out);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves the name of the capture file.
+     *
+     * @return The file name.
+     */
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    /**
+     * Retrieves the number of records written.
+     *
+     * @return The record count.
+     */
+    public synchronized long getRecordCount()
+    {
+        return records;
+    }
+
+    /**
+     * Flushes the capture to disk and cuts the file back to the data that was
+     * written.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if( closed )
+        {
+            return;
+        }
+        closed = true;
+
+        long end = windowStart + window.position();
+        try
+        {
+            window.force();
+            // Not every platform lets a mapped file shrink - the zero filled
+            // tail is harmless, it reads as the end of the data.
+            channel.truncate(end);
+        }
+        catch(IOException e)
+        {
+            // Keep the zero filled tail.
+        }
+
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e)
+        {
+            // Nothing more can be done.
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Moves the mapped window so it starts at a file offset.  Mapping past the
+     * end of the file grows it.
+     */
+    private void map(long position, int minSize) throws IOException
+    {
+        if( window != null )
+        {
+            window.force();
+        }
+
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(WINDOW, minSize));
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class which records the bytes coming from the host
+    private class TapInputStream extends FilterInputStream
+    {
+        TapInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int c = super.read();
+            if( c >= 0 )
+            {
+                record(RECEIVED, new byte[] {(byte)c}, 0, 1);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            if( n > 0 )
+            {
+                record(RECEIVED, b, off, n);
+            }
+            return n;
+        }
+
+    } // end of inner class TapInputStream
+
+    //--------------------------------------------------------------------------
+    // Inner class which records the bytes going to the host
+    private class TapOutputStream extends FilterOutputStream
+    {
+        TapOutputStream(OutputStream out)
+        {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            // One record per packet, not per byte (FilterOutputStream would
+            // split the array).
+            out.write(b, off, len);
+            record(SENT, b, off, len);
+        }
+
+    } // end of inner class TapOutputStream
+
+} // end of class CaptureWriter
@@ -0,0 +1,314 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking TCP transport for an emulator serviced by a SelectorServer.
+ * <p>
+ * The transport never touches a selector and never waits.  The server's
+ * selector thread reads the host's bytes into the input buffer and calls the
+ * emulator's service(), which reads them back out through the input stream;
+ * whatever the emulator writes is staged in the output buffer until the
+ * selector thread sends it.  Both buffers are allocated once, and the streams
+ * are only ever used by the one selector thread that owns the transport.
+ * <p>
+ * When the host does not read its data fast enough the output buffer fills
+ * up, and a packet that does not fit is dropped (and counted) rather than
+ * holding up the other emulators on the thread - the same as a serial port
+ * overrun.
+ *
+ * @author Mike Fouche
+ */
+public class ChannelTransport implements Transport
+{
+    // Default size of the input and output buffers.
+    private static final int IN_SIZE = 512;
+    private static final int OUT_SIZE = 4096;
+
+    // Short description - e.g. "nio:5000".
+    private final String name;
+    // Connected host - null until a host connects.
+    private SocketChannel client;
+    // Bytes received from the host but not yet read (kept in "read" mode).
+    private final ByteBuffer inBuf;
+    // Bytes waiting to go to the host (kept in "write" mode).
+    private final ByteBuffer outBuf;
+    // True once the transport has been closed.
+    private volatile boolean closed;
+    // Number of bytes dropped because the host was not keeping up.
+    private volatile long droppedBytes;
+
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * Constructor
+     *
+     * @param name Short description of the link - e.g. "nio:5000".
+     */
+    public ChannelTransport(String name)
+    {
+        this.name = name;
+
+        inBuf = ByteBuffer.allocateDirect(IN_SIZE);
+        inBuf.flip();
+        outBuf = ByteBuffer.allocateDirect(OUT_SIZE);
+
+        in = new ChannelInputStream();
+        out = new ChannelOutputStream();
+    }
+
+    @Override
+    public void open()
+    {
+        // Nothing to do - the server accepts the host.
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return out;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        detach();
+    }
+
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Connects a host.  Selector thread only.
+     *
+     * @param sc The host connection (non-blocking).
+     * @param pending Bytes the host has already sent (e.g. after a
+     * handshake) - may be null.
+     */
+    public void attach(SocketChannel sc, ByteBuffer pending)
+    {
+        client = sc;
+
+        inBuf.clear();
+        if( pending != null )
+        {
+            int n = Math.min(pending.remaining(), inBuf.remaining());
+            for(int k = 0; k < n; k++)
+            {
+                inBuf.put(pending.get());
+            }
+        }
+        inBuf.flip();
+        outBuf.clear();
+    }
+
+    /**
+     * Disconnects the host - the bytes still buffered are discarded.
+     * Selector thread only.
+     */
+    public void detach()
+    {
+        SocketChannel sc = client;
+        client = null;
+
+        if( sc != null )
+        {
+            try
+            {
+                sc.close();
+            }
+            catch(IOException e)
+            {
+                // The connection is being discarded anyway.
+            }
+        }
+    }
+
+    /**
+     * Retrieves the connected host.
+     *
+     * @return The host connection, or null.
+     */
+    public SocketChannel getClient()
+    {
+        return client;
+    }
+
+    /**
+     * Reads what the host has sent.  Selector thread only.
+     *
+     * @return The number of bytes ready for the emulator, or -1 if the host
+     * hung up.
+     */
+    public int receive()
+    {
+        SocketChannel sc = client;
+        if( sc == null )
+        {
+            return -1;
+        }
+
+        // Keep any bytes the emulator has not read yet.
+        inBuf.compact();
+        int n;
+        try
+        {
+            n = sc.read(inBuf);
+        }
+        catch(IOException e)
+        {
+            // Connection reset by the host.
+            n = -1;
+        }
+        inBuf.flip();
+
+        return ( n < 0 ) ? -1 : inBuf.remaining();
+    }
+
+    /**
+     * Sends as much of the staged output as the socket will take.  Selector
+     * thread only.
+     *
+     * @return True if everything has been sent, false if the host has to
+     * catch up first.
+     * @throws IOException If the host hung up.
+     */
+    public boolean flush() throws IOException
+    {
+        if( outBuf.position() == 0 )
+        {
+            return true;
+        }
+
+        SocketChannel sc = client;
+        if( sc == null )
+        {
+            outBuf.clear();
+            return true;
+        }
+
+        outBuf.flip();
+        sc.write(outBuf);
+        outBuf.compact();
+
+        return outBuf.position() == 0;
+    }
+
+    /**
+     * Retrieves the number of bytes dropped because the host was not reading
+     * its data fast enough.
+     *
+     * @return The dropped byte count.
+     */
+    public long getDroppedBytes()
+    {
+        return droppedBytes;
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class for the bytes coming from the host
+    private class ChannelInputStream extends InputStream
+    {
+        /**
+         * Never waits - with nothing received it reads as the end of the
+         * stream.
+         */
+        @Override
+        public int read() throws IOException
+        {
+            if( closed || !inBuf.hasRemaining() )
+            {
+                return -1;
+            }
+            return inBuf.get() & 0xFF;
+        }
+
+        /**
+         * Never waits - returns 0 if the selector thread has not received
+         * anything.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if( closed )
+            {
+                return -1;
+            }
+
+            int n = Math.min(len, inBuf.remaining());
+            inBuf.get(b, off, n);
+
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return closed ? 0 : inBuf.remaining();
+        }
+
+    } // end of inner class ChannelInputStream
+
+    //--------------------------------------------------------------------------
+    // Inner class for the bytes going to the host
+    private class ChannelOutputStream extends OutputStream
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            // Nobody is listening - the bytes go nowhere, just like a serial
+            // port with no cable attached.
+            if( client == null )
+            {
+                return;
+            }
+
+            // Make room by sending what is already staged.
+            if( outBuf.remaining() < len )
+            {
+                try
+                {
+                    flush();
+                }
+                catch(IOException e)
+                {
+                    // The host hung up - wait for the next one.
+                    detach();
+                    return;
+                }
+            }
+
+            if( outBuf.remaining() < len )
+            {
+                droppedBytes += len;
+                return;
+            }
+
+            outBuf.put(b, off, len);
+        }
+
+    } // end of inner class ChannelOutputStream
+
+} // end of class ChannelTransport
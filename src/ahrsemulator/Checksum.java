@@ -0,0 +1,134 @@
+package ahrsemulator;
+
+/**
+ * Checksums for the two MicroStrain packet formats.
+ * <p>
+ * 3DM-GX2 (and 3DM-GX3-25 single byte protocol) - the 16 bit sum of all
+ * preceding bytes in the reply, most significant byte first.
+ * <p>
+ * MIP (3DM-GX3-35, 3DM-GX4-25) - a Fletcher checksum over everything from the
+ * leading synch byte through the last payload byte: two 8 bit running sums,
+ * the first of the bytes and the second of the first, sent as MSB = sum 1,
+ * LSB = sum 2.
+ * <p>
+ * Both checksums can be computed incrementally - pass the state returned for
+ * one block of bytes in with the next block.  This lets an encoder compute
+ * the state of its constant header once and then pay only for the payload
+ * bytes of each packet.
+ *
+ * @author Mike Fouche
+ */
+public final class Checksum
+{
+    /**
+     * Checksum state before any bytes have been added.
+     */
+    public static final int INITIAL = 0;
+
+    private Checksum()
+    {
+        // Static methods only.
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Adds bytes to a MIP Fletcher checksum.
+     *
+     * @param state The checksum state so far (INITIAL to start).
+     * @param b Byte array.
+     * @param off Offset of the first byte.
+     * @param len Number of bytes.
+     * @return The new checksum state - (sum 1 &lt;&lt; 8) | sum 2, which is
+     * also the 16 bit checksum value once all bytes are added.
+     */
+    public static int mip(int state, byte[] b, int off, int len)
+    {
+        int sum1 = ( state >>> 8 ) & 0xFF;
+        int sum2 = state & 0xFF;
+
+        for(int k = off; k < off + len; k++)
+        {
+            sum1 += b[k] & 0xFF;
+            sum2 += sum1;
+        }
+
+        return ( ( sum1 & 0xFF ) << 8 ) | ( sum2 & 0xFF );
+    }
+
+    /**
+     * Adds bytes to a 3DM-GX2 additive checksum.
+     *
+     * @param state The checksum state so far (INITIAL to start).
+     * @param b Byte array.
+     * @param off Offset of the first byte.
+     * @param len Number of bytes.
+     * @return The new checksum state, which is also the 16 bit checksum value
+     * once all bytes are added.
+     */
+    public static int gx2(int state, byte[] b, int off, int len)
+    {
+        int sum = state;
+
+        for(int k = off; k < off + len; k++)
+        {
+            sum += b[k] & 0xFF;
+        }
+
+        return sum & 0xFFFF;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Writes a 16 bit checksum into a packet, most significant byte first.
+     *
+     * @param checksum The checksum value.
+     * @param b Byte array.
+     * @param off Offset of the checksum MSB.
+     */
+    public static void put(int checksum, byte[] b, int off)
+    {
+        b[off] = (byte)( checksum >>> 8 );
+        b[off + 1] = (byte)checksum;
+    }
+
+    /**
+     * Checks a complete MIP packet (synch bytes through checksum).
+     *
+     * @param b Byte array.
+     * @param off Offset of the leading synch byte.
+     * @param len Number of bytes in the packet, including the checksum.
+     * @return True if the packet is well formed and the checksum matches.
+     */
+    public static boolean isValidMip(byte[] b, int off, int len)
+    {
+        // Header (4) + checksum (2), and the payload length has to agree.
+        if( len < 6 || b[off] != 0x75 || b[off + 1] != 0x65
+                    || ( b[off + 3] & 0xFF ) != len - 6 )
+        {
+            return false;
+        }
+
+        int expected = ( ( b[off + len - 2] & 0xFF ) << 8 ) | ( b[off + len - 1] & 0xFF );
+        return mip(INITIAL, b, off, len - 2) == expected;
+    }
+
+    /**
+     * Checks a complete 3DM-GX2 reply (command byte through checksum).
+     *
+     * @param b Byte array.
+     * @param off Offset of the command byte.
+     * @param len Number of bytes in the reply, including the checksum.
+     * @return True if the checksum matches.
+     */
+    public static boolean isValidGx2(byte[] b, int off, int len)
+    {
+        if( len < 3 )
+        {
+            return false;
+        }
+
+        int expected = ( ( b[off + len - 2] & 0xFF ) << 8 ) | ( b[off + len - 1] & 0xFF );
+        return gx2(INITIAL, b, off, len - 2) == expected;
+    }
+
+} // end of class Checksum
@@ -0,0 +1,109 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects the packets of one burst - e.g. the replies to a run of pipelined
+ * polls - and hands them to the transport in a single write, instead of one
+ * write (one system call, one serial driver call) per 19 or 20 byte packet.
+ * <p>
+ * The emulator flushes at the end of each burst.  Before that, a packet is
+ * never held longer than the latency cap: a write that finds the oldest
+ * buffered packet has waited that long sends everything straight away.
+ *
+ * @author Mike Fouche
+ */
+public class CoalescingOutputStream extends OutputStream
+{
+    // Size of the buffer - a burst that outgrows it goes out in pieces.
+    private static final int BUFFER_SIZE = 8192;
+
+    // Where the packets go.
+    private final OutputStream link;
+    // Longest a packet may wait for others (nanoseconds).
+    private final long maxDelayNanos;
+    // Packets waiting to go out.
+    private final byte[] buffer;
+    // Number of bytes waiting.
+    private int count;
+    // Time (System.nanoTime) the oldest waiting packet was written.
+    private long firstNanos;
+
+    /**
+     * Constructor
+     *
+     * @param link The transport's output stream.
+     * @param maxDelayMicros Longest a packet may wait for others
+     * (microseconds).
+     */
+    public CoalescingOutputStream(OutputStream link, long maxDelayMicros)
+    {
+        this.link = link;
+        this.maxDelayNanos = maxDelayMicros * 1000L;
+
+        buffer = new byte[BUFFER_SIZE];
+    }
+
+    //--------------------------------------------------------------------------
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        if( count + len > buffer.length )
+        {
+            flush();
+
+            // Too big to buffer at all.
+            if( len > buffer.length )
+            {
+                link.write(b, off, len);
+                return;
+            }
+        }
+
+        long now = System.nanoTime();
+        if( count == 0 )
+        {
+            firstNanos = now;
+        }
+
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+
+        // The oldest packet has waited long enough.
+        if( now - firstNanos >= maxDelayNanos )
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Sends everything waiting in one write.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        if( count == 0 )
+        {
+            return;
+        }
+
+        int n = count;
+        count = 0;
+        link.write(buffer, 0, n);
+        link.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+    }
+
+} // end of class CoalescingOutputStream
@@ -16,7 +16,12 @@ import gnu.io.UnsupportedCommOperationException;
  */
 public class ConnectSerialPort 
 {
-    private final DataObject dataObject;
+    /**
+     * Baud rate used when no baud rate is specified.
+     */
+    public static final int DEFAULT_BAUD_RATE = 115200;
+    
+    private final EmulatorLog dataObject;
     private SerialPort sP;
     
     /**
@@ -25,7 +30,7 @@ public class ConnectSerialPort
      * is loaded into the constructors of any objects that are part of the data
      * exchange.
      */
-    public ConnectSerialPort(DataObject dO)
+    public ConnectSerialPort(EmulatorLog dO)
     {
         this.dataObject = dO;
     }
@@ -49,6 +54,19 @@ public class ConnectSerialPort
      * @return The serial port object.
      */
     public SerialPort connect ( String portName)  
+    {
+        return connect(portName, DEFAULT_BAUD_RATE);
+    }
+    
+    /**
+     * Same as {@link #connect(String)} but with a selectable baud rate.
+     *
+     * @param portName The String value of the serial port number (e.g. "COM3").
+     * @param baudRate The baud rate (e.g. 115200, 230400, 460800, 921600).
+     * 
+     * @return The serial port object.
+     */
+    public SerialPort connect ( String portName, int baudRate)  
     {
         
         try
@@ -73,7 +91,7 @@ public class ConnectSerialPort
                     SerialPort serialPort = (SerialPort)commPort;
                     
                     // Set the serial port connection parameters.
-                    serialPort.setSerialPortParams(115200,SerialPort.DATABITS_8,
+                    serialPort.setSerialPortParams(baudRate,SerialPort.DATABITS_8,
                                      SerialPort.STOPBITS_1,SerialPort.PARITY_NONE);
                     serialPort.setFlowControlMode(SerialPort.FLOWCONTROL_NONE);
                     
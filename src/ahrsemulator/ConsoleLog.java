@@ -0,0 +1,45 @@
+package ahrsemulator;
+
+import java.io.PrintStream;
+
+/**
+ * EmulatorLog that writes to the console - used by the headless launcher.
+ *
+ * @author Mike Fouche
+ */
+public class ConsoleLog implements EmulatorLog
+{
+    // Stream the messages are written to.
+    private final PrintStream console;
+
+    /**
+     * Constructor - writes to standard output.
+     */
+    public ConsoleLog()
+    {
+        this(System.out);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param console Stream the messages are written to.
+     */
+    public ConsoleLog(PrintStream console)
+    {
+        this.console = console;
+    }
+
+    @Override
+    public void setSentData(String text)
+    {
+        console.println(text);
+    }
+
+    @Override
+    public void setReceivedData(String text)
+    {
+        console.println("<< "+text);
+    }
+
+} // end of class ConsoleLog
@@ -8,14 +8,27 @@ import javax.swing.JTextArea;
 /**
  * This class provides a means to exchange data between different classes.  It
  * is loaded into the constructors of those particular classes.
+ * <p>
+ * The display window text is handed to the Swing event thread through a
+ * TextAreaLog, so the emulator threads can log at any rate without touching
+ * Swing themselves.
  *
  * @author Mike Fouche
  */
-public class DataObject 
+public class DataObject implements EmulatorLog
 {
-    private JTextArea sentData;
-    
-    private JTextArea receivedData;
+    // Most messages waiting for the event thread, per display window.
+    private static final int LOG_CAPACITY = 4096;
+    // Most lines kept in each display window.
+    private static final int MAX_LINES = 2000;
+
+    // Feeds the right display window.
+    private TextAreaLog sentData;
+    // Feeds the left display window.
+    private TextAreaLog receivedData;
+    // Takes the text while there is no display window (e.g. an emulator
+    // fleet without a GUI).
+    private final ConsoleLog console = new ConsoleLog();
     // Serial port object.
     private SerialPort sP;
     private boolean serialConnect;
@@ -35,7 +48,7 @@ public class DataObject
      */
     public void loadSentData(JTextArea sD)
     {
-        this.sentData = sD;
+        this.sentData = new TextAreaLog(sD, LOG_CAPACITY, MAX_LINES);
     }
     
     /**
@@ -43,10 +56,16 @@ public class DataObject
      * 
      * @param text
      */
+    @Override
     public void setSentData(String text)
     {
-        this.sentData.append(text+"\n");
-        this.sentData.setCaretPosition(sentData.getDocument().getLength());
+        if( sentData == null )
+        {
+            console.setSentData(text);
+            return;
+        }
+        
+        this.sentData.append(text);
     } 
     
     /**
@@ -56,7 +75,7 @@ public class DataObject
      */
     public void loadReceivedData(JTextArea rD)
     {
-        this.receivedData = rD;
+        this.receivedData = new TextAreaLog(rD, LOG_CAPACITY, MAX_LINES);
     }        
 
     /**
@@ -64,10 +83,16 @@ public class DataObject
      * 
      * @param text Text to be written in the left display window.
      */
+    @Override
     public void setReceivedData(String text)
     {
-        this.receivedData.append(text+"\n");
-        this.receivedData.setCaretPosition(receivedData.getDocument().getLength());
+        if( receivedData == null )
+        {
+            console.setReceivedData(text);
+            return;
+        }
+        
+        this.receivedData.append(text);
     }
     
     /**
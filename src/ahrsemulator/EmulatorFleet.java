@@ -0,0 +1,374 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs many independent AHRS emulators inside one JVM.
+ * <p>
+ * Each emulator has its own model, transport, and time step (how often its
+ * transport is serviced).  Instead of one thread per emulator, a small pool of
+ * worker threads shares them: each worker owns a slice of the emulators,
+ * services the ones that are due, and parks until the next one is due.  An
+ * emulator's service call never blocks - it only processes the data requests
+ * that have already arrived - so a few threads can carry hundreds of
+ * emulators.
+ * <p>
+ * Continuous mode emulators are woken for their packet deadlines as well, so
+ * the parking time is also the next streaming deadline in the slice.
+ *
+ * @author Mike Fouche
+ */
+public class EmulatorFleet
+{
+    // This object is used to exchanged data between different objects - it
+    // is loaded into the constructors of any objects that are part of the data
+    // exchange.
+    private final EmulatorLog dataObject;
+    // Number of worker threads.
+    private final int poolSize;
+    // The emulators, in the order they were added.
+    private final List<AHRSOutput> emulators;
+    // Time step (service period) of each emulator in nanoseconds.
+    private final List<Long> periods;
+    // Worker threads - null until the fleet is started.
+    private Thread[] workers;
+    // True while the fleet is running.
+    private volatile boolean running;
+
+    /**
+     * Constructor - one worker thread per processor.
+     *
+     * @param dO Data object which is used to report the emulator status.
+     */
+    public EmulatorFleet(EmulatorLog dO)
+    {
+        this(Runtime.getRuntime().availableProcessors(), dO);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param poolSize Number of worker threads shared by all emulators.
+     * @param dO Data object which is used to report the emulator status.
+     */
+    public EmulatorFleet(int poolSize, EmulatorLog dO)
+    {
+        this.poolSize = Math.max(1, poolSize);
+        this.dataObject = dO;
+
+        emulators = new ArrayList<>();
+        periods = new ArrayList<>();
+        running = false;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Adds an emulator to the fleet.  Emulators can only be added before the
+     * fleet is started.
+     *
+     * @param link The transport the emulator answers on.
+     * @param ahrsNum The AHRS model number (1 = 3DM-GX2, 2 = 3DM-GX4-25, etc.).
+     * @param timeStepMicros How often the transport is serviced, in
+     * microseconds.
+     * @return The emulator.
+     */
+    public synchronized AHRSOutput add(Transport link, int ahrsNum, long timeStepMicros)
+    {
+        if( workers != null )
+        {
+            throw new IllegalStateException("Emulator fleet is already running");
+        }
+
+        AHRSOutput emulator = new AHRSOutput(link, ahrsNum, dataObject);
+        emulators.add(emulator);
+        periods.add(TimeUnit.MICROSECONDS.toNanos(Math.max(1, timeStepMicros)));
+
+        return emulator;
+    }
+
+    /**
+     * Retrieves the number of emulators in the fleet.
+     *
+     * @return The fleet size.
+     */
+    public synchronized int size()
+    {
+        return emulators.size();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Opens every transport and starts the worker threads.  An emulator whose
+     * transport cannot be opened is reported and left out.
+     */
+    public synchronized void start()
+    {
+        if( workers != null )
+        {
+            return;
+        }
+
+        List<AHRSOutput> live = new ArrayList<>();
+        List<Long> livePeriods = new ArrayList<>();
+
+        for(int k = 0; k < emulators.size(); k++)
+        {
+            AHRSOutput emulator = emulators.get(k);
+
+            // The workers are shared - an emulator that is stopped must not
+            // interrupt them.
+            if( !emulator.getLifecycle().begin(null) )
+            {
+                continue;
+            }
+
+            try
+            {
+                emulator.openLink();
+                emulator.getLifecycle().running();
+                live.add(emulator);
+                livePeriods.add(periods.get(k));
+            }
+            catch(IOException e)
+            {
+                dataObject.setSentData("Unable to open "+emulator.getTransport().getName()
+                                       +" for "+emulator.getModelName()+": "+e);
+                emulator.getLifecycle().finished(e);
+            }
+        }
+
+        running = true;
+
+        int nWorkers = Math.max(1, Math.min(poolSize, live.size()));
+        workers = new Thread[nWorkers];
+
+        for(int w = 0; w < nWorkers; w++)
+        {
+            // Deal the emulators out to the workers like cards.
+            List<AHRSOutput> slice = new ArrayList<>();
+            List<Long> slicePeriods = new ArrayList<>();
+            for(int k = w; k < live.size(); k += nWorkers)
+            {
+                slice.add(live.get(k));
+                slicePeriods.add(livePeriods.get(k));
+            }
+
+            workers[w] = new Thread(new Worker(slice, slicePeriods), "EmulatorFleet-"+w);
+            workers[w].setDaemon(true);
+            workers[w].start();
+        }
+
+        dataObject.setSentData("Emulator fleet started: "+live.size()+" emulators on "
+                               +nWorkers+" threads");
+    }
+
+    /**
+     * Summarizes the continuous mode statistics of the fleet.
+     *
+     * @return The statistics as text, or null if no emulator is in continuous
+     * mode.
+     */
+    public synchronized String streamReport()
+    {
+        int n = 0;
+        double rate = 0.0;
+        double meanJitter = 0.0;
+        double maxJitter = 0.0;
+        long missed = 0;
+
+        for (AHRSOutput emulator : emulators)
+        {
+            RateScheduler rs = emulator.getStreamScheduler();
+            if( rs != null )
+            {
+                n++;
+                rate += rs.getAchievedRate();
+                meanJitter += rs.getMeanJitterMicros();
+                maxJitter = Math.max(maxJitter, rs.getMaxJitterMicros());
+                missed += rs.getMissed();
+            }
+        }
+
+        if( n == 0 )
+        {
+            return null;
+        }
+
+        return String.format("%d streaming emulators: %.1f Hz average achieved rate, "
+                             +"jitter mean %.1f us / max %.1f us, %d missed",
+                             n, rate / n, meanJitter / n, maxJitter, missed);
+    }
+
+    /**
+     * Stops the worker threads and closes every transport.
+     */
+    public synchronized void stop()
+    {
+        if( workers == null )
+        {
+            return;
+        }
+
+        running = false;
+
+        for (Thread worker : workers)
+        {
+            LockSupport.unpark(worker);
+            try
+            {
+                worker.join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        for (AHRSOutput emulator : emulators)
+        {
+            emulator.closeLink();
+            emulator.unregisterMetrics();
+            emulator.getLifecycle().finished(null);
+        }
+
+        workers = null;
+
+        String report = streamReport();
+        if( report != null )
+        {
+            dataObject.setSentData(report);
+        }
+        dataObject.setSentData("Emulator fleet stopped");
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class - one worker thread and the slice of emulators it services
+    private class Worker implements Runnable
+    {
+        private final AHRSOutput[] slice;
+        private final long[] period;
+        // Time (System.nanoTime) at which each emulator is next due.
+        private final long[] due;
+
+        public Worker(List<AHRSOutput> emulators, List<Long> periods)
+        {
+            slice = emulators.toArray(new AHRSOutput[emulators.size()]);
+            period = new long[slice.length];
+            due = new long[slice.length];
+
+            long now = System.nanoTime();
+            for(int k = 0; k < slice.length; k++)
+            {
+                period[k] = periods.get(k);
+                due[k] = now;
+
+                // Continuous and replay mode emulators start their packet
+                // clocks now.
+                try
+                {
+                    slice[k].startStream(now);
+                }
+                catch(IOException e)
+                {
+                    dataObject.setSentData("Exception in module "
+                                           +slice[k].getModelName()+" on "
+                                           +slice[k].getTransport().getName()+": "+e);
+                    retire(k, e);
+                }
+            }
+        }
+
+        /**
+         * Drops an emulator from the slice - its link, writer, and pre-render
+         * threads are closed, and its counts live on in the model totals.
+         *
+         * @param k Index of the emulator.
+         * @param failure Why it stopped, or null if it was asked to.
+         */
+        private void retire(int k, Throwable failure)
+        {
+            slice[k].closeLink();
+            slice[k].unregisterMetrics();
+            slice[k].getLifecycle().finished(failure);
+            slice[k] = null;
+        }
+
+        @Override
+        public void run()
+        {
+            while( running )
+            {
+                long now = System.nanoTime();
+                // Time until the next emulator is due.
+                long wait = Long.MAX_VALUE;
+
+                for(int k = 0; k < slice.length; k++)
+                {
+                    // Skip emulators that have failed.
+                    if( slice[k] == null )
+                    {
+                        continue;
+                    }
+
+                    // Drop emulators that have been told to stop on their own.
+                    if( !slice[k].getLifecycle().isActive() )
+                    {
+                        retire(k, null);
+                        continue;
+                    }
+
+                    try
+                    {
+                        if( now - due[k] >= 0 )
+                        {
+                            slice[k].service();
+
+                            due[k] += period[k];
+                            // Fell behind - don't try to catch up with a burst.
+                            if( now - due[k] > 0 )
+                            {
+                                due[k] = now + period[k];
+                            }
+                        }
+
+                        wait = Math.min(wait, due[k] - now);
+
+                        // Continuous / replay mode - send the data packet if it
+                        // is due and wake up in time for the next one.
+                        if( slice[k].isStreaming() )
+                        {
+                            long next = slice[k].serviceStream(System.nanoTime());
+                            wait = Math.min(wait, next - now);
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        dataObject.setSentData("Exception in module "
+                                               +slice[k].getModelName()+" on "
+                                               +slice[k].getTransport().getName()+": "+e);
+                        retire(k, e);
+                    }
+                }
+
+                if( wait == Long.MAX_VALUE )
+                {
+                    // Every emulator in this slice has failed or stopped.
+                    return;
+                }
+
+                // Subtract the time spent servicing.
+                wait -= System.nanoTime() - now;
+                if( wait > 0 )
+                {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+        }
+
+    } // end of inner class Worker
+
+} // end of class EmulatorFleet
@@ -0,0 +1,184 @@
+package ahrsemulator;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lifecycle of one emulator - NEW, STARTING, RUNNING, STOPPING, STOPPED.
+ * <p>
+ * The state is an atomic reference, so any thread can ask an emulator to
+ * stop without locks and without waiting: stop() moves the state to STOPPING,
+ * interrupts the emulator thread (which wakes it from a blocking read - see
+ * the transports), and returns a future that completes once the emulator has
+ * actually let go of its link.  Likewise the started future completes once
+ * the link is open.  Callers that must not block - the Swing event thread -
+ * chain their follow-up work onto the futures instead of polling.
+ *
+ * @author Mike Fouche
+ */
+public class EmulatorLifecycle
+{
+    /**
+     * Emulator states.
+     */
+    public enum State
+    {
+        /** Created, not started. */
+        NEW,
+        /** Opening the link. */
+        STARTING,
+        /** Serving the host. */
+        RUNNING,
+        /** Asked to stop, not stopped yet. */
+        STOPPING,
+        /** Finished - the link is no longer used. */
+        STOPPED
+    }
+
+    // Current state.
+    private final AtomicReference<State> state;
+    // Completes when the emulator is running (exceptionally if it never got
+    // there).
+    private final CompletableFuture<Void> started;
+    // Completes when the emulator has stopped.
+    private final CompletableFuture<Void> stopped;
+    // Thread to interrupt on stop - null if the emulator shares a thread (an
+    // EmulatorFleet worker).
+    private volatile Thread owner;
+
+    /**
+     * Constructor
+     */
+    public EmulatorLifecycle()
+    {
+        state = new AtomicReference<>(State.NEW);
+        started = new CompletableFuture<>();
+        stopped = new CompletableFuture<>();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Moves from NEW to STARTING.
+     *
+     * @param thread The thread that runs the emulator, or null if it must not
+     * be interrupted.
+     * @return False if the emulator was already started (or stopped).
+     */
+    public boolean begin(Thread thread)
+    {
+        owner = thread;
+        return state.compareAndSet(State.NEW, State.STARTING);
+    }
+
+    /**
+     * Moves from STARTING to RUNNING - the link is open.
+     */
+    public void running()
+    {
+        if( state.compareAndSet(State.STARTING, State.RUNNING) )
+        {
+            started.complete(null);
+        }
+    }
+
+    /**
+     * Moves to STOPPED - the emulator has let go of its link.
+     *
+     * @param failure Why the emulator stopped, or null if it was asked to.
+     */
+    public void finished(Throwable failure)
+    {
+        state.set(State.STOPPED);
+        owner = null;
+
+        if( !started.isDone() )
+        {
+            started.completeExceptionally(( failure != null ) ? failure
+                                          : new CancellationException("Stopped before it started"));
+        }
+        stopped.complete(null);
+    }
+
+    /**
+     * Asks the emulator to stop.  Does not wait.
+     *
+     * @return Completes once the emulator has stopped.
+     */
+    public CompletableFuture<Void> stop()
+    {
+        while( true )
+        {
+            State s = state.get();
+            switch (s)
+            {
+                case NEW:
+                    // Never started - nothing to wait for.
+                    if( state.compareAndSet(s, State.STOPPING) )
+                    {
+                        finished(null);
+                        return stopped;
+                    }
+                    break;
+                case STARTING:
+                case RUNNING:
+                    if( state.compareAndSet(s, State.STOPPING) )
+                    {
+                        Thread t = owner;
+                        if( t != null )
+                        {
+                            t.interrupt();
+                        }
+                        return stopped;
+                    }
+                    break;
+                default:
+                    return stopped;
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves whether the emulator should keep serving - the loops check
+     * this between reads.
+     *
+     * @return True while STARTING or RUNNING.
+     */
+    public boolean isActive()
+    {
+        State s = state.get();
+        return s == State.STARTING || s == State.RUNNING;
+    }
+
+    /**
+     * Retrieves the current state.
+     *
+     * @return The state.
+     */
+    public State getState()
+    {
+        return state.get();
+    }
+
+    /**
+     * Retrieves the future that completes when the emulator is running.
+     *
+     * @return The started future.
+     */
+    public CompletableFuture<Void> getStarted()
+    {
+        return started;
+    }
+
+    /**
+     * Retrieves the future that completes when the emulator has stopped.
+     *
+     * @return The stopped future.
+     */
+    public CompletableFuture<Void> getStopped()
+    {
+        return stopped;
+    }
+
+} // end of class EmulatorLifecycle
@@ -0,0 +1,31 @@
+package ahrsemulator;
+
+/**
+ * Where the emulation core sends its user messages.
+ * <p>
+ * The GUI implementation is DataObject, which writes to the two display
+ * windows.  The headless launcher uses ConsoleLog.  The emulation classes
+ * (AHRSOutput, EmulatorFleet, EmulatorMain, the transports) only know about
+ * this interface, so they can run without loading any AWT / Swing classes.
+ *
+ * @author Mike Fouche
+ */
+public interface EmulatorLog
+{
+    /**
+     * Displays a message about data sent / emulator status (the right display
+     * window in the GUI).
+     *
+     * @param text Text to be displayed.
+     */
+    void setSentData(String text);
+
+    /**
+     * Displays a message about data received (the left display window in the
+     * GUI).
+     *
+     * @param text Text to be displayed.
+     */
+    void setReceivedData(String text);
+
+} // end of interface EmulatorLog
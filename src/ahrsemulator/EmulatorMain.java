@@ -16,7 +16,7 @@ public class EmulatorMain
     // This object is used to exchanged data between different objects - it
     // is loaded into the constructors of any objects that are part of the data
     // exchange.
-    private final DataObject dataObject;
+    private final EmulatorLog dataObject;
     // The String of AHRS model names.  This will be used in the HashMap to map
     // AHRS number to the name.
     private final String[] ahrsModelNames;
@@ -29,7 +29,7 @@ public class EmulatorMain
      * 
      * @param dO DataObject for exchanging data between different objects.
      */
-    public EmulatorMain(DataObject dO)
+    public EmulatorMain(EmulatorLog dO)
     {
         this.dataObject = dO;
         
@@ -63,4 +63,39 @@ public class EmulatorMain
         dataObject.setSentData(initAHRS);
     }
     
+    /**
+     * Retrieves the AHRS model name.
+     * 
+     * @param ahrsNum The AHRS number - e.g. 1 = 3DM-GX2, etc.
+     * @return The model name.
+     */
+    public String getModelName(int ahrsNum)
+    {
+        return modelType.get(ahrsNum);
+    }
+    
+    /**
+     * Looks up the AHRS number for a model name - e.g. "3DM-GX4-25" (or just
+     * "GX4-25", or "2") returns 2.
+     * 
+     * @param name The AHRS model name or number.
+     * @return The AHRS number, or -1 if the name is not recognized.
+     */
+    public int getModelNumber(String name)
+    {
+        String key = name.trim().toUpperCase();
+        
+        for(int i = 1; i <= modelType.size(); i++)
+        {
+            String model = modelType.get(i);
+            if( model.equals(key) || model.equals("3DM-"+key) 
+                                  || Integer.toString(i).equals(key) )
+            {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
 } // end of class EmulatorMain
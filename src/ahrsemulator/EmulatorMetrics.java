@@ -0,0 +1,307 @@
+package ahrsemulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and the request to response latency histogram of one emulator.
+ * <p>
+ * Every counter is an atomic long and the histogram is a fixed array of
+ * atomic buckets, so the emulator can record on its hot path without locks
+ * or allocation while JMX and the Prometheus endpoint read the values from
+ * other threads.
+ *
+ * @author Mike Fouche
+ */
+public class EmulatorMetrics implements EmulatorMetricsMBean
+{
+    // Source of the emulator ids.
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    // Emulator id - tells apart emulators on transports with the same name.
+    private final int id;
+    // AHRS model name.
+    private final String model;
+    // Transport name.
+    private final String transport;
+    // Data requests received.
+    private final AtomicLong requests;
+    // Data packets sent.
+    private final AtomicLong packets;
+    // Bytes received from the host.
+    private final AtomicLong bytesIn;
+    // Bytes sent to the host.
+    private final AtomicLong bytesOut;
+    // Commands that were not understood.
+    private final AtomicLong parseErrors;
+    // Commands dropped because of a bad checksum.
+    private final AtomicLong checksumFailures;
+    // Request to response latency.
+    private final LatencyHistogram latency;
+    // Data packets thrown away because the link could not keep up.
+    private final AtomicLong droppedPackets;
+    // Time the emulator waited for a free output queue slot (nanoseconds).
+    private final AtomicLong queueStallNanos;
+    // Output queue of the emulator - null if it writes straight to the
+    // transport.
+    private volatile PacketQueue outputQueue;
+
+    /**
+     * Constructor
+     *
+     * @param model The AHRS model name.
+     * @param transport The transport name.
+     */
+    public EmulatorMetrics(String model, String transport)
+    {
+        this.id = NEXT_ID.incrementAndGet();
+        this.model = model;
+        this.transport = transport;
+
+        requests = new AtomicLong();
+        packets = new AtomicLong();
+        bytesIn = new AtomicLong();
+        bytesOut = new AtomicLong();
+        parseErrors = new AtomicLong();
+        checksumFailures = new AtomicLong();
+        latency = new LatencyHistogram();
+        droppedPackets = new AtomicLong();
+        queueStallNanos = new AtomicLong();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Counts a data request.
+     */
+    public void addRequest()
+    {
+        requests.incrementAndGet();
+    }
+
+    /**
+     * Counts a data packet sent.
+     *
+     * @param bytes Packet length.
+     */
+    public void addPacket(int bytes)
+    {
+        packets.incrementAndGet();
+        bytesOut.addAndGet(bytes);
+    }
+
+    /**
+     * Counts bytes received from the host.
+     *
+     * @param bytes Number of bytes.
+     */
+    public void addBytesIn(int bytes)
+    {
+        bytesIn.addAndGet(bytes);
+    }
+
+    /**
+     * Counts a command that was not understood.
+     */
+    public void addParseError()
+    {
+        parseErrors.incrementAndGet();
+    }
+
+    /**
+     * Counts bytes that were skipped because they were not understood.
+     *
+     * @param n Number of bytes.
+     */
+    public void addParseErrors(long n)
+    {
+        parseErrors.addAndGet(n);
+    }
+
+    /**
+     * Counts commands dropped because of a bad checksum.
+     *
+     * @param n Number of commands.
+     */
+    public void addChecksumFailures(long n)
+    {
+        checksumFailures.addAndGet(n);
+    }
+
+    /**
+     * Records the time from a request arriving to the response being sent.
+     *
+     * @param nanos The latency (nanoseconds).
+     */
+    public void addLatency(long nanos)
+    {
+        latency.record(nanos);
+    }
+
+    /**
+     * Counts data packets thrown away because the link could not keep up.
+     *
+     * @param n Number of packets.
+     */
+    public void addDroppedPackets(long n)
+    {
+        droppedPackets.addAndGet(n);
+    }
+
+    /**
+     * Counts time the emulator waited for a free output queue slot.
+     *
+     * @param nanos The wait (nanoseconds).
+     */
+    public void addQueueStall(long nanos)
+    {
+        queueStallNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Publishes the depth of the emulator's output queue.
+     *
+     * @param queue The output queue - null for none.
+     */
+    public void setOutputQueue(PacketQueue queue)
+    {
+        this.outputQueue = queue;
+    }
+
+    /**
+     * Adds all the counts of another emulator to these - used to keep the
+     * model totals when an emulator goes away.
+     *
+     * @param other The other emulator's metrics.
+     */
+    public void add(EmulatorMetrics other)
+    {
+        requests.addAndGet(other.getRequests());
+        packets.addAndGet(other.getPacketsSent());
+        bytesIn.addAndGet(other.getBytesIn());
+        bytesOut.addAndGet(other.getBytesOut());
+        parseErrors.addAndGet(other.getParseErrors());
+        checksumFailures.addAndGet(other.getChecksumFailures());
+        latency.add(other.latency);
+        droppedPackets.addAndGet(other.getDroppedPackets());
+        queueStallNanos.addAndGet(other.queueStallNanos.get());
+    }
+
+    /**
+     * Retrieves the emulator id.
+     *
+     * @return The id - unique within the JVM.
+     */
+    public int getId()
+    {
+        return id;
+    }
+
+    /**
+     * Retrieves the request to response latency histogram.
+     *
+     * @return The histogram.
+     */
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    //--------------------------------------------------------------------------
+    @Override
+    public String getModel()
+    {
+        return model;
+    }
+
+    @Override
+    public String getTransport()
+    {
+        return transport;
+    }
+
+    @Override
+    public long getRequests()
+    {
+        return requests.get();
+    }
+
+    @Override
+    public long getPacketsSent()
+    {
+        return packets.get();
+    }
+
+    @Override
+    public long getBytesIn()
+    {
+        return bytesIn.get();
+    }
+
+    @Override
+    public long getBytesOut()
+    {
+        return bytesOut.get();
+    }
+
+    @Override
+    public long getParseErrors()
+    {
+        return parseErrors.get();
+    }
+
+    @Override
+    public long getChecksumFailures()
+    {
+        return checksumFailures.get();
+    }
+
+    @Override
+    public long getDroppedPackets()
+    {
+        return droppedPackets.get();
+    }
+
+    @Override
+    public int getOutputQueueDepth()
+    {
+        PacketQueue queue = outputQueue;
+        return ( queue == null ) ? 0 : queue.size();
+    }
+
+    @Override
+    public double getOutputQueueStallMillis()
+    {
+        return queueStallNanos.get() / 1.0e6;
+    }
+
+    @Override
+    public double getLatencyMeanMicros()
+    {
+        return latency.getMean() / 1000.0;
+    }
+
+    @Override
+    public double getLatencyP50Micros()
+    {
+        return latency.getValueAtPercentile(50.0) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyP99Micros()
+    {
+        return latency.getValueAtPercentile(99.0) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyP999Micros()
+    {
+        return latency.getValueAtPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyMaxMicros()
+    {
+        return latency.getMax() / 1000.0;
+    }
+
+} // end of class EmulatorMetrics
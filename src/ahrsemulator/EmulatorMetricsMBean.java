@@ -0,0 +1,94 @@
+package ahrsemulator;
+
+/**
+ * JMX view of the emulator metrics - one MBean per running emulator, and one
+ * per AHRS model with the totals of all its emulators.
+ *
+ * @author Mike Fouche
+ */
+public interface EmulatorMetricsMBean
+{
+    /**
+     * @return The AHRS model name.
+     */
+    String getModel();
+
+    /**
+     * @return The transport name, or "all" for the model totals.
+     */
+    String getTransport();
+
+    /**
+     * @return Number of data requests received.
+     */
+    long getRequests();
+
+    /**
+     * @return Number of data packets sent.
+     */
+    long getPacketsSent();
+
+    /**
+     * @return Number of bytes received from the host.
+     */
+    long getBytesIn();
+
+    /**
+     * @return Number of bytes sent to the host.
+     */
+    long getBytesOut();
+
+    /**
+     * @return Number of commands that were not understood.
+     */
+    long getParseErrors();
+
+    /**
+     * @return Number of commands dropped because of a bad checksum.
+     */
+    long getChecksumFailures();
+
+    /**
+     * @return Number of data packets thrown away because the link could not
+     * keep up.
+     */
+    long getDroppedPackets();
+
+    /**
+     * @return Number of packets waiting in the output queue (0 for the model
+     * totals, or without an output queue).
+     */
+    int getOutputQueueDepth();
+
+    /**
+     * @return Time spent waiting for a free output queue slot
+     * (milliseconds).
+     */
+    double getOutputQueueStallMillis();
+
+    /**
+     * @return Mean request to response latency (microseconds).
+     */
+    double getLatencyMeanMicros();
+
+    /**
+     * @return Median request to response latency (microseconds).
+     */
+    double getLatencyP50Micros();
+
+    /**
+     * @return 99th percentile request to response latency (microseconds).
+     */
+    double getLatencyP99Micros();
+
+    /**
+     * @return 99.9th percentile request to response latency (microseconds).
+     */
+    double getLatencyP999Micros();
+
+    /**
+     * @return Longest request to response latency (microseconds).
+     */
+    double getLatencyMaxMicros();
+
+} // end of interface EmulatorMetricsMBean
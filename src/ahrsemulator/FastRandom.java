@@ -0,0 +1,192 @@
+package ahrsemulator;
+
+/**
+ * Seedable random number generator for the sensor noise.
+ * <p>
+ * The generator is xoroshiro128+ - two longs of state, a few shifts and adds
+ * per number, no locking, no allocation - seeded through SplitMix64 so any
+ * seed (including 0) gives a well mixed state.  Gaussian samples use the
+ * ziggurat method with 128 layers: about 98% of the samples are one random
+ * number, one table lookup, and one multiply; the rest fall back to the exact
+ * density, computed with StrictMath.  The same seed gives the same sequence
+ * on every JVM.
+ * <p>
+ * java.util.SplittableRandom has no Gaussian sampler before Java 17, and
+ * java.util.Random synchronizes and uses the slower polar method.
+ *
+ * @author Mike Fouche
+ */
+public final class FastRandom
+{
+    // Number of ziggurat layers.
+    private static final int LAYERS = 128;
+    // Start of the tail of the ziggurat (x of the bottom layer).
+    private static final double TAIL = 3.442619855899;
+    // Area of each layer.
+    private static final double LAYER_AREA = 9.91256303526217e-3;
+    // Scale of the 32 bit signed samples (2^31).
+    private static final double SCALE = 2147483648.0;
+    // Scales a 53 bit integer to [0, 1).
+    private static final double UNIT = 1.0 / ( 1L << 53 );
+
+    // |sample| below this is inside the layer's rectangle - no rejection
+    // test needed.
+    private static final long[] KN = new long[LAYERS];
+    // Converts a 32 bit sample to x for each layer.
+    private static final double[] WN = new double[LAYERS];
+    // The density at the top of each layer.
+    private static final double[] FN = new double[LAYERS];
+
+    static
+    {
+        double dn = TAIL;
+        double tn = dn;
+        double q = LAYER_AREA / StrictMath.exp(-0.5 * dn * dn);
+
+        KN[0] = (long)( ( dn / q ) * SCALE );
+        KN[1] = 0;
+        WN[0] = q / SCALE;
+        WN[LAYERS - 1] = dn / SCALE;
+        FN[0] = 1.0;
+        FN[LAYERS - 1] = StrictMath.exp(-0.5 * dn * dn);
+
+        for(int k = LAYERS - 2; k >= 1; k--)
+        {
+            dn = StrictMath.sqrt(-2.0 * StrictMath.log(LAYER_AREA / dn + StrictMath.exp(-0.5 * dn * dn)));
+            KN[k + 1] = (long)( ( dn / tn ) * SCALE );
+            tn = dn;
+            FN[k] = StrictMath.exp(-0.5 * dn * dn);
+            WN[k] = dn / SCALE;
+        }
+    }
+
+    // Generator state.
+    private long s0;
+    private long s1;
+
+    /**
+     * Constructor
+     *
+     * @param seed Any value - the same seed always gives the same sequence.
+     */
+    public FastRandom(long seed)
+    {
+        setSeed(seed);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Restarts the sequence.
+     *
+     * @param seed Any value - the same seed always gives the same sequence.
+     */
+    public void setSeed(long seed)
+    {
+        s0 = splitMix(seed);
+        s1 = splitMix(seed + 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Mixes a seed into a well distributed 64 bit value (SplitMix64).
+     *
+     * @param seed The seed.
+     * @return The mixed value.
+     */
+    public static long splitMix(long seed)
+    {
+        long z = seed + 0x9E3779B97F4A7C15L;
+        z = ( z ^ ( z >>> 30 ) ) * 0xBF58476D1CE4E5B9L;
+        z = ( z ^ ( z >>> 27 ) ) * 0x94D049BB133111EBL;
+        return z ^ ( z >>> 31 );
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Generates the next 64 random bits.
+     *
+     * @return The random value.
+     */
+    public long nextLong()
+    {
+        long a = s0;
+        long b = s1;
+        long result = a + b;
+
+        b ^= a;
+        s0 = Long.rotateLeft(a, 24) ^ b ^ ( b << 16 );
+        s1 = Long.rotateLeft(b, 37);
+
+        return result;
+    }
+
+    /**
+     * Generates a uniform random number.
+     *
+     * @return A value in [0, 1).
+     */
+    public double nextDouble()
+    {
+        // The low bits of xoroshiro128+ are the weakest - use the top 53.
+        return ( nextLong() >>> 11 ) * UNIT;
+    }
+
+    /**
+     * Generates a normally distributed random number.
+     *
+     * @return A sample with mean 0 and standard deviation 1.
+     */
+    public double nextGaussian()
+    {
+        // The top 32 bits are the signed sample, the 7 below them pick the
+        // layer.
+        long bits = nextLong();
+        int hz = (int)( bits >>> 32 );
+        int iz = (int)( bits >>> 25 ) & ( LAYERS - 1 );
+
+        if( Math.abs((long)hz) < KN[iz] )
+        {
+            return hz * WN[iz];
+        }
+        return gaussianEdge(hz, iz);
+    }
+
+    /**
+     * The sample fell outside a layer's rectangle - accept it against the
+     * density, sample the tail, or start again.
+     */
+    private double gaussianEdge(int hz, int iz)
+    {
+        while( true )
+        {
+            double x = hz * WN[iz];
+
+            if( iz == 0 )
+            {
+                // Bottom layer - sample the tail beyond TAIL.
+                double y;
+                do
+                {
+                    x = -StrictMath.log(1.0 - nextDouble()) / TAIL;
+                    y = -StrictMath.log(1.0 - nextDouble());
+                }
+                while( y + y < x * x );
+
+                return ( hz > 0 ) ? TAIL + x : -TAIL - x;
+            }
+
+            if( FN[iz] + nextDouble() * ( FN[iz - 1] - FN[iz] ) < StrictMath.exp(-0.5 * x * x) )
+            {
+                return x;
+            }
+
+            long bits = nextLong();
+            hz = (int)( bits >>> 32 );
+            iz = (int)( bits >>> 25 ) & ( LAYERS - 1 );
+            if( Math.abs((long)hz) < KN[iz] )
+            {
+                return hz * WN[iz];
+            }
+        }
+    }
+
+} // end of class FastRandom
@@ -0,0 +1,90 @@
+package ahrsemulator;
+
+/**
+ * Table-driven sine for the motion generators.
+ * <p>
+ * The angle is a 64 bit fixed-point phase - the full range of a long is one
+ * revolution - so a sinusoid is advanced by adding (or multiplying by) an
+ * integer phase increment, and wrapping around is just integer overflow.  The
+ * top bits of the phase pick an entry in a 4096 entry table and the next bits
+ * interpolate linearly to the following entry (worst case error about
+ * 3e-7).  Only integer and float arithmetic is involved - no platform math
+ * library - so the result is bit-for-bit the same on every JVM.
+ *
+ * @author Mike Fouche
+ */
+public final class FastSine
+{
+    // log2 of the number of table entries per revolution.
+    private static final int TABLE_BITS = 12;
+    // Number of phase bits used to interpolate between table entries.
+    private static final int FRACTION_BITS = 24;
+    // Scales the interpolation bits to [0, 1).
+    private static final float FRACTION_SCALE = 1.0f / ( 1 << FRACTION_BITS );
+    // One revolution of phase as a double (2^64).
+    private static final double REVOLUTION = 18446744073709551616.0;
+    // A quarter revolution of phase (2^62).
+    private static final long QUARTER = 1L << 62;
+
+    // sin() at each table entry - one extra entry so interpolation never has
+    // to wrap.
+    private static final float[] TABLE = new float[( 1 << TABLE_BITS ) + 1];
+
+    static
+    {
+        for(int k = 0; k < TABLE.length; k++)
+        {
+            TABLE[k] = (float)StrictMath.sin(2.0 * Math.PI * k / ( 1 << TABLE_BITS ));
+        }
+    }
+
+    private FastSine()
+    {
+        // Static methods only.
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Converts an angle to a fixed-point phase.
+     *
+     * @param radians The angle (radians).
+     * @return The phase - 2^64 per revolution, wrapped to a long.
+     */
+    public static long phase(double radians)
+    {
+        double revolutions = radians / ( 2.0 * Math.PI );
+        // Keep only the fraction of a revolution so the conversion can't
+        // saturate.
+        revolutions -= StrictMath.floor(revolutions);
+        // Split in two halves - a double to long conversion saturates at
+        // 2^63.
+        return (long)( revolutions * REVOLUTION / 2.0 ) << 1;
+    }
+
+    /**
+     * Computes the sine of a fixed-point phase.
+     *
+     * @param phase The phase - 2^64 per revolution.
+     * @return The sine.
+     */
+    public static float sin(long phase)
+    {
+        int index = (int)( phase >>> ( 64 - TABLE_BITS ) );
+        int fraction = (int)( phase >>> ( 64 - TABLE_BITS - FRACTION_BITS ) ) & ( ( 1 << FRACTION_BITS ) - 1 );
+
+        float a = TABLE[index];
+        return a + ( TABLE[index + 1] - a ) * ( fraction * FRACTION_SCALE );
+    }
+
+    /**
+     * Computes the cosine of a fixed-point phase.
+     *
+     * @param phase The phase - 2^64 per revolution.
+     * @return The cosine.
+     */
+    public static float cos(long phase)
+    {
+        return sin(phase + QUARTER);
+    }
+
+} // end of class FastSine
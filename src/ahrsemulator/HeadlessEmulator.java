@@ -0,0 +1,443 @@
+package ahrsemulator;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Command-line launcher that runs the emulators without the Swing GUI.
+ * <p>
+ * Only the emulation core (AHRSOutput, EmulatorFleet, EmulatorMain, the
+ * transports) is used - no AWT / Swing classes are loaded and no images are
+ * read, so the emulators are serving as soon as the transports are open.
+ * <p>
+ * Options can be given on the command line or in a properties file (same
+ * keys, without the leading dashes).  The command line wins.
+ * <pre>
+ *   --model     3DM-GX2, 3DM-GX4-25, 3DM-GX3-35, 3DM-GX3-25-OEM (or 1 - 4)
+ *   --transport tcp:PORT, udp:PORT, serial:NAME[@BAUD], nio:PORT,
+ *               nio-mux:PORT
+ *   --count     number of emulators - tcp / udp / nio ports count up from
+ *               PORT
+ *   --rate      how often each emulator services its link (Hz)
+ *   --stream    continuous mode packet rate (Hz) - 0 for poll mode
+ *   --capture   record each emulator's traffic in a capture file
+ *   --replay    play a capture file back instead of generating packets
+ *   --speed     replay speed - 1 for the original timing, 0 for full speed
+ *   --clock     simulated time scale - 1 for real time, 10 for ten times
+ *               faster, 0 for as fast as possible (time moves per packet)
+ *   --noise     add sensor noise and bias drift, seeded (emulator k uses
+ *               SEED + k) - the same seed gives the same data packets
+ *   --queue     output queue depth - packets go to the transport from a
+ *               writer thread of their own (0 to write straight through)
+ *   --overflow  full output queue: block, drop-oldest, or conflate (keep
+ *               only the latest continuous mode packet)
+ *   --coalesce  send the packets of a burst in one write, holding a packet
+ *               at most MICROS microseconds for the others
+ *   --pace      send no faster than a serial line: BAUD[:BITS], BITS per
+ *               character (default 10, 8N1)
+ *   --reply-delay  device response latency on a paced line (microseconds)
+ *   --prerender  render the polled packets this many time steps ahead, so
+ *               a poll is answered with a copy (0 to render on demand)
+ *   --metrics   Prometheus endpoint port (http://localhost:PORT/metrics)
+ *   --threads   worker threads shared by all emulators
+ *   --config    properties file
+ * </pre>
+ * The nio transports serve every emulator from a SelectorServer - a few
+ * selector threads instead of a worker per link - which is the way to run
+ * thousands of emulators on one machine.  With nio:PORT each emulator has its
+ * own port; with nio-mux:PORT all of them share one port and the host picks
+ * one with a "DEVICE n" handshake line.  The selector threads do their own
+ * writing - each burst already goes out in one write - so --queue,
+ * --coalesce, and --pace do not apply to them, and neither does --prerender,
+ * which takes a producer thread per emulator.
+ *
+ * @author Mike Fouche
+ */
+public class HeadlessEmulator
+{
+    // Default settings.
+    private static final String DEFAULT_MODEL = "3DM-GX4-25";
+    private static final String DEFAULT_TRANSPORT = "tcp:5000";
+    private static final String DEFAULT_COUNT = "1";
+    private static final String DEFAULT_RATE = "1000";
+    private static final String DEFAULT_STREAM = "0";
+    private static final String DEFAULT_SPEED = "1";
+    private static final String DEFAULT_CLOCK = "1";
+    private static final String DEFAULT_QUEUE = "0";
+    private static final String DEFAULT_OVERFLOW = "block";
+    private static final String DEFAULT_COALESCE = "0";
+    private static final String DEFAULT_PACE = "0";
+    private static final String DEFAULT_REPLY_DELAY = "0";
+    private static final String DEFAULT_PRERENDER = "0";
+
+    /**
+     *
+     * @param args Command line options - see the class description.
+     */
+    public static void main(String[] args)
+    {
+        long t0 = System.nanoTime();
+        ConsoleLog log = new ConsoleLog();
+
+        Properties settings;
+        try
+        {
+            settings = parseArguments(args);
+        }
+        catch(IOException | IllegalArgumentException e)
+        {
+            System.err.println("Error: "+e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+
+        EmulatorMain eM = new EmulatorMain(log);
+
+        int ahrsNum = eM.getModelNumber(settings.getProperty("model", DEFAULT_MODEL));
+        if( ahrsNum < 0 )
+        {
+            System.err.println("Error: unknown model "+settings.getProperty("model"));
+            printUsage();
+            System.exit(1);
+            return;
+        }
+
+        String spec = settings.getProperty("transport", DEFAULT_TRANSPORT);
+        // Selector threads for the nio transports, or a worker fleet.
+        final boolean nio = spec.toLowerCase().startsWith("nio");
+        final EmulatorFleet fleet;
+        final SelectorServer server;
+        final int count;
+        final int metricsPort;
+        // Capture files to close when the emulators stop.
+        final List<Closeable> files = new ArrayList<>();
+
+        // A bad option (a number that isn't one, an unknown transport or
+        // overflow policy) is reported with the usage, like a bad model.
+        try
+        {
+            count = Integer.parseInt(settings.getProperty("count", DEFAULT_COUNT));
+            double rate = Double.parseDouble(settings.getProperty("rate", DEFAULT_RATE));
+            double stream = Double.parseDouble(settings.getProperty("stream", DEFAULT_STREAM));
+            int threads = Integer.parseInt(settings.getProperty("threads",
+                                  Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+            String captureName = settings.getProperty("capture");
+            String replayName = settings.getProperty("replay");
+            double speed = Double.parseDouble(settings.getProperty("speed", DEFAULT_SPEED));
+            double timeScale = Double.parseDouble(settings.getProperty("clock", DEFAULT_CLOCK));
+            String noiseSeed = settings.getProperty("noise");
+            long seed = ( noiseSeed == null ) ? 0L : Long.parseLong(noiseSeed);
+            int queueDepth = Integer.parseInt(settings.getProperty("queue", DEFAULT_QUEUE));
+            OutputStage.Overflow overflow = parseOverflow(settings.getProperty("overflow", DEFAULT_OVERFLOW));
+            long coalesceMicros = Long.parseLong(settings.getProperty("coalesce", DEFAULT_COALESCE));
+            String pace = settings.getProperty("pace", DEFAULT_PACE);
+            int paceColon = pace.indexOf(':');
+            int paceBaud = Integer.parseInt(( paceColon < 0 ) ? pace : pace.substring(0, paceColon));
+            int paceBits = ( paceColon < 0 ) ? BaudPacer.FRAME_8N1 : Integer.parseInt(pace.substring(paceColon + 1));
+            long replyDelay = Long.parseLong(settings.getProperty("reply-delay", DEFAULT_REPLY_DELAY));
+            int prerenderDepth = Integer.parseInt(settings.getProperty("prerender", DEFAULT_PRERENDER));
+            metricsPort = settings.containsKey("metrics") ? Integer.parseInt(settings.getProperty("metrics"))
+                                                          : -1;
+
+            fleet = nio ? null : new EmulatorFleet(threads, log);
+            server = nio ? new SelectorServer(threads, log) : null;
+            long timeStepMicros = Math.max(1L, Math.round(1.0e6 / rate));
+
+            eM.launchEmulator(ahrsNum);
+            for(int k = 0; k < count; k++)
+            {
+                AHRSOutput emulator = nio ? server.add(ahrsNum, nioPort(spec, k, server))
+                                          : fleet.add(createTransport(spec, k, log), ahrsNum, timeStepMicros);
+                emulator.setContinuous(stream);
+                emulator.setClock(new SimulationClock(timeScale));
+                if( !nio )
+                {
+                    emulator.setOutputQueue(queueDepth, overflow);
+                    emulator.setCoalescing(coalesceMicros);
+                    emulator.setBaudPacing(paceBaud, paceBits, replyDelay);
+                    emulator.setPrerender(prerenderDepth);
+                }
+
+                if( noiseSeed != null )
+                {
+                    emulator.setNoiseModel(NoiseModel.typical(seed + k));
+                }
+
+                if( captureName != null )
+                {
+                    // One file per emulator - NAME, or NAME.0, NAME.1, ...
+                    CaptureWriter writer = new CaptureWriter(( count == 1 ) ? captureName
+                                                                            : captureName+"."+k);
+                    files.add(writer);
+                    emulator.setCapture(writer);
+                }
+
+                if( replayName != null )
+                {
+                    CaptureReader reader = new CaptureReader(replayName);
+                    files.add(reader);
+                    emulator.setReplay(new CaptureReplay(reader, speed));
+                }
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println("Error: "+e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error: "+e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        if( nio )
+        {
+            try
+            {
+                server.start();
+            }
+            catch(IOException e)
+            {
+                System.err.println("Error: "+e.getMessage());
+                System.exit(1);
+                return;
+            }
+        }
+        else
+        {
+            fleet.start();
+        }
+
+        // Metrics are always available over JMX - the scrape endpoint is
+        // optional.
+        final MetricsServer metricsServer;
+        try
+        {
+            metricsServer = ( metricsPort >= 0 )
+                          ? new MetricsServer(MetricsRegistry.getDefault(), metricsPort)
+                          : null;
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error: metrics endpoint - "+e.getMessage());
+            stopEmulators(fleet, server);
+            System.exit(1);
+            return;
+        }
+        if( metricsServer != null )
+        {
+            metricsServer.start();
+            log.setSentData("Metrics at http://localhost:"+metricsServer.getPort()+"/metrics");
+        }
+        log.setSentData(String.format("Serving %d x %s on %s (%.1f ms)", count,
+                                      eM.getModelName(ahrsNum), spec,
+                                      (System.nanoTime() - t0) / 1.0e6));
+
+        // Run until the JVM is told to stop (Ctrl-C, kill).
+        final CountDownLatch done = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override
+            public void run()
+            {
+                stopEmulators(fleet, server);
+                if( metricsServer != null )
+                {
+                    metricsServer.stop();
+                }
+                for (Closeable file : files)
+                {
+                    try
+                    {
+                        file.close();
+                    }
+                    catch(IOException e)
+                    {
+                        // Nothing more can be done.
+                    }
+                }
+                done.countDown();
+            }
+        });
+
+        try
+        {
+            done.await();
+        }
+        catch(InterruptedException e)
+        {
+            stopEmulators(fleet, server);
+        }
+    }
+
+    private static void stopEmulators(EmulatorFleet fleet, SelectorServer server)
+    {
+        if( fleet != null )
+        {
+            fleet.stop();
+        }
+        if( server != null )
+        {
+            server.stop();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Builds a transport from a transport specification.
+     *
+     * @param spec tcp:PORT, udp:PORT, or serial:NAME[@BAUD].
+     * @param index Emulator index - added to the tcp / udp port number.
+     * @param log Where serial port errors are reported.
+     * @return The transport (not yet opened).
+     */
+    public static Transport createTransport(String spec, int index, EmulatorLog log)
+    {
+        int colon = spec.indexOf(':');
+        String kind = ( colon < 0 ) ? spec : spec.substring(0, colon);
+        String address = ( colon < 0 ) ? "" : spec.substring(colon + 1);
+
+        switch (kind.toLowerCase())
+        {
+            case "tcp":
+                return new TcpServerTransport(Integer.parseInt(address) + index);
+            case "udp":
+                return new UdpTransport(Integer.parseInt(address) + index);
+            case "serial":
+                int at = address.indexOf('@');
+                String port = ( at < 0 ) ? address : address.substring(0, at);
+                int baud = ( at < 0 ) ? ConnectSerialPort.DEFAULT_BAUD_RATE
+                                      : Integer.parseInt(address.substring(at + 1));
+                if( index > 0 )
+                {
+                    throw new IllegalArgumentException("Only one emulator per serial port");
+                }
+                return new SerialTransport(port, baud, log);
+            default:
+                throw new IllegalArgumentException("Unknown transport "+spec);
+        }
+    }
+
+    /**
+     * Reads an overflow policy name.
+     *
+     * @param name block, drop-oldest, or conflate.
+     * @return The policy.
+     */
+    static OutputStage.Overflow parseOverflow(String name)
+    {
+        try
+        {
+            return OutputStage.Overflow.valueOf(name.toUpperCase().replace('-', '_'));
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Unknown overflow policy "+name);
+        }
+    }
+
+    /**
+     * Picks an emulator's port for the nio transports.
+     *
+     * @param spec nio:PORT or nio-mux:PORT.
+     * @param index Emulator index - added to the nio port number.
+     * @param server The server - given the shared port for nio-mux.
+     * @return The emulator's own port, or 0 for the shared port only.
+     */
+    static int nioPort(String spec, int index, SelectorServer server)
+    {
+        int colon = spec.indexOf(':');
+        if( colon < 0 )
+        {
+            throw new IllegalArgumentException("No port in "+spec);
+        }
+        String kind = spec.substring(0, colon).toLowerCase();
+        int port = Integer.parseInt(spec.substring(colon + 1));
+
+        switch (kind)
+        {
+            case "nio":
+                return port + index;
+            case "nio-mux":
+                server.setHandshakePort(port);
+                return 0;
+            default:
+                throw new IllegalArgumentException("Unknown transport "+spec);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Reads the --key value options, and the properties file named by
+     * --config.
+     *
+     * @param args Command line options.
+     * @return The settings - the command line overrides the file.
+     * @throws IOException If the properties file cannot be read.
+     */
+    static Properties parseArguments(String[] args) throws IOException
+    {
+        Properties cmdLine = new Properties();
+
+        for(int k = 0; k < args.length; k++)
+        {
+            if( !args[k].startsWith("--") || k + 1 == args.length )
+            {
+                throw new IllegalArgumentException("Bad option "+args[k]);
+            }
+            cmdLine.setProperty(args[k].substring(2), args[++k]);
+        }
+
+        // The config file supplies the defaults, the command line overrides it.
+        Properties settings = new Properties();
+        String config = cmdLine.getProperty("config");
+        if( config != null )
+        {
+            try (InputStream file = new FileInputStream(config))
+            {
+                settings.load(file);
+            }
+        }
+        settings.putAll(cmdLine);
+
+        return settings;
+    }
+
+    private static void printUsage()
+    {
+        System.err.println("Usage: java -cp AHRS-Emulator.jar ahrsemulator.HeadlessEmulator [options]");
+        System.err.println("  --model     3DM-GX2, 3DM-GX4-25, 3DM-GX3-35, 3DM-GX3-25-OEM (default "+DEFAULT_MODEL+")");
+        System.err.println("  --transport tcp:PORT, udp:PORT, serial:NAME[@BAUD] (default "+DEFAULT_TRANSPORT+")");
+        System.err.println("              nio:PORT (port per emulator), nio-mux:PORT (one port, \"DEVICE n\" handshake)");
+        System.err.println("  --count     number of emulators, ports count up from PORT (default "+DEFAULT_COUNT+")");
+        System.err.println("  --rate      link service rate per emulator in Hz (default "+DEFAULT_RATE+")");
+        System.err.println("  --stream    continuous mode packet rate in Hz, 0 = poll mode (default "+DEFAULT_STREAM+")");
+        System.err.println("  --capture   record each emulator's traffic in FILE (FILE.0, FILE.1, ... for several)");
+        System.err.println("  --replay    play FILE back instead of generating data packets");
+        System.err.println("  --speed     replay speed, 1 = original timing, 0 = full speed (default "+DEFAULT_SPEED+")");
+        System.err.println("  --clock     simulated time scale, 1 = real time, 0 = as fast as possible (default "+DEFAULT_CLOCK+")");
+        System.err.println("  --noise     add sensor noise and bias drift seeded with SEED (SEED + k for emulator k)");
+        System.err.println("  --queue     output queue depth in packets, 0 = write straight through (default "+DEFAULT_QUEUE+")");
+        System.err.println("  --overflow  full output queue: block, drop-oldest, conflate (default "+DEFAULT_OVERFLOW+")");
+        System.err.println("  --coalesce  longest a packet waits to share a write in us, 0 = off (default "+DEFAULT_COALESCE+")");
+        System.err.println("  --pace      pace the output to a serial line, BAUD[:BITS] (default "+DEFAULT_PACE+" = off, BITS 10 = 8N1)");
+        System.err.println("  --reply-delay  response latency on a paced line in us (default "+DEFAULT_REPLY_DELAY+")");
+        System.err.println("  --prerender  time steps of polled packets to render ahead, 0 = on demand (default "+DEFAULT_PRERENDER+")");
+        System.err.println("  --metrics   serve Prometheus metrics at http://localhost:PORT/metrics");
+        System.err.println("  --threads   worker / selector threads shared by all emulators (default: processors)");
+        System.err.println("  --config    properties file with the same keys");
+    }
+
+} // end of class HeadlessEmulator
@@ -0,0 +1,195 @@
+package ahrsemulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with HDR-style log-linear buckets.
+ * <p>
+ * Each power of two range of values is split into 32 equal buckets, so every
+ * recorded value is kept to within about 3% - from 1 ns up to about 68 s
+ * (anything longer lands in the last bucket).  The buckets are a fixed array
+ * of atomic counters: recording is one atomic increment of the bucket plus
+ * the count, sum, and maximum - no locks and no allocation, and any number of
+ * threads can record at once.  Reading (percentiles, mean) scans the buckets.
+ *
+ * @author Mike Fouche
+ */
+public class LatencyHistogram
+{
+    // log2 of the number of buckets per power of two.
+    private static final int SUB_BITS = 5;
+    // Number of buckets per power of two.
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Largest value kept exactly (about 68 s in nanoseconds).
+    private static final long MAX_VALUE = ( 1L << 36 ) - 1;
+    // Number of buckets - enough for MAX_VALUE.
+    private static final int BUCKETS = bucket(MAX_VALUE) + 1;
+
+    // Number of values recorded in each bucket.
+    private final AtomicLongArray counts;
+    // Number of values recorded.
+    private final AtomicLong count;
+    // Sum of the values recorded.
+    private final AtomicLong sum;
+    // Largest value recorded.
+    private final AtomicLong max;
+
+    /**
+     * Constructor
+     */
+    public LatencyHistogram()
+    {
+        counts = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Records a value.
+     *
+     * @param nanos The latency (nanoseconds).
+     */
+    public void record(long nanos)
+    {
+        long v = Math.min(Math.max(nanos, 0L), MAX_VALUE);
+
+        counts.incrementAndGet(bucket(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+
+        long m = max.get();
+        while( v > m && !max.compareAndSet(m, v) )
+        {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Adds all the values recorded in another histogram to this one.
+     *
+     * @param other The histogram to add.
+     */
+    public void add(LatencyHistogram other)
+    {
+        for(int k = 0; k < BUCKETS; k++)
+        {
+            long n = other.counts.get(k);
+            if( n != 0 )
+            {
+                counts.addAndGet(k, n);
+            }
+        }
+
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+
+        long v = other.max.get();
+        long m = max.get();
+        while( v > m && !max.compareAndSet(m, v) )
+        {
+            m = max.get();
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves the number of values recorded.
+     *
+     * @return The count.
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * Retrieves the sum of the values recorded.
+     *
+     * @return The sum (nanoseconds).
+     */
+    public long getSum()
+    {
+        return sum.get();
+    }
+
+    /**
+     * Retrieves the largest value recorded.
+     *
+     * @return The maximum (nanoseconds).
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Retrieves the mean of the values recorded.
+     *
+     * @return The mean (nanoseconds), 0 if nothing was recorded.
+     */
+    public double getMean()
+    {
+        long n = count.get();
+        return ( n == 0 ) ? 0.0 : sum.get() / (double)n;
+    }
+
+    /**
+     * Retrieves the value below which a percentage of the recorded values
+     * fall.
+     *
+     * @param percentile The percentage - e.g. 99.9.
+     * @return The highest value of the bucket the percentile falls in
+     * (nanoseconds), 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long total = 0;
+        for(int k = 0; k < BUCKETS; k++)
+        {
+            total += counts.get(k);
+        }
+        if( total == 0 )
+        {
+            return 0;
+        }
+
+        long target = Math.max(1L, (long)Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+        long seen = 0;
+        for(int k = 0; k < BUCKETS; k++)
+        {
+            seen += counts.get(k);
+            if( seen >= target )
+            {
+                return Math.min(highestValue(k), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Works out which bucket a value goes in.  Values below 64 have a bucket
+     * each; above that, the bucket is the top 6 bits of the value plus 32 per
+     * extra bit of magnitude.
+     */
+    private static int bucket(long v)
+    {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(v) - ( SUB_BITS + 1 ));
+        return ( shift << SUB_BITS ) + (int)( v >>> shift );
+    }
+
+    /**
+     * Retrieves the highest value that goes in a bucket.
+     */
+    private static long highestValue(int bucket)
+    {
+        int shift = Math.max(0, ( bucket >> SUB_BITS ) - 1);
+        long sub = bucket - ( (long)shift << SUB_BITS );
+        return ( ( sub + 1 ) << shift ) - 1;
+    }
+
+} // end of class LatencyHistogram
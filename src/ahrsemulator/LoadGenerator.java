@@ -0,0 +1,565 @@
+package ahrsemulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Host side load generator - stands in for the OpenSensorHub driver and polls
+ * the emulators as fast as they will answer, to measure how many polls per
+ * second each model sustains.
+ * <p>
+ * Each connection runs on its own thread and keeps a window of requests in
+ * flight: it sends the whole window, then sends one new request for every
+ * reply that comes back (the replies of one read are answered with one
+ * write).  Every reply is checked - the single byte protocol replies must
+ * echo the command and carry a good checksum, the MIP replies must be IMU
+ * data packets with a good checksum.  A bad reply counts as an error and
+ * frees its place in the window.
+ * <p>
+ * Latency is measured from the write of a request to the arrival of its
+ * reply, so with a window above 1 it includes the time the request waited
+ * behind the others.
+ * <pre>
+ *   --model       3DM-GX2, 3DM-GX4-25, 3DM-GX3-25-OEM (or 1, 2, 4)
+ *   --target      pipe (emulators in this JVM), tcp:HOST:PORT (connection
+ *                 k goes to PORT + k, like HeadlessEmulator --count), or
+ *                 mux:HOST:PORT (connection k asks a nio-mux server for
+ *                 emulator k)
+ *   --connections number of connections
+ *   --window      requests in flight per connection
+ *   --warmup      seconds before measuring starts
+ *   --duration    seconds measured
+ *   --config      properties file
+ * </pre>
+ *
+ * @author Mike Fouche
+ */
+public class LoadGenerator
+{
+    // Default settings.
+    private static final String DEFAULT_MODEL = "3DM-GX2";
+    private static final String DEFAULT_TARGET = "pipe";
+    private static final String DEFAULT_CONNECTIONS = "1";
+    private static final String DEFAULT_WINDOW = "1";
+    private static final String DEFAULT_WARMUP = "2";
+    private static final String DEFAULT_DURATION = "10";
+
+    // Single byte protocol Euler angle request, and the length of its reply.
+    private static final byte[] SINGLE_BYTE_REQUEST = {(byte)SingleByteProtocol.EULER_ANGLES};
+    private static final int SINGLE_BYTE_REPLY = 19;
+    // MIP poll IMU data (stored format, no ACK), and the length of the
+    // default (Euler angle) reply.
+    private static final byte[] MIP_REQUEST = {0x75, 0x65, 0x0C, 0x04, 0x04, 0x01, 0x01, 0x00, 0x00, 0x00};
+    private static final int MIP_REPLY = 20;
+
+    static
+    {
+        int checksumOffset = MIP_REQUEST.length - 2;
+        Checksum.put(Checksum.mip(Checksum.INITIAL, MIP_REQUEST, 0, checksumOffset),
+                     MIP_REQUEST, checksumOffset);
+    }
+
+    // The AHRS model being polled.
+    private final int ahrsNum;
+    // Requests in flight per connection.
+    private final int window;
+    // The connections.
+    private final List<Connection> connections;
+    // Latency of every reply received while measuring.
+    private final LatencyHistogram latency;
+    // True while the replies are counted.
+    private volatile boolean measuring;
+    // True until the connections are told to stop.
+    private volatile boolean running;
+    // Measured time (nanoseconds).
+    private long measuredNanos;
+
+    /**
+     * Constructor
+     *
+     * @param ahrsNum The AHRS model number - 1, 2, or 4.
+     * @param window Requests in flight per connection.
+     */
+    public LoadGenerator(int ahrsNum, int window)
+    {
+        if( ahrsNum != 1 && ahrsNum != 2 && ahrsNum != 4 )
+        {
+            throw new IllegalArgumentException("No polling protocol for AHRS model "+ahrsNum);
+        }
+        if( window < 1 )
+        {
+            throw new IllegalArgumentException("Window must be at least 1: "+window);
+        }
+
+        this.ahrsNum = ahrsNum;
+        this.window = window;
+        connections = new ArrayList<>();
+        latency = new LatencyHistogram();
+    }
+
+    /**
+     *
+     * @param args Command line options - see the class description.
+     */
+    public static void main(String[] args)
+    {
+        ConsoleLog log = new ConsoleLog();
+
+        Properties settings;
+        try
+        {
+            settings = HeadlessEmulator.parseArguments(args);
+        }
+        catch(IOException | IllegalArgumentException e)
+        {
+            System.err.println("Error: "+e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+
+        EmulatorMain eM = new EmulatorMain(log);
+        int ahrsNum = eM.getModelNumber(settings.getProperty("model", DEFAULT_MODEL));
+        String target = settings.getProperty("target", DEFAULT_TARGET);
+        int count;
+        double warmup;
+        double duration;
+
+        LoadGenerator generator;
+        try
+        {
+            count = Integer.parseInt(settings.getProperty("connections", DEFAULT_CONNECTIONS));
+            int window = Integer.parseInt(settings.getProperty("window", DEFAULT_WINDOW));
+            warmup = Double.parseDouble(settings.getProperty("warmup", DEFAULT_WARMUP));
+            duration = Double.parseDouble(settings.getProperty("duration", DEFAULT_DURATION));
+
+            generator = new LoadGenerator(ahrsNum, window);
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println("Error: "+e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+
+        try
+        {
+            for(int k = 0; k < count; k++)
+            {
+                if( target.equals("pipe") )
+                {
+                    final PipeTransport link = new PipeTransport();
+                    final AHRSOutput emulator = new AHRSOutput(link, ahrsNum, log);
+                    emulator.startEmulator().join();
+
+                    // Stop the emulator before its link goes away.
+                    generator.addConnection(link.getHostInputStream(), link.getHostOutputStream(), () ->
+                    {
+                        emulator.stopEmulator().join();
+                        link.close();
+                    });
+                }
+                else if( target.startsWith("tcp:") || target.startsWith("mux:") )
+                {
+                    boolean mux = target.startsWith("mux:");
+                    int colon = target.lastIndexOf(':');
+                    String host = ( colon > 4 ) ? target.substring(4, colon) : "localhost";
+                    int port = Integer.parseInt(target.substring(colon + 1)) + ( mux ? 0 : k );
+
+                    Socket socket = new Socket(host, port);
+                    socket.setTcpNoDelay(true);
+                    if( mux )
+                    {
+                        socket.getOutputStream().write(("DEVICE "+k+"\n").getBytes(StandardCharsets.US_ASCII));
+                    }
+                    generator.addConnection(socket.getInputStream(), socket.getOutputStream(), socket);
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Unknown target "+target);
+                }
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println("Error: "+e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+        catch(IOException e)
+        {
+            System.err.println("Error: "+e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        try
+        {
+            generator.run(Math.round(warmup * 1000.0), Math.round(duration * 1000.0));
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        System.out.println(eM.getModelName(ahrsNum)+" on "+target+": "+generator.report());
+        System.exit(0);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Adds a connection to an emulator.  Must be called before run().
+     *
+     * @param in Stream the replies are read from.
+     * @param out Stream the requests are written to.
+     * @param link Closed when the run is over (unblocks a read) - may be
+     * null.
+     */
+    public void addConnection(InputStream in, OutputStream out, Closeable link)
+    {
+        connections.add(new Connection(connections.size(), in, out, link));
+    }
+
+    /**
+     * Polls over every connection, then stops the connections and closes the
+     * links.
+     *
+     * @param warmupMillis Time before measuring starts (milliseconds).
+     * @param durationMillis Time measured (milliseconds).
+     * @throws InterruptedException If the thread is interrupted while
+     * waiting.
+     */
+    public void run(long warmupMillis, long durationMillis) throws InterruptedException
+    {
+        running = true;
+        List<Thread> threads = new ArrayList<>();
+        for (Connection c : connections)
+        {
+            Thread t = new Thread(c, "LoadGenerator-"+c.index);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+
+        Thread.sleep(warmupMillis);
+
+        long t0 = System.nanoTime();
+        measuring = true;
+        Thread.sleep(durationMillis);
+        measuring = false;
+        measuredNanos = System.nanoTime() - t0;
+
+        running = false;
+        for (Connection c : connections)
+        {
+            c.close();
+        }
+        for (Thread t : threads)
+        {
+            t.join(1000);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves the number of good replies received while measuring.
+     *
+     * @return The poll count.
+     */
+    public long getPolls()
+    {
+        long n = 0;
+        for (Connection c : connections)
+        {
+            n += c.polls;
+        }
+        return n;
+    }
+
+    /**
+     * Retrieves the number of bad replies received while measuring.
+     *
+     * @return The error count.
+     */
+    public long getErrors()
+    {
+        long n = 0;
+        for (Connection c : connections)
+        {
+            n += c.errors;
+        }
+        return n;
+    }
+
+    /**
+     * Retrieves the latency of the replies received while measuring.
+     *
+     * @return The latency histogram (nanoseconds).
+     */
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    /**
+     * Summarizes the run.
+     *
+     * @return Throughput, errors, and latency percentiles as text.
+     */
+    public String report()
+    {
+        double seconds = measuredNanos / 1.0e9;
+        long polls = getPolls();
+
+        return String.format("%d connections x window %d: %.0f polls/s (%d polls, %d errors in %.1f s), "
+                             +"latency p50 %.1f us, p90 %.1f us, p99 %.1f us, p99.9 %.1f us, "
+                             +"p99.99 %.1f us, max %.1f us",
+                             connections.size(), window,
+                             ( seconds > 0.0 ) ? polls / seconds : 0.0, polls, getErrors(), seconds,
+                             latency.getValueAtPercentile(50.0) / 1000.0,
+                             latency.getValueAtPercentile(90.0) / 1000.0,
+                             latency.getValueAtPercentile(99.0) / 1000.0,
+                             latency.getValueAtPercentile(99.9) / 1000.0,
+                             latency.getValueAtPercentile(99.99) / 1000.0,
+                             latency.getMax() / 1000.0);
+    }
+
+    private static void printUsage()
+    {
+        System.err.println("Usage: java -cp AHRS-Emulator.jar ahrsemulator.LoadGenerator [options]");
+        System.err.println("  --model       3DM-GX2, 3DM-GX4-25, 3DM-GX3-25-OEM (default "+DEFAULT_MODEL+")");
+        System.err.println("  --target      pipe or tcp:HOST:PORT, connection k uses PORT + k (default "+DEFAULT_TARGET+")");
+        System.err.println("                mux:HOST:PORT, connection k asks for emulator k");
+        System.err.println("  --connections number of connections (default "+DEFAULT_CONNECTIONS+")");
+        System.err.println("  --window      requests in flight per connection (default "+DEFAULT_WINDOW+")");
+        System.err.println("  --warmup      seconds before measuring starts (default "+DEFAULT_WARMUP+")");
+        System.err.println("  --duration    seconds measured (default "+DEFAULT_DURATION+")");
+        System.err.println("  --config      properties file with the same keys");
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class - one connection: keeps the window full and checks the
+    // replies
+    private class Connection implements Runnable, MipParser.Handler
+    {
+        // Connection number.
+        private final int index;
+        // Replies come in here, requests go out here.
+        private final InputStream in;
+        private final OutputStream out;
+        // Closed to stop the connection - may be null.
+        private final Closeable link;
+        // The request, and window copies of it back to back.
+        private final byte[] request;
+        private final byte[] burst;
+        // Time (System.nanoTime) each request in flight was sent - a ring,
+        // oldest at tail.
+        private final long[] sent;
+        private int head;
+        private int tail;
+        // Receives the replies.
+        private final byte[] buffer;
+        // Number of bytes in the buffer (single byte protocol).
+        private int fill;
+        // Bytes skipped since the last good reply that have not yet been
+        // counted as a lost reply (single byte protocol).
+        private int skipped;
+        // Collects the MIP replies - null for the single byte protocol.
+        private final MipParser mipParser;
+        // Replies completed by the current read - answered with one write.
+        private int answered;
+
+        // Statistics - written only by the connection's thread.
+        private volatile long polls;
+        private volatile long errors;
+
+        public Connection(int index, InputStream in, OutputStream out, Closeable link)
+        {
+            this.index = index;
+            this.in = in;
+            this.out = out;
+            this.link = link;
+
+            request = ( ahrsNum == 2 ) ? MIP_REQUEST : SINGLE_BYTE_REQUEST;
+            burst = new byte[window * request.length];
+            for(int k = 0; k < window; k++)
+            {
+                System.arraycopy(request, 0, burst, k * request.length, request.length);
+            }
+
+            sent = new long[window];
+            buffer = new byte[8192];
+            mipParser = ( ahrsNum == 2 ) ? new MipParser() : null;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                // Fill the window.
+                send(window);
+
+                while( running )
+                {
+                    int len = in.read(buffer, fill, buffer.length - fill);
+                    if( len < 0 )
+                    {
+                        break;
+                    }
+
+                    answered = 0;
+                    if( mipParser != null )
+                    {
+                        long badChecksums = mipParser.getChecksumErrors();
+                        mipParser.parse(buffer, 0, len, this);
+                        for(long k = mipParser.getChecksumErrors() - badChecksums; k > 0; k--)
+                        {
+                            complete(false);
+                        }
+                    }
+                    else
+                    {
+                        fill += len;
+                        scanSingleByte();
+                    }
+
+                    // Keep the window full.
+                    send(answered);
+                }
+            }
+            catch(IOException e)
+            {
+                if( running )
+                {
+                    System.err.println("Connection "+index+": "+e);
+                }
+            }
+        }
+
+        /**
+         * Splits the buffer into single byte protocol replies.  A garbled run
+         * counts as one bad reply for every reply's worth of bytes in it, so
+         * the requests in flight stay in step with the replies.
+         */
+        private void scanSingleByte()
+        {
+            int k = 0;
+
+            while( fill - k >= SINGLE_BYTE_REPLY )
+            {
+                if( buffer[k] == request[0] && Checksum.isValidGx2(buffer, k, SINGLE_BYTE_REPLY) )
+                {
+                    // The end of a garbled run - more than half a reply left
+                    // over was one more reply that lost bytes.
+                    if( skipped > SINGLE_BYTE_REPLY / 2 )
+                    {
+                        complete(false);
+                    }
+                    skipped = 0;
+
+                    complete(true);
+                    k += SINGLE_BYTE_REPLY;
+                }
+                else
+                {
+                    // Hunt for the next good reply - retire a request for
+                    // every reply's worth of bytes skipped, so the window
+                    // keeps moving however long the run is.
+                    k++;
+                    if( ++skipped == SINGLE_BYTE_REPLY )
+                    {
+                        complete(false);
+                        skipped = 0;
+                    }
+                }
+            }
+
+            // Keep the partial reply for the next read.
+            System.arraycopy(buffer, k, buffer, 0, fill - k);
+            fill -= k;
+        }
+
+        @Override
+        public void onPacket(byte[] b, int off, int len)
+        {
+            // The IMU data packet - anything else (e.g. a NACK) is an error.
+            complete(len == MIP_REPLY && b[off + 2] == (byte)MipCommandSet.IMU_DATA_SET);
+        }
+
+        /**
+         * Retires the oldest request in flight.
+         */
+        private void complete(boolean good)
+        {
+            long now = System.nanoTime();
+
+            if( measuring )
+            {
+                if( good )
+                {
+                    polls++;
+                    latency.record(now - sent[tail]);
+                }
+                else
+                {
+                    errors++;
+                }
+            }
+
+            tail = ( tail + 1 ) % window;
+            answered++;
+        }
+
+        /**
+         * Sends requests in one write.
+         */
+        private void send(int n) throws IOException
+        {
+            if( n == 0 )
+            {
+                return;
+            }
+
+            long now = System.nanoTime();
+            for(int k = 0; k < n; k++)
+            {
+                sent[head] = now;
+                head = ( head + 1 ) % window;
+            }
+
+            out.write(burst, 0, n * request.length);
+            out.flush();
+        }
+
+        /**
+         * Closes the link - unblocks a read.
+         */
+        public void close()
+        {
+            if( link == null )
+            {
+                return;
+            }
+
+            try
+            {
+                link.close();
+            }
+            catch(IOException e)
+            {
+                // Nothing more can be done.
+            }
+        }
+    }
+
+} // end of class LoadGenerator
@@ -0,0 +1,124 @@
+package ahrsemulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue of log messages - any number of threads add, one
+ * thread (the Swing event thread) takes them out.
+ * <p>
+ * Each slot has a sequence number that says whose turn it is: a writer claims
+ * a slot by advancing the tail with compare-and-set, fills it, and then hands
+ * it to the reader by bumping the sequence number; the reader hands it back
+ * the same way.  Nobody waits on anybody.  When the ring is full a message is
+ * dropped (and counted) rather than blocking the emulator that logged it.
+ *
+ * @author Mike Fouche
+ */
+public class LogRing
+{
+    // The messages.
+    private final AtomicReferenceArray<String> slots;
+    // Sequence number of each slot.
+    private final AtomicLongArray sequence;
+    // slots.length() - 1 (the capacity is a power of two).
+    private final int mask;
+    // Next slot to write.
+    private final AtomicLong tail;
+    // Next slot to read - only the reader touches it.
+    private long head;
+    // Number of messages dropped because the ring was full.
+    private final AtomicLong dropped;
+
+    /**
+     * Constructor
+     *
+     * @param capacity Number of messages the ring holds - rounded up to a
+     * power of two.
+     */
+    public LogRing(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+        slots = new AtomicReferenceArray<>(size);
+        sequence = new AtomicLongArray(size);
+        mask = size - 1;
+        tail = new AtomicLong();
+        dropped = new AtomicLong();
+
+        for(int k = 0; k < size; k++)
+        {
+            sequence.set(k, k);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Adds a message.  Never blocks.
+     *
+     * @param text The message.
+     * @return False if the ring was full and the message was dropped.
+     */
+    public boolean offer(String text)
+    {
+        while( true )
+        {
+            long pos = tail.get();
+            int index = (int)pos & mask;
+            long seq = sequence.get(index);
+
+            if( seq == pos )
+            {
+                // The slot is free - claim it.
+                if( tail.compareAndSet(pos, pos + 1) )
+                {
+                    slots.lazySet(index, text);
+                    sequence.set(index, pos + 1);
+                    return true;
+                }
+            }
+            else if( seq < pos )
+            {
+                // The reader hasn't emptied this slot yet - the ring is full.
+                dropped.incrementAndGet();
+                return false;
+            }
+            // Otherwise another writer got there first - try again.
+        }
+    }
+
+    /**
+     * Takes the oldest message out.  Only one thread may call this.
+     *
+     * @return The message, or null if the ring is empty.
+     */
+    public String poll()
+    {
+        int index = (int)head & mask;
+
+        if( sequence.get(index) != head + 1 )
+        {
+            return null;
+        }
+
+        String text = slots.get(index);
+        slots.lazySet(index, null);
+        // Hand the slot back to the writers for the next time around.
+        sequence.set(index, head + slots.length());
+        head++;
+
+        return text;
+    }
+
+    /**
+     * Retrieves and clears the number of messages dropped.
+     *
+     * @return Messages dropped since the last call.
+     */
+    public long takeDropped()
+    {
+        return dropped.getAndSet(0);
+    }
+
+} // end of class LogRing
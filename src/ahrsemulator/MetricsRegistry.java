@@ -0,0 +1,393 @@
+package ahrsemulator;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Keeps track of the metrics of the running emulators and publishes them.
+ * <p>
+ * Each emulator's metrics are registered as an MBean
+ * (ahrsemulator:type=Emulator,model=...,transport=...) while it runs.  Each
+ * AHRS model also has an MBean (ahrsemulator:type=Model,model=...) with the
+ * totals of all its emulators - including the ones that have stopped, so the
+ * totals never go backwards.  writePrometheus renders the same numbers in the
+ * Prometheus text format (see MetricsServer).  The id label / key property
+ * tells apart emulators on transports with the same name.
+ *
+ * @author Mike Fouche
+ */
+public class MetricsRegistry
+{
+    // The registry used by the emulators.
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    // JMX domain of the MBeans.
+    private static final String DOMAIN = "ahrsemulator";
+
+    // Platform MBean server.
+    private final MBeanServer server;
+    // Metrics of the running emulators.
+    private final List<EmulatorMetrics> running;
+    // Totals of the emulators that have stopped, by model name.
+    private final Map<String, EmulatorMetrics> retired;
+
+    /**
+     * Constructor
+     */
+    public MetricsRegistry()
+    {
+        server = ManagementFactory.getPlatformMBeanServer();
+        running = new ArrayList<>();
+        retired = new TreeMap<>();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves the registry the emulators register with.
+     *
+     * @return The default registry.
+     */
+    public static MetricsRegistry getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Adds an emulator's metrics (and its model totals, if they are new).
+     *
+     * @param metrics The emulator's metrics.
+     */
+    public synchronized void register(EmulatorMetrics metrics)
+    {
+        if( running.contains(metrics) )
+        {
+            return;
+        }
+        running.add(metrics);
+
+        registerMBean(metrics, emulatorName(metrics));
+
+        String model = metrics.getModel();
+        if( !retired.containsKey(model) )
+        {
+            retired.put(model, new EmulatorMetrics(model, "all"));
+            registerMBean(new ModelTotals(model), modelName(model));
+        }
+    }
+
+    /**
+     * Removes an emulator's metrics - its counts stay in the model totals.
+     *
+     * @param metrics The emulator's metrics.
+     */
+    public synchronized void unregister(EmulatorMetrics metrics)
+    {
+        if( !running.remove(metrics) )
+        {
+            return;
+        }
+
+        retired.get(metrics.getModel()).add(metrics);
+
+        try
+        {
+            server.unregisterMBean(emulatorName(metrics));
+        }
+        catch(JMException e)
+        {
+            // Already gone.
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Adds up the metrics of every emulator of a model - running and stopped.
+     *
+     * @param model The AHRS model name.
+     * @return The totals.
+     */
+    public synchronized EmulatorMetrics getModelTotals(String model)
+    {
+        EmulatorMetrics totals = new EmulatorMetrics(model, "all");
+
+        EmulatorMetrics stopped = retired.get(model);
+        if( stopped != null )
+        {
+            totals.add(stopped);
+        }
+        for (EmulatorMetrics metrics : running)
+        {
+            if( metrics.getModel().equals(model) )
+            {
+                totals.add(metrics);
+            }
+        }
+
+        return totals;
+    }
+
+    /**
+     * Renders every emulator's metrics (ahrs_...) and the model totals
+     * (ahrs_model_...) in the Prometheus text exposition format.
+     *
+     * @param text Receives the metrics.
+     */
+    public synchronized void writePrometheus(StringBuilder text)
+    {
+        List<EmulatorMetrics> models = new ArrayList<>();
+        for (String model : retired.keySet())
+        {
+            models.add(getModelTotals(model));
+        }
+
+        writeFamilies(text, "ahrs_", running, true);
+        writeFamilies(text, "ahrs_model_", models, false);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Writes every metric family for a list of emulators (or models).
+     */
+    private void writeFamilies(StringBuilder text, String prefix, List<EmulatorMetrics> list,
+                               boolean perEmulator)
+    {
+        writeFamily(text, prefix, "requests_total", "counter", "Data requests received.", list, perEmulator);
+        writeFamily(text, prefix, "packets_sent_total", "counter", "Data packets sent.", list, perEmulator);
+        writeFamily(text, prefix, "bytes_in_total", "counter", "Bytes received from the host.", list, perEmulator);
+        writeFamily(text, prefix, "bytes_out_total", "counter", "Bytes sent to the host.", list, perEmulator);
+        writeFamily(text, prefix, "parse_errors_total", "counter", "Commands that were not understood.", list, perEmulator);
+        writeFamily(text, prefix, "checksum_failures_total", "counter", "Commands dropped because of a bad checksum.", list, perEmulator);
+        writeFamily(text, prefix, "dropped_packets_total", "counter", "Data packets thrown away because the link could not keep up.", list, perEmulator);
+        writeFamily(text, prefix, "output_queue_stall_seconds_total", "counter", "Time spent waiting for a free output queue slot.", list, perEmulator);
+        if( perEmulator )
+        {
+            writeFamily(text, prefix, "output_queue_depth", "gauge", "Packets waiting in the output queue.", list, perEmulator);
+        }
+        writeFamily(text, prefix, "response_latency_seconds", "summary", "Request to response latency.", list, perEmulator);
+    }
+
+    /**
+     * Writes one metric family - one series per emulator (or model).
+     */
+    private void writeFamily(StringBuilder text, String prefix, String metric, String type,
+                             String help, List<EmulatorMetrics> list, boolean perEmulator)
+    {
+        String name = prefix+metric;
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+
+        for (EmulatorMetrics metrics : list)
+        {
+            String labels = "model=\""+metrics.getModel()+"\"";
+            if( perEmulator )
+            {
+                labels += ",transport=\""+metrics.getTransport()+"\""
+                          +",id=\""+metrics.getId()+"\"";
+            }
+
+            switch (metric)
+            {
+                case "requests_total":
+                    sample(text, name, labels, metrics.getRequests());
+                    break;
+                case "packets_sent_total":
+                    sample(text, name, labels, metrics.getPacketsSent());
+                    break;
+                case "bytes_in_total":
+                    sample(text, name, labels, metrics.getBytesIn());
+                    break;
+                case "bytes_out_total":
+                    sample(text, name, labels, metrics.getBytesOut());
+                    break;
+                case "parse_errors_total":
+                    sample(text, name, labels, metrics.getParseErrors());
+                    break;
+                case "checksum_failures_total":
+                    sample(text, name, labels, metrics.getChecksumFailures());
+                    break;
+                case "dropped_packets_total":
+                    sample(text, name, labels, metrics.getDroppedPackets());
+                    break;
+                case "output_queue_stall_seconds_total":
+                    sample(text, name, labels, metrics.getOutputQueueStallMillis() / 1000.0);
+                    break;
+                case "output_queue_depth":
+                    sample(text, name, labels, metrics.getOutputQueueDepth());
+                    break;
+                default:
+                    LatencyHistogram latency = metrics.getLatency();
+                    for (double q : new double[] {0.5, 0.9, 0.99, 0.999})
+                    {
+                        sample(text, name, labels+",quantile=\""+q+"\"",
+                               latency.getValueAtPercentile(q * 100.0) / 1.0e9);
+                    }
+                    sample(text, name+"_sum", labels, latency.getSum() / 1.0e9);
+                    sample(text, name+"_count", labels, latency.getCount());
+                    break;
+            }
+        }
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, Object value)
+    {
+        text.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private void registerMBean(EmulatorMetricsMBean mbean, ObjectName name)
+    {
+        try
+        {
+            if( server.isRegistered(name) )
+            {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(mbean, EmulatorMetricsMBean.class), name);
+        }
+        catch(JMException e)
+        {
+            // Metrics are best effort - the emulator runs without them.
+        }
+    }
+
+    private static ObjectName emulatorName(EmulatorMetrics metrics)
+    {
+        return objectName("type=Emulator,model="+ObjectName.quote(metrics.getModel())
+                          +",transport="+ObjectName.quote(metrics.getTransport())
+                          +",id="+metrics.getId());
+    }
+
+    private static ObjectName modelName(String model)
+    {
+        return objectName("type=Model,model="+ObjectName.quote(model));
+    }
+
+    private static ObjectName objectName(String properties)
+    {
+        try
+        {
+            return new ObjectName(DOMAIN+":"+properties);
+        }
+        catch(JMException e)
+        {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class - the model totals MBean, added up each time it is read
+    private class ModelTotals implements EmulatorMetricsMBean
+    {
+        // AHRS model name.
+        private final String model;
+
+        ModelTotals(String model)
+        {
+            this.model = model;
+        }
+
+        @Override
+        public String getModel()
+        {
+            return model;
+        }
+
+        @Override
+        public String getTransport()
+        {
+            return "all";
+        }
+
+        @Override
+        public long getRequests()
+        {
+            return getModelTotals(model).getRequests();
+        }
+
+        @Override
+        public long getPacketsSent()
+        {
+            return getModelTotals(model).getPacketsSent();
+        }
+
+        @Override
+        public long getBytesIn()
+        {
+            return getModelTotals(model).getBytesIn();
+        }
+
+        @Override
+        public long getBytesOut()
+        {
+            return getModelTotals(model).getBytesOut();
+        }
+
+        @Override
+        public long getParseErrors()
+        {
+            return getModelTotals(model).getParseErrors();
+        }
+
+        @Override
+        public long getChecksumFailures()
+        {
+            return getModelTotals(model).getChecksumFailures();
+        }
+
+        @Override
+        public long getDroppedPackets()
+        {
+            return getModelTotals(model).getDroppedPackets();
+        }
+
+        @Override
+        public int getOutputQueueDepth()
+        {
+            return 0;
+        }
+
+        @Override
+        public double getOutputQueueStallMillis()
+        {
+            return getModelTotals(model).getOutputQueueStallMillis();
+        }
+
+        @Override
+        public double getLatencyMeanMicros()
+        {
+            return getModelTotals(model).getLatencyMeanMicros();
+        }
+
+        @Override
+        public double getLatencyP50Micros()
+        {
+            return getModelTotals(model).getLatencyP50Micros();
+        }
+
+        @Override
+        public double getLatencyP99Micros()
+        {
+            return getModelTotals(model).getLatencyP99Micros();
+        }
+
+        @Override
+        public double getLatencyP999Micros()
+        {
+            return getModelTotals(model).getLatencyP999Micros();
+        }
+
+        @Override
+        public double getLatencyMaxMicros()
+        {
+            return getModelTotals(model).getLatencyMaxMicros();
+        }
+
+    } // end of inner class ModelTotals
+
+} // end of class MetricsRegistry
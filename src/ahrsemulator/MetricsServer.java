@@ -0,0 +1,89 @@
+package ahrsemulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Prometheus scrape endpoint - serves the metrics of a MetricsRegistry as
+ * http://localhost:PORT/metrics in the Prometheus text format.
+ * <p>
+ * The server only listens on the loopback interface and answers on a thread
+ * of its own, so a scrape never touches the emulator threads - it only
+ * reads their atomic counters.
+ *
+ * @author Mike Fouche
+ */
+public class MetricsServer
+{
+    // Prometheus text exposition format.
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // The metrics being served.
+    private final MetricsRegistry registry;
+    // The HTTP server.
+    private final HttpServer server;
+
+    /**
+     * Constructor - the server is not started until start() is called.
+     *
+     * @param registry The metrics to serve.
+     * @param port The port number (0 picks a free port).
+     * @throws IOException If the port cannot be bound.
+     */
+    public MetricsServer(MetricsRegistry registry, int port) throws IOException
+    {
+        this.registry = registry;
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::scrape);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Starts serving.
+     */
+    public void start()
+    {
+        server.start();
+    }
+
+    /**
+     * Stops serving and releases the port.
+     */
+    public void stop()
+    {
+        server.stop(0);
+    }
+
+    /**
+     * Retrieves the port the server listens on.
+     *
+     * @return The port number.
+     */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    //--------------------------------------------------------------------------
+    private void scrape(HttpExchange exchange) throws IOException
+    {
+        StringBuilder text = new StringBuilder(4096);
+        registry.writePrometheus(text);
+        byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody())
+        {
+            out.write(body);
+        }
+    }
+
+} // end of class MetricsServer
@@ -0,0 +1,771 @@
+package ahrsemulator;
+
+import java.io.IOException;
+
+/**
+ * Executes MIP commands (3DM-GX4-25) - the Base command set (0x01) and the
+ * 3DM command set (0x0C).
+ * <p>
+ * Each field of a command packet is looked up in a primitive table indexed by
+ * (descriptor set &lt;&lt; 8) | field descriptor, so dispatching a command is
+ * one array read and a switch.  Every command is answered with an ACK/NACK
+ * field (0xF1 - echo of the command, error code) and, for the commands that
+ * read something back, a second field with the data.  Unknown commands are
+ * answered with a NACK.
+ * <p>
+ * Supported commands:
+ * <pre>
+ *   0x01 0x01  ping
+ *   0x01 0x02  set to idle
+ *   0x01 0x03  get device information
+ *   0x01 0x04  get device descriptor sets
+ *   0x01 0x05  built-in test
+ *   0x01 0x06  resume
+ *   0x01 0x7E  device reset
+ *   0x0C 0x01  poll IMU data
+ *   0x0C 0x06  get IMU data base rate
+ *   0x0C 0x08  IMU message format
+ *   0x0C 0x11  enable / disable continuous data stream
+ *   0x0C 0x30  device startup settings
+ *   0x0C 0x40  UART BAUD rate
+ * </pre>
+ * The device state the commands change - idle, the IMU message format, the
+ * stream enable flag, the BAUD rate, and their saved startup values - is kept
+ * here.  Replies are built in a preallocated buffer.
+ *
+ * @author Mike Fouche
+ */
+public class MipCommandSet
+{
+    /**
+     * Sends the replies and data packets.
+     */
+    public interface Handler
+    {
+        /**
+         * Called with each reply packet.  The bytes are only valid for the
+         * duration of the call.
+         *
+         * @param b Byte array holding the reply.
+         * @param off Offset of the leading synch byte.
+         * @param len Reply length - synch bytes through checksum.
+         * @throws IOException If the reply cannot be sent.
+         */
+        void onReply(byte[] b, int off, int len) throws IOException;
+
+        /**
+         * Called when the host polls for IMU data - after the ACK.
+         *
+         * @throws IOException If the data packet cannot be sent.
+         */
+        void onPollImu() throws IOException;
+    }
+
+    /**
+     * Base command set.
+     */
+    public static final int BASE_SET = 0x01;
+    /**
+     * 3DM command set.
+     */
+    public static final int DM_SET = 0x0C;
+    /**
+     * IMU data set.
+     */
+    public static final int IMU_DATA_SET = 0x80;
+
+    /**
+     * Most descriptors in a message format - as many 3 byte entries as fit
+     * in one payload next to the ACK field when the format is read back
+     * (4 + 3 + 3 * 82 = 253 bytes).
+     */
+    public static final int MAX_FORMAT = 82;
+
+    /**
+     * Error code - command carried out.
+     */
+    public static final int ACK = 0x00;
+    /**
+     * Error code - the command descriptor is not supported.
+     */
+    public static final int UNKNOWN_COMMAND = 0x01;
+    /**
+     * Error code - one or more parameters are invalid.
+     */
+    public static final int INVALID_PARAMETER = 0x03;
+
+    // Field descriptor of the ACK/NACK field (the same in every set).
+    private static final int ACK_NACK = 0xF1;
+
+    // Command ids in the dispatch table (0 = not supported).
+    private static final byte PING = 1;
+    private static final byte SET_TO_IDLE = 2;
+    private static final byte DEVICE_INFO = 3;
+    private static final byte DESCRIPTOR_SETS = 4;
+    private static final byte BUILT_IN_TEST = 5;
+    private static final byte RESUME = 6;
+    private static final byte DEVICE_RESET = 7;
+    private static final byte POLL_IMU = 8;
+    private static final byte IMU_BASE_RATE = 9;
+    private static final byte IMU_FORMAT = 10;
+    private static final byte STREAM_ENABLE = 11;
+    private static final byte STARTUP_SETTINGS = 12;
+    private static final byte BAUD_RATE = 13;
+
+    // Command id of every (descriptor set, field descriptor) pair.
+    private static final byte[] DISPATCH = new byte[1 << 16];
+    // Supported descriptors, (set << 8) | descriptor - the reply to get
+    // device descriptor sets.
+    private static final int[] DESCRIPTORS;
+
+    // IMU data descriptors the message format may hold.
+    private static final int[] IMU_DESCRIPTORS = {0x04, 0x05, 0x06, 0x07, 0x08, 0x09,
+                                                  0x0A, 0x0C, 0x10, 0x11, 0x12};
+    // IMU data base rate (Hz) - data rate = base rate / rate decimation.
+    private static final int IMU_BASE_RATE_HZ = 1000;
+    // Factory default IMU message format - Euler angles at 100 Hz.
+    private static final int DEFAULT_DESCRIPTOR = 0x0C;
+    private static final int DEFAULT_DECIMATION = 10;
+    // Supported BAUD rates - the first is the factory default.
+    private static final int[] BAUD_RATES = {115200, 9600, 19200, 230400, 460800, 921600};
+
+    // Function selector values.
+    private static final int USE_NEW = 0x01;
+    private static final int READ_BACK = 0x02;
+    private static final int SAVE = 0x03;
+    private static final int LOAD = 0x04;
+    private static final int DEFAULT = 0x05;
+
+    // Device information strings (16 characters each).
+    private static final int FIRMWARE_VERSION = 1100;
+    private static final String MODEL_NAME = "3DM-GX4-25";
+    private static final String MODEL_NUMBER = "6234-4220";
+    private static final String SERIAL_NUMBER = "6234.00000";
+    private static final String LOT_NUMBER = "EMULATOR";
+    private static final String DEVICE_OPTIONS = "5g, 300dps";
+
+    static
+    {
+        int[] commands = {
+            ( BASE_SET << 8 ) | 0x01, PING,
+            ( BASE_SET << 8 ) | 0x02, SET_TO_IDLE,
+            ( BASE_SET << 8 ) | 0x03, DEVICE_INFO,
+            ( BASE_SET << 8 ) | 0x04, DESCRIPTOR_SETS,
+            ( BASE_SET << 8 ) | 0x05, BUILT_IN_TEST,
+            ( BASE_SET << 8 ) | 0x06, RESUME,
+            ( BASE_SET << 8 ) | 0x7E, DEVICE_RESET,
+            ( DM_SET << 8 ) | 0x01, POLL_IMU,
+            ( DM_SET << 8 ) | 0x06, IMU_BASE_RATE,
+            ( DM_SET << 8 ) | 0x08, IMU_FORMAT,
+            ( DM_SET << 8 ) | 0x11, STREAM_ENABLE,
+            ( DM_SET << 8 ) | 0x30, STARTUP_SETTINGS,
+            ( DM_SET << 8 ) | 0x40, BAUD_RATE,
+        };
+
+        DESCRIPTORS = new int[commands.length / 2 + IMU_DESCRIPTORS.length];
+        for(int k = 0; k < commands.length; k += 2)
+        {
+            DISPATCH[commands[k]] = (byte)commands[k + 1];
+            DESCRIPTORS[k / 2] = commands[k];
+        }
+        for(int k = 0; k < IMU_DESCRIPTORS.length; k++)
+        {
+            DESCRIPTORS[commands.length / 2 + k] = ( IMU_DATA_SET << 8 ) | IMU_DESCRIPTORS[k];
+        }
+    }
+
+    // The reply being built.
+    private final byte[] reply;
+    // Number of bytes in the reply so far.
+    private int replyLen;
+
+    // IMU message format - descriptors and rate decimations.
+    private final int[] formatDescriptors;
+    private final int[] formatDecimations;
+    private int formatCount;
+    // Startup (saved) IMU message format.
+    private final int[] savedDescriptors;
+    private final int[] savedDecimations;
+    private int savedCount;
+    // Descriptors asked for by the last poll.
+    private final int[] pollDescriptors;
+    private int pollCount;
+
+    // True while the device is idle (set to idle until resume).
+    private boolean idle;
+    // IMU continuous data stream enable flag.
+    private boolean streamEnabled;
+    // Startup (saved) stream enable flag.
+    private boolean savedStreamEnabled;
+    // Stream enable flag the device powers up with.
+    private boolean powerUpStreamEnabled;
+    // UART BAUD rate.
+    private int baudRate;
+    // Startup (saved) BAUD rate.
+    private int savedBaudRate;
+
+    /**
+     * Constructor
+     */
+    public MipCommandSet()
+    {
+        reply = new byte[4 + 255 + 2];
+        formatDescriptors = new int[MAX_FORMAT];
+        formatDecimations = new int[MAX_FORMAT];
+        savedDescriptors = new int[MAX_FORMAT];
+        savedDecimations = new int[MAX_FORMAT];
+        pollDescriptors = new int[MAX_FORMAT];
+
+        loadDefaults();
+        saveSettings();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Executes every command field of a command packet.
+     *
+     * @param b Byte array holding the packet (checksum already verified).
+     * @param off Offset of the leading synch byte.
+     * @param len Packet length - synch bytes through checksum.
+     * @param handler Sends the replies and data packets.
+     * @throws IOException If a reply cannot be sent.
+     */
+    public void execute(byte[] b, int off, int len, Handler handler) throws IOException
+    {
+        int set = b[off + 2] & 0xFF;
+        int end = off + len - 2;
+        int field = off + 4;
+
+        while( field + 2 <= end )
+        {
+            int fieldLen = b[field] & 0xFF;
+            if( fieldLen < 2 || field + fieldLen > end )
+            {
+                // Malformed field - nothing after it can be trusted.
+                return;
+            }
+
+            command(set, b, field, fieldLen, handler);
+            field += fieldLen;
+        }
+    }
+
+    /**
+     * Executes one command field.
+     */
+    private void command(int set, byte[] b, int field, int fieldLen, Handler handler)
+        throws IOException
+    {
+        int descriptor = b[field + 1] & 0xFF;
+        // Field data.
+        int data = field + 2;
+        int dataLen = fieldLen - 2;
+
+        begin(set);
+
+        switch (DISPATCH[( set << 8 ) | descriptor])
+        {
+            case PING:
+                ack(descriptor, ACK);
+                break;
+            case SET_TO_IDLE:
+                idle = true;
+                ack(descriptor, ACK);
+                break;
+            case RESUME:
+                idle = false;
+                ack(descriptor, ACK);
+                break;
+            case DEVICE_INFO:
+                ack(descriptor, ACK);
+                deviceInfo();
+                break;
+            case DESCRIPTOR_SETS:
+                ack(descriptor, ACK);
+                putByte(2 + 2 * DESCRIPTORS.length);
+                putByte(0x82);
+                for (int d : DESCRIPTORS)
+                {
+                    putShort(d);
+                }
+                break;
+            case BUILT_IN_TEST:
+                ack(descriptor, ACK);
+                putByte(6);
+                putByte(0x83);
+                putInt(0);
+                break;
+            case DEVICE_RESET:
+                ack(descriptor, ACK);
+                reset();
+                break;
+            case POLL_IMU:
+                pollImu(descriptor, b, data, dataLen, handler);
+                return;
+            case IMU_BASE_RATE:
+                ack(descriptor, ACK);
+                putByte(4);
+                putByte(0x83);
+                putShort(IMU_BASE_RATE_HZ);
+                break;
+            case IMU_FORMAT:
+                imuFormat(descriptor, b, data, dataLen);
+                break;
+            case STREAM_ENABLE:
+                streamEnable(descriptor, b, data, dataLen);
+                break;
+            case STARTUP_SETTINGS:
+                startupSettings(descriptor, b, data, dataLen);
+                break;
+            case BAUD_RATE:
+                baudRate(descriptor, b, data, dataLen);
+                break;
+            default:
+                ack(descriptor, UNKNOWN_COMMAND);
+                break;
+        }
+
+        finish(handler);
+    }
+
+    //--------------------------------------------------------------------------
+    private void pollImu(int descriptor, byte[] b, int data, int dataLen, Handler handler)
+        throws IOException
+    {
+        int option = ( dataLen > 0 ) ? b[data] & 0xFF : 0;
+        int n = ( dataLen > 1 ) ? b[data + 1] & 0xFF : -1;
+
+        int error = ACK;
+        if( n < 0 || n > MAX_FORMAT || dataLen != 2 + 3 * n || option > 1 )
+        {
+            error = INVALID_PARAMETER;
+        }
+        else if( n == 0 )
+        {
+            // Use the stored format.
+            System.arraycopy(formatDescriptors, 0, pollDescriptors, 0, formatCount);
+            pollCount = formatCount;
+            error = ( formatCount == 0 ) ? INVALID_PARAMETER : ACK;
+        }
+        else
+        {
+            // Use the format sent - unrecognized descriptors are ignored.
+            pollCount = 0;
+            for(int k = 0; k < n; k++)
+            {
+                int d = b[data + 2 + 3 * k] & 0xFF;
+                if( isImuDescriptor(d) )
+                {
+                    pollDescriptors[pollCount++] = d;
+                }
+            }
+        }
+
+        // Option 1 suppresses the ACK (but not a NACK).
+        if( option == 0 || error != ACK )
+        {
+            ack(descriptor, error);
+            finish(handler);
+        }
+
+        if( error == ACK )
+        {
+            handler.onPollImu();
+        }
+    }
+
+    private void imuFormat(int descriptor, byte[] b, int data, int dataLen)
+    {
+        int function = ( dataLen > 0 ) ? b[data] & 0xFF : 0;
+
+        switch (function)
+        {
+            case USE_NEW:
+                int n = ( dataLen > 1 ) ? b[data + 1] & 0xFF : -1;
+                // A format too long to read back is refused.
+                if( n < 0 || n > MAX_FORMAT || dataLen != 2 + 3 * n )
+                {
+                    ack(descriptor, INVALID_PARAMETER);
+                    return;
+                }
+                // Every descriptor has to be valid, otherwise the format is
+                // left as it was.
+                for(int k = 0; k < n; k++)
+                {
+                    int entry = data + 2 + 3 * k;
+                    if( !isImuDescriptor(b[entry] & 0xFF)
+                        || ( ( b[entry + 1] & 0xFF ) << 8 | ( b[entry + 2] & 0xFF ) ) == 0 )
+                    {
+                        ack(descriptor, INVALID_PARAMETER);
+                        return;
+                    }
+                }
+                for(int k = 0; k < n; k++)
+                {
+                    int entry = data + 2 + 3 * k;
+                    formatDescriptors[k] = b[entry] & 0xFF;
+                    formatDecimations[k] = ( b[entry + 1] & 0xFF ) << 8 | ( b[entry + 2] & 0xFF );
+                }
+                formatCount = n;
+                ack(descriptor, ACK);
+                break;
+            case READ_BACK:
+                ack(descriptor, ACK);
+                putByte(3 + 3 * formatCount);
+                putByte(0x80);
+                putByte(formatCount);
+                for(int k = 0; k < formatCount; k++)
+                {
+                    putByte(formatDescriptors[k]);
+                    putShort(formatDecimations[k]);
+                }
+                break;
+            case SAVE:
+                System.arraycopy(formatDescriptors, 0, savedDescriptors, 0, formatCount);
+                System.arraycopy(formatDecimations, 0, savedDecimations, 0, formatCount);
+                savedCount = formatCount;
+                ack(descriptor, ACK);
+                break;
+            case LOAD:
+                loadFormat();
+                ack(descriptor, ACK);
+                break;
+            case DEFAULT:
+                defaultFormat();
+                ack(descriptor, ACK);
+                break;
+            default:
+                ack(descriptor, INVALID_PARAMETER);
+                break;
+        }
+    }
+
+    private void streamEnable(int descriptor, byte[] b, int data, int dataLen)
+    {
+        int function = ( dataLen > 0 ) ? b[data] & 0xFF : 0;
+        int device = ( dataLen > 1 ) ? b[data + 1] & 0xFF : 0;
+
+        // Only the IMU stream (device 1) is emulated.
+        if( dataLen != 3 || device != 0x01 )
+        {
+            ack(descriptor, INVALID_PARAMETER);
+            return;
+        }
+
+        switch (function)
+        {
+            case USE_NEW:
+                // Enabling a stream also brings the device out of idle.
+                streamEnabled = b[data + 2] != 0;
+                idle = false;
+                ack(descriptor, ACK);
+                break;
+            case READ_BACK:
+                ack(descriptor, ACK);
+                putByte(4);
+                putByte(0x85);
+                putByte(device);
+                putByte(streamEnabled ? 1 : 0);
+                break;
+            case SAVE:
+                savedStreamEnabled = streamEnabled;
+                ack(descriptor, ACK);
+                break;
+            case LOAD:
+                streamEnabled = savedStreamEnabled;
+                ack(descriptor, ACK);
+                break;
+            case DEFAULT:
+                streamEnabled = powerUpStreamEnabled;
+                ack(descriptor, ACK);
+                break;
+            default:
+                ack(descriptor, INVALID_PARAMETER);
+                break;
+        }
+    }
+
+    private void startupSettings(int descriptor, byte[] b, int data, int dataLen)
+    {
+        int function = ( dataLen == 1 ) ? b[data] & 0xFF : 0;
+
+        switch (function)
+        {
+            case SAVE:
+                saveSettings();
+                ack(descriptor, ACK);
+                break;
+            case LOAD:
+                loadSettings();
+                ack(descriptor, ACK);
+                break;
+            case DEFAULT:
+                loadDefaults();
+                ack(descriptor, ACK);
+                break;
+            default:
+                ack(descriptor, INVALID_PARAMETER);
+                break;
+        }
+    }
+
+    private void baudRate(int descriptor, byte[] b, int data, int dataLen)
+    {
+        int function = ( dataLen > 0 ) ? b[data] & 0xFF : 0;
+
+        switch (function)
+        {
+            case USE_NEW:
+                int baud = ( dataLen == 5 ) ? getInt(b, data + 1) : 0;
+                if( !isBaudRate(baud) )
+                {
+                    ack(descriptor, INVALID_PARAMETER);
+                    return;
+                }
+                baudRate = baud;
+                ack(descriptor, ACK);
+                break;
+            case READ_BACK:
+                ack(descriptor, ACK);
+                putByte(6);
+                putByte(0x87);
+                putInt(baudRate);
+                break;
+            case SAVE:
+                savedBaudRate = baudRate;
+                ack(descriptor, ACK);
+                break;
+            case LOAD:
+                baudRate = savedBaudRate;
+                ack(descriptor, ACK);
+                break;
+            case DEFAULT:
+                baudRate = BAUD_RATES[0];
+                ack(descriptor, ACK);
+                break;
+            default:
+                ack(descriptor, INVALID_PARAMETER);
+                break;
+        }
+    }
+
+    private void deviceInfo()
+    {
+        putByte(2 + 2 + 5 * 16);
+        putByte(0x81);
+        putShort(FIRMWARE_VERSION);
+        putString(MODEL_NAME);
+        putString(MODEL_NUMBER);
+        putString(SERIAL_NUMBER);
+        putString(LOT_NUMBER);
+        putString(DEVICE_OPTIONS);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Sets the stream enable flag the device powers up (and resets) with.
+     *
+     * @param enabled True if the IMU data stream is on at power-up.
+     */
+    public void setPowerUpStream(boolean enabled)
+    {
+        powerUpStreamEnabled = enabled;
+        streamEnabled = enabled;
+        savedStreamEnabled = enabled;
+    }
+
+    /**
+     * Retrieves whether the device should be streaming IMU data - the stream
+     * is enabled and the device is not idle.
+     *
+     * @return True if the IMU data stream is on.
+     */
+    public boolean isStreaming()
+    {
+        return streamEnabled && !idle;
+    }
+
+    /**
+     * Retrieves the IMU data rate of the message format - the rate of its
+     * fastest descriptor.
+     *
+     * @return Packets per second.
+     */
+    public double getStreamRate()
+    {
+        int decimation = Integer.MAX_VALUE;
+        for(int k = 0; k < formatCount; k++)
+        {
+            decimation = Math.min(decimation, formatDecimations[k]);
+        }
+
+        return ( formatCount == 0 ) ? IMU_BASE_RATE_HZ / (double)DEFAULT_DECIMATION
+                                    : IMU_BASE_RATE_HZ / (double)decimation;
+    }
+
+    /**
+     * Retrieves the current IMU message format.
+     *
+     * @param descriptors Receives the data descriptors, in packet order.
+     * @return The number of descriptors.
+     */
+    public int getFormat(int[] descriptors)
+    {
+        System.arraycopy(formatDescriptors, 0, descriptors, 0, formatCount);
+        return formatCount;
+    }
+
+    /**
+     * Retrieves the descriptors asked for by the last IMU data poll.
+     *
+     * @param descriptors Receives the data descriptors, in packet order.
+     * @return The number of descriptors.
+     */
+    public int getPollFormat(int[] descriptors)
+    {
+        System.arraycopy(pollDescriptors, 0, descriptors, 0, pollCount);
+        return pollCount;
+    }
+
+    /**
+     * Retrieves the UART BAUD rate set by the host.
+     *
+     * @return Bits per second.
+     */
+    public int getBaudRate()
+    {
+        return baudRate;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Device reset - back to the startup settings.
+     */
+    private void reset()
+    {
+        idle = false;
+        loadSettings();
+    }
+
+    private void loadDefaults()
+    {
+        defaultFormat();
+        streamEnabled = powerUpStreamEnabled;
+        baudRate = BAUD_RATES[0];
+    }
+
+    private void defaultFormat()
+    {
+        formatDescriptors[0] = DEFAULT_DESCRIPTOR;
+        formatDecimations[0] = DEFAULT_DECIMATION;
+        formatCount = 1;
+    }
+
+    private void saveSettings()
+    {
+        System.arraycopy(formatDescriptors, 0, savedDescriptors, 0, formatCount);
+        System.arraycopy(formatDecimations, 0, savedDecimations, 0, formatCount);
+        savedCount = formatCount;
+        savedStreamEnabled = streamEnabled;
+        savedBaudRate = baudRate;
+    }
+
+    private void loadSettings()
+    {
+        loadFormat();
+        streamEnabled = savedStreamEnabled;
+        baudRate = savedBaudRate;
+    }
+
+    private void loadFormat()
+    {
+        System.arraycopy(savedDescriptors, 0, formatDescriptors, 0, savedCount);
+        System.arraycopy(savedDecimations, 0, formatDecimations, 0, savedCount);
+        formatCount = savedCount;
+    }
+
+    private static boolean isImuDescriptor(int descriptor)
+    {
+        for (int d : IMU_DESCRIPTORS)
+        {
+            if( d == descriptor )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBaudRate(int baud)
+    {
+        for (int rate : BAUD_RATES)
+        {
+            if( rate == baud )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getInt(byte[] b, int off)
+    {
+        return ( b[off] & 0xFF ) << 24 | ( b[off + 1] & 0xFF ) << 16
+             | ( b[off + 2] & 0xFF ) << 8 | ( b[off + 3] & 0xFF );
+    }
+
+    //--------------------------------------------------------------------------
+    // Reply building - header, fields, then the payload length and checksum
+    // are filled in by finish().
+    private void begin(int set)
+    {
+        reply[0] = 0x75;
+        reply[1] = 0x65;
+        reply[2] = (byte)set;
+        replyLen = 4;
+    }
+
+    private void ack(int descriptor, int error)
+    {
+        putByte(4);
+        putByte(ACK_NACK);
+        putByte(descriptor);
+        putByte(error);
+    }
+
+    private void putByte(int value)
+    {
+        reply[replyLen++] = (byte)value;
+    }
+
+    private void putShort(int value)
+    {
+        putByte(value >>> 8);
+        putByte(value);
+    }
+
+    private void putInt(int value)
+    {
+        putShort(value >>> 16);
+        putShort(value);
+    }
+
+    private void putString(String s)
+    {
+        // Fixed 16 characters, padded with spaces.
+        for(int k = 0; k < 16; k++)
+        {
+            putByte(( k < s.length() ) ? s.charAt(k) : ' ');
+        }
+    }
+
+    private void finish(Handler handler) throws IOException
+    {
+        reply[3] = (byte)( replyLen - 4 );
+        Checksum.put(Checksum.mip(Checksum.INITIAL, reply, 0, replyLen), reply, replyLen);
+        replyLen += 2;
+
+        handler.onReply(reply, 0, replyLen);
+    }
+
+} // end of class MipCommandSet
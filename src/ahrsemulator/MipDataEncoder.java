@@ -0,0 +1,267 @@
+package ahrsemulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reusable encoder for a MIP IMU data packet (descriptor set 0x80) with any
+ * combination of fields.
+ * <p>
+ * The packet layout - synch bytes, descriptor set, payload length, and the
+ * length and descriptor of every field - is rendered once, when the encoder
+ * is built for a message format.  Encoding a packet only copies each field's
+ * values out of the AttitudeState into place and finishes the checksum, so
+ * nothing is allocated per packet however many fields there are.
+ * <p>
+ * Supported fields:
+ * <pre>
+ *   0x04  scaled accelerometer vector      0x09  orientation matrix
+ *   0x05  scaled gyro vector               0x0A  quaternion
+ *   0x06  scaled magnetometer vector       0x0C  Euler angles
+ *   0x07  delta theta vector               0x10  stabilized mag vector (north)
+ *   0x08  delta velocity vector            0x11  stabilized accel vector (up)
+ *   0x12  GPS correlated timestamp
+ * </pre>
+ *
+ * @author Mike Fouche
+ */
+public class MipDataEncoder
+{
+    /**
+     * GPS correlated timestamp field - time of week, week number, flags.
+     */
+    public static final int GPS_TIMESTAMP = 0x12;
+
+    // Quantity (AttitudeState) that is not a float vector.
+    private static final int TIMESTAMP_QUANTITY = -1;
+    // Seconds in a GPS week.
+    private static final double SECONDS_PER_WEEK = 604800.0;
+
+    // The pre-rendered data packet.
+    private final byte[] packet;
+    // Big-endian view of the data packet - used to patch the values.
+    private final ByteBuffer view;
+    // Field descriptors, in packet order.
+    private final int[] descriptors;
+    // Quantity (AttitudeState) of each field.
+    private final int[] quantities;
+    // Offset of each field's data.
+    private final int[] offsets;
+    // Number of fields.
+    private final int count;
+    // Supported descriptors of the message format the encoder was built for
+    // (including any that did not fit).
+    private final int[] requested;
+    private final int requestedCount;
+    // Receives the values of one field.
+    private final float[] values;
+
+    /**
+     * Constructor - fields that would not fit in one packet are left out.
+     *
+     * @param format Field descriptors, in packet order (unsupported
+     * descriptors are skipped).
+     * @param formatCount Number of descriptors.
+     */
+    public MipDataEncoder(int[] format, int formatCount)
+    {
+        descriptors = new int[formatCount];
+        quantities = new int[formatCount];
+        offsets = new int[formatCount];
+        values = new float[9];
+
+        // Lay the fields out.
+        requested = new int[formatCount];
+        int r = 0;
+        int n = 0;
+        int payload = 0;
+        boolean full = false;
+        for(int k = 0; k < formatCount; k++)
+        {
+            if( !isSupported(format[k]) )
+            {
+                continue;
+            }
+            requested[r++] = format[k];
+
+            int fieldLen = 2 + dataLength(format[k]);
+            if( full || payload + fieldLen > 255 )
+            {
+                full = true;
+                continue;
+            }
+
+            descriptors[n] = format[k];
+            quantities[n] = quantity(format[k]);
+            offsets[n] = 4 + payload + 2;
+            payload += fieldLen;
+            n++;
+        }
+        count = n;
+        requestedCount = r;
+
+        packet = new byte[4 + payload + 2];
+        view = ByteBuffer.wrap(packet);
+        view.order(ByteOrder.BIG_ENDIAN);
+
+        // Load synch bytes at front of data pack
+        packet[0] = 0x75;
+        packet[1] = 0x65;
+        // Load IMU dataset descriptor
+        packet[2] = (byte)MipCommandSet.IMU_DATA_SET;
+        // data set field length
+        packet[3] = (byte)payload;
+        // Load the length and descriptor of each field
+        for(int k = 0; k < count; k++)
+        {
+            packet[offsets[k] - 2] = (byte)( 2 + dataLength(descriptors[k]) );
+            packet[offsets[k] - 1] = (byte)descriptors[k];
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Checks whether a field descriptor can be encoded.
+     *
+     * @param descriptor IMU data set field descriptor.
+     * @return True if the field is supported.
+     */
+    public static boolean isSupported(int descriptor)
+    {
+        switch (descriptor)
+        {
+            case 0x04:
+            case 0x05:
+            case 0x06:
+            case 0x07:
+            case 0x08:
+            case 0x09:
+            case 0x0A:
+            case 0x0C:
+            case 0x10:
+            case 0x11:
+            case GPS_TIMESTAMP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Maps a field descriptor to the AttitudeState quantity it carries.
+     */
+    private static int quantity(int descriptor)
+    {
+        switch (descriptor)
+        {
+            case 0x04:
+            case 0x11:
+                return AttitudeState.ACCELERATION;
+            case 0x05:
+                return AttitudeState.ANGULAR_RATE;
+            case 0x06:
+            case 0x10:
+                return AttitudeState.MAGNETIC_FIELD;
+            case 0x07:
+                return AttitudeState.DELTA_THETA;
+            case 0x08:
+                return AttitudeState.DELTA_VELOCITY;
+            case 0x09:
+                return AttitudeState.ORIENTATION_MATRIX;
+            case 0x0A:
+                return AttitudeState.QUATERNION;
+            case 0x0C:
+                return AttitudeState.EULER;
+            default:
+                return TIMESTAMP_QUANTITY;
+        }
+    }
+
+    /**
+     * Number of data bytes in a field.
+     */
+    private static int dataLength(int descriptor)
+    {
+        // Time of week (double), week number, flags.
+        if( descriptor == GPS_TIMESTAMP )
+        {
+            return 8 + 2 + 2;
+        }
+        return 4 * AttitudeState.size(quantity(descriptor));
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Patches the values of every field into the data packet and finishes the
+     * checksum.
+     *
+     * @param state The attitude to report.
+     * @param seconds Time since power-up (seconds) - the timestamp field
+     * reports it as the time of week, with the not-synchronized flags.
+     * @return The data packet - the same array every time, valid until the
+     * next call.
+     */
+    public byte[] encode(AttitudeState state, double seconds)
+    {
+        for(int k = 0; k < count; k++)
+        {
+            int off = offsets[k];
+
+            if( quantities[k] == TIMESTAMP_QUANTITY )
+            {
+                view.putDouble(off, seconds % SECONDS_PER_WEEK);
+                view.putShort(off + 8, (short)( seconds / SECONDS_PER_WEEK ));
+                view.putShort(off + 10, (short)0);
+                continue;
+            }
+
+            int n = state.put(quantities[k], values, 0);
+            for(int v = 0; v < n; v++)
+            {
+                view.putFloat(off + 4 * v, values[v]);
+            }
+        }
+
+        int checksumOffset = packet.length - 2;
+        Checksum.put(Checksum.mip(Checksum.INITIAL, packet, 0, checksumOffset), packet, checksumOffset);
+
+        return packet;
+    }
+
+    /**
+     * Checks whether this encoder was built for a message format.
+     *
+     * @param format Field descriptors, in packet order.
+     * @param formatCount Number of descriptors.
+     * @return True if the packet layout is the one the format asks for.
+     */
+    public boolean matches(int[] format, int formatCount)
+    {
+        int n = 0;
+        for(int k = 0; k < formatCount; k++)
+        {
+            if( !isSupported(format[k]) )
+            {
+                continue;
+            }
+            if( n == requestedCount || requested[n] != format[k] )
+            {
+                return false;
+            }
+            n++;
+        }
+
+        return n == requestedCount;
+    }
+
+    /**
+     * Retrieves the data packet length.
+     *
+     * @return The number of bytes in the data packet.
+     */
+    public int length()
+    {
+        return packet.length;
+    }
+
+} // end of class MipDataEncoder
@@ -0,0 +1,273 @@
+package ahrsemulator;
+
+import java.io.IOException;
+
+/**
+ * Incremental parser for MIP packets (3DM-GX3-35, 3DM-GX4-25 commands).
+ * <p>
+ * Bytes can be handed in in chunks of any size - a chunk may hold part of a
+ * packet, several packets back to back, or both.  The parser is a state
+ * machine: synch hunt, descriptor set, payload length, payload, checksum.
+ * <p>
+ * A packet that lies completely inside the chunk is checked and handed to the
+ * handler in place, without being copied.  Only a packet that is split across
+ * two reads is collected in the parser's own (preallocated) frame buffer.
+ * Packets with a bad checksum are dropped and counted, and the hunt for the
+ * next packet goes on from the byte after the false synch - on either path.
+ * A packet still being collected is also given up as soon as a complete,
+ * valid packet turns up inside it, so a stray synch pair with a long length
+ * can't swallow the commands behind it while it waits for its last bytes.
+ *
+ * @author Mike Fouche
+ */
+public class MipParser
+{
+    /**
+     * Receives each complete, checksum-verified packet.
+     */
+    public interface Handler
+    {
+        /**
+         * Called once for every complete packet.  The bytes are only valid
+         * for the duration of the call.
+         *
+         * @param b Byte array holding the packet.
+         * @param off Offset of the leading synch byte.
+         * @param len Packet length - synch bytes through checksum.
+         * @throws IOException If the reply cannot be sent.
+         */
+        void onPacket(byte[] b, int off, int len) throws IOException;
+    }
+
+    // MIP synch bytes.
+    private static final byte SYNC1 = 0x75;
+    private static final byte SYNC2 = 0x65;
+    // Synch (2), descriptor set (1), payload length (1).
+    private static final int HEADER = 4;
+    // Largest possible packet - header, 255 payload bytes, checksum.
+    private static final int MAX_PACKET = HEADER + 255 + 2;
+
+    // Parser states.
+    private static final int HUNT_SYNC1 = 0;
+    private static final int HUNT_SYNC2 = 1;
+    private static final int DESCRIPTOR = 2;
+    private static final int LENGTH = 3;
+    private static final int BODY = 4;
+
+    // Packet that is split across reads.
+    private final byte[] frame;
+    // Bytes of a failed frame, after its synch byte, being parsed again.
+    private final byte[] rescan;
+    // Number of bytes collected in the frame buffer.
+    private int frameLen;
+    // Number of bytes the packet in the frame buffer will have.
+    private int frameSize;
+    // Current parser state.
+    private int state;
+    // Number of complete packets handed to the handler.
+    private long packets;
+    // Number of packets dropped because of a bad checksum.
+    private long checksumErrors;
+
+    /**
+     * Constructor
+     */
+    public MipParser()
+    {
+        frame = new byte[MAX_PACKET];
+        rescan = new byte[MAX_PACKET];
+        state = HUNT_SYNC1;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Parses a chunk of bytes.
+     *
+     * @param b Byte array.
+     * @param off Offset of the first byte.
+     * @param len Number of bytes.
+     * @param handler Receives each complete packet.
+     * @return The number of complete packets found in this chunk.
+     * @throws IOException If the handler fails.
+     */
+    public int parse(byte[] b, int off, int len, Handler handler) throws IOException
+    {
+        int found = 0;
+        int end = off + len;
+        int k = off;
+
+        while( k < end )
+        {
+            // Fast path - a whole packet starts here and lies inside the chunk.
+            if( state == HUNT_SYNC1 && b[k] == SYNC1 && k + HEADER <= end
+                                    && b[k + 1] == SYNC2 )
+            {
+                int size = HEADER + ( b[k + 3] & 0xFF ) + 2;
+                if( k + size <= end )
+                {
+                    if( Checksum.isValidMip(b, k, size) )
+                    {
+                        packets++;
+                        found++;
+                        handler.onPacket(b, k, size);
+                        k += size;
+                    }
+                    else
+                    {
+                        // Not a packet (or a corrupted one) - keep hunting
+                        // from the next byte.
+                        checksumErrors++;
+                        k++;
+                    }
+                    continue;
+                }
+            }
+
+            // Slow path - collect the packet one byte at a time.
+            byte c = b[k++];
+
+            switch (state)
+            {
+                case HUNT_SYNC1:
+                    if( c == SYNC1 )
+                    {
+                        frame[0] = c;
+                        state = HUNT_SYNC2;
+                    }
+                    break;
+                case HUNT_SYNC2:
+                    if( c == SYNC2 )
+                    {
+                        frame[1] = c;
+                        state = DESCRIPTOR;
+                    }
+                    else
+                    {
+                        state = ( c == SYNC1 ) ? HUNT_SYNC2 : HUNT_SYNC1;
+                    }
+                    break;
+                case DESCRIPTOR:
+                    frame[2] = c;
+                    state = LENGTH;
+                    break;
+                case LENGTH:
+                    frame[3] = c;
+                    frameLen = HEADER;
+                    frameSize = HEADER + ( c & 0xFF ) + 2;
+                    state = BODY;
+                    break;
+                case BODY:
+                    // Copy as much of the rest of the packet as this chunk has.
+                    int n = Math.min(frameSize - frameLen - 1, end - k);
+                    frame[frameLen++] = c;
+                    System.arraycopy(b, k, frame, frameLen, n);
+                    frameLen += n;
+                    k += n;
+
+                    if( frameLen == frameSize )
+                    {
+                        state = HUNT_SYNC1;
+                        if( Checksum.isValidMip(frame, 0, frameSize) )
+                        {
+                            packets++;
+                            found++;
+                            handler.onPacket(frame, 0, frameSize);
+                        }
+                        else
+                        {
+                            found += resync(handler);
+                        }
+                    }
+                    else if( holdsPacket(frame, 1, frameLen) )
+                    {
+                        // The length can't be right - packets sent since are
+                        // already here.
+                        state = HUNT_SYNC1;
+                        found += resync(handler);
+                    }
+                    break;
+                default:
+                    state = HUNT_SYNC1;
+                    break;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Drops the packet in the frame buffer - not a packet, or a corrupted
+     * one - and, like the fast path, hunts again from the byte after its
+     * synch.  Only called once every byte of the chunk has been taken, so a
+     * packet that starts in the frame and ends in a later chunk is collected
+     * as usual.
+     *
+     * @param handler Receives each complete packet.
+     * @return The number of complete packets found in the frame.
+     * @throws IOException If the handler fails.
+     */
+    private int resync(Handler handler) throws IOException
+    {
+        checksumErrors++;
+
+        int n = frameLen - 1;
+        System.arraycopy(frame, 1, rescan, 0, n);
+        return parse(rescan, 0, n, handler);
+    }
+
+    /**
+     * Checks whether a complete, valid packet lies inside a run of bytes.
+     *
+     * @param b Byte array.
+     * @param off Offset of the first byte.
+     * @param end Offset after the last byte.
+     * @return True if there is one.
+     */
+    private static boolean holdsPacket(byte[] b, int off, int end)
+    {
+        for(int k = off; k + HEADER <= end; k++)
+        {
+            if( b[k] == SYNC1 && b[k + 1] == SYNC2 )
+            {
+                int size = HEADER + ( b[k + 3] & 0xFF ) + 2;
+                if( k + size <= end && Checksum.isValidMip(b, k, size) )
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Discards any partly received packet.
+     */
+    public void reset()
+    {
+        state = HUNT_SYNC1;
+        frameLen = 0;
+    }
+
+    /**
+     * Retrieves the number of complete packets parsed.
+     *
+     * @return The packet count.
+     */
+    public long getPacketCount()
+    {
+        return packets;
+    }
+
+    /**
+     * Retrieves the number of packets dropped because of a bad checksum.
+     *
+     * @return The checksum error count.
+     */
+    public long getChecksumErrors()
+    {
+        return checksumErrors;
+    }
+
+} // end of class MipParser
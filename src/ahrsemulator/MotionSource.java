@@ -0,0 +1,35 @@
+package ahrsemulator;
+
+/**
+ * Source of the attitude the emulators report.
+ * <p>
+ * A motion source maps an integer time step to roll, pitch, and heading
+ * (radians).  It must be a pure function of the time step - the same step
+ * always gives the same angles - so a source can be shared by any number of
+ * emulators and samples can be generated ahead of time in blocks.
+ *
+ * @author Mike Fouche
+ */
+public interface MotionSource
+{
+    /**
+     * Computes the attitude at one time step.
+     *
+     * @param step Integer time step.
+     * @param euler Receives roll, pitch, and heading (radians).
+     * @param off Offset of the roll value in the euler array.
+     */
+    void sample(long step, float[] euler, int off);
+
+    /**
+     * Computes the attitude at a block of consecutive time steps.  The values
+     * are stored roll, pitch, heading, roll, pitch, heading, ...
+     *
+     * @param step First time step.
+     * @param count Number of time steps.
+     * @param euler Receives 3 * count values.
+     * @param off Offset of the first roll value in the euler array.
+     */
+    void sampleBlock(long step, int count, float[] euler, int off);
+
+} // end of interface MotionSource
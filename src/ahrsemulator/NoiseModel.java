@@ -0,0 +1,140 @@
+package ahrsemulator;
+
+/**
+ * The errors of one emulated sensor - one SensorError each for the reported
+ * attitude, the gyros, the accelerometers, and the magnetometers.
+ * <p>
+ * A noise model holds the state of its biases, so every emulator needs its
+ * own.  Everything is derived from one seed: the same seed (and the same
+ * sequence of requests) reproduces the same data packets exactly.
+ *
+ * @author Mike Fouche
+ */
+public class NoiseModel
+{
+    // Time steps per second (AttitudeState steps are 10 ms).
+    private static final double STEPS_PER_SECOND = 100.0;
+    // Degrees to radians.
+    private static final double DEG = Math.PI / 180.0;
+
+    // Error of the reported roll, pitch, heading (radians).
+    private final SensorError attitude;
+    // Error of the angular rates (rad/s).
+    private final SensorError gyro;
+    // Error of the accelerations (g).
+    private final SensorError accel;
+    // Error of the magnetic field (Gauss).
+    private final SensorError mag;
+
+    /**
+     * Constructor
+     *
+     * @param attitude Error of the reported roll, pitch, heading (radians) -
+     * null for none.
+     * @param gyro Error of the angular rates (rad/s) - null for none.
+     * @param accel Error of the accelerations (g) - null for none.
+     * @param mag Error of the magnetic field (Gauss) - null for none.
+     */
+    public NoiseModel(SensorError attitude, SensorError gyro, SensorError accel, SensorError mag)
+    {
+        this.attitude = attitude;
+        this.gyro = gyro;
+        this.accel = accel;
+        this.mag = mag;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Builds a noise model with errors typical of a tactical grade MEMS AHRS
+     * (3DM-GX4-25 data sheet figures):
+     * <pre>
+     *   attitude  0.05 deg noise, 0.25 deg bias instability (10 s)
+     *   gyro      0.005 deg/s/rtHz noise, 10 deg/hr bias instability (100 s),
+     *             16 bit counts over +/-300 deg/s
+     *   accel     100 ug/rtHz noise, 40 ug bias instability (100 s),
+     *             16 bit counts over +/-5 g
+     *   mag       400 uGauss/rtHz noise, 16 bit counts over +/-2.5 Gauss
+     * </pre>
+     *
+     * @param seed Seed of the random numbers.
+     * @return The noise model.
+     */
+    public static NoiseModel typical(long seed)
+    {
+        // Noise densities become per sample standard deviations at the time
+        // step rate.
+        double rootRate = Math.sqrt(STEPS_PER_SECOND);
+
+        // Each sensor gets its own, independent, random numbers - mixing the
+        // seed first keeps seeds 1, 2, 3 ... (one per emulator) apart.
+        long base = FastRandom.splitMix(seed);
+        return new NoiseModel(
+            new SensorError(0.05 * DEG, 0.25 * DEG, 10.0 * STEPS_PER_SECOND,
+                            0.0, 0.0f, FastRandom.splitMix(base)),
+            new SensorError(0.005 * DEG * rootRate, 10.0 * DEG / 3600.0, 100.0 * STEPS_PER_SECOND,
+                            1.0e-6, (float)( 300.0 * DEG / 32768.0 ), FastRandom.splitMix(base + 1)),
+            new SensorError(100.0e-6 * rootRate, 40.0e-6, 100.0 * STEPS_PER_SECOND,
+                            0.0, 5.0f / 32768.0f, FastRandom.splitMix(base + 2)),
+            new SensorError(400.0e-6 * rootRate, 0.0, 1.0,
+                            0.0, 2.5f / 32768.0f, FastRandom.splitMix(base + 3)));
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Adds the attitude error at one time step.
+     *
+     * @param euler Roll, pitch, heading (radians) - replaced by the reported
+     * values.
+     * @param step Integer time step.
+     */
+    public void applyAttitude(float[] euler, long step)
+    {
+        if( attitude != null )
+        {
+            attitude.apply(euler, 0, step);
+        }
+    }
+
+    /**
+     * Adds the gyro error at one time step.
+     *
+     * @param rates Angular rates (rad/s) - replaced by the measured values.
+     * @param step Integer time step.
+     */
+    public void applyGyro(float[] rates, long step)
+    {
+        if( gyro != null )
+        {
+            gyro.apply(rates, 0, step);
+        }
+    }
+
+    /**
+     * Adds the accelerometer error at one time step.
+     *
+     * @param acceleration Accelerations (g) - replaced by the measured values.
+     * @param step Integer time step.
+     */
+    public void applyAccel(float[] acceleration, long step)
+    {
+        if( accel != null )
+        {
+            accel.apply(acceleration, 0, step);
+        }
+    }
+
+    /**
+     * Adds the magnetometer error at one time step.
+     *
+     * @param field Magnetic field (Gauss) - replaced by the measured values.
+     * @param step Integer time step.
+     */
+    public void applyMag(float[] field, long step)
+    {
+        if( mag != null )
+        {
+            mag.apply(field, 0, step);
+        }
+    }
+
+} // end of class NoiseModel
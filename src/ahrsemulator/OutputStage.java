@@ -0,0 +1,445 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writer side of an emulator - takes the packets off a PacketQueue and
+ * writes them to the transport on a thread of its own.
+ * <p>
+ * The emulator writes to the stage as if it were the transport's output
+ * stream, but a write only copies the packet into a preallocated slot, so
+ * reading requests and generating packets never wait on a slow or stalled
+ * port.  When every slot is full the overflow policy decides what happens:
+ * <ul>
+ * <li>BLOCK - the emulator waits for the writer to catch up.  That wait is
+ * counted in the metrics as queue stall time.</li>
+ * <li>DROP_OLDEST - the oldest queued packet is thrown away to make room.</li>
+ * <li>CONFLATE - continuous mode data packets skip the queue and go through
+ * a single slot mailbox that only ever holds the latest one, so a host that
+ * reads too slowly still gets fresh attitude rather than an ever older
+ * backlog.  Command replies and polled packets still queue (and wait).</li>
+ * </ul>
+ * Packets thrown away are counted in the metrics as dropped packets, and
+ * the queue depth is published next to them.
+ * <p>
+ * The writer takes every packet that is ready and sends them in a single
+ * write, so a burst costs one system call rather than one per packet.  With
+ * a coalescing delay set it also waits, up to that long after taking the
+ * first packet, for more to join it.
+ * <p>
+ * An action can wait in line behind the packets queued so far (afterQueued)
+ * - the writer ends the write at the last of them and then runs it, e.g. to
+ * change the line rate once a reply has gone out at the old one.
+ *
+ * @author Mike Fouche
+ */
+public class OutputStage extends OutputStream implements Runnable
+{
+    /**
+     * What to do with a packet when the output queue is full.
+     */
+    public enum Overflow
+    {
+        /** Wait for the writer to catch up. */
+        BLOCK,
+        /** Throw away the oldest queued packet. */
+        DROP_OLDEST,
+        /** Keep only the latest continuous mode data packet. */
+        CONFLATE
+    }
+
+    /**
+     * Largest packet a slot holds (bytes) - big enough for any MIP packet
+     * (4 + 255 + 2); longer writes are split over several slots.
+     */
+    public static final int SLOT_SIZE = 512;
+    // How long the emulator waits before checking again for a free slot
+    // (nanoseconds).
+    private static final long STALL_PARK_NANOS = 20000L;
+    // Most packets sent in one write.
+    private static final int BATCH = 16;
+    // How long the writer waits before checking again for packets to
+    // coalesce (nanoseconds).
+    private static final long LINGER_PARK_NANOS = 10000L;
+
+    // Where the packets go.
+    private final OutputStream link;
+    // Packets waiting to be written.
+    private final PacketQueue queue;
+    // Latest continuous mode data packet - null unless conflating.
+    private final PacketMailbox latest;
+    // What to do when the queue is full.
+    private final Overflow overflow;
+    // Writer's copy of the packets being written.
+    private final byte[] sendBuffer;
+    // Longest the writer waits for more packets to join a write
+    // (nanoseconds) - 0 to send whatever is ready.
+    private volatile long coalesceNanos;
+    // Short description of the link - names the writer thread.
+    private final String name;
+    // Metrics of the emulator's current model - replaced on a model switch.
+    private volatile EmulatorMetrics metrics;
+    // Writer thread - null until started.
+    private volatile Thread writer;
+    // True while the writer is parked with nothing to write.
+    private volatile boolean writerParked;
+    // True once the stage has been closed.
+    private volatile boolean closed;
+    // Why the writer stopped - null while it is running.
+    private volatile IOException failure;
+    // Runs on the writer thread once the queue has been taken up to
+    // barrierMark - holds null when there is none.
+    private final AtomicReference<Runnable> barrier;
+    // Queue sequence number (PacketQueue.getQueued) the barrier waits for.
+    private volatile long barrierMark;
+
+    /**
+     * Constructor
+     *
+     * @param link The transport's output stream.
+     * @param depth Number of packets that can be waiting.
+     * @param overflow What to do when the queue is full.
+     * @param name Short description of the link - e.g. "tcp:5000".
+     * @param metrics Metrics of the emulator's current model.
+     */
+    public OutputStage(OutputStream link, int depth, Overflow overflow, String name,
+                       EmulatorMetrics metrics)
+    {
+        this.link = link;
+        this.overflow = overflow;
+        this.name = name;
+        this.metrics = metrics;
+
+        queue = new PacketQueue(depth, SLOT_SIZE);
+        latest = ( overflow == Overflow.CONFLATE ) ? new PacketMailbox(SLOT_SIZE) : null;
+        sendBuffer = new byte[SLOT_SIZE * BATCH];
+        barrier = new AtomicReference<>();
+        metrics.setOutputQueue(queue);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Starts the writer thread.
+     */
+    public void start()
+    {
+        Thread t = new Thread(this, "Writer-"+name);
+        t.setDaemon(true);
+        writer = t;
+        t.start();
+    }
+
+    /**
+     * Lets the writer wait for more packets to join a write.  Must be set
+     * before the stage is started.
+     *
+     * @param maxDelayMicros Longest a packet waits for others
+     * (microseconds) - 0 to send whatever is ready.
+     */
+    public void setCoalesceDelay(long maxDelayMicros)
+    {
+        this.coalesceNanos = maxDelayMicros * 1000L;
+    }
+
+    /**
+     * Points the queue metrics at the emulator's new model.
+     *
+     * @param m Metrics of the emulator's current model.
+     */
+    public void setMetrics(EmulatorMetrics m)
+    {
+        metrics.setOutputQueue(null);
+        m.setOutputQueue(queue);
+        metrics = m;
+    }
+
+    /**
+     * Retrieves the packet queue.
+     *
+     * @return The queue.
+     */
+    public PacketQueue getQueue()
+    {
+        return queue;
+    }
+
+    /**
+     * Retrieves the overflow policy.
+     *
+     * @return What happens when the queue is full.
+     */
+    public Overflow getOverflow()
+    {
+        return overflow;
+    }
+
+    //--------------------------------------------------------------------------
+    @Override
+    public void write(int b) throws IOException
+    {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    /**
+     * Queues a packet for the writer thread.  Emulator thread only.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        checkWriter();
+
+        while( len > 0 )
+        {
+            int n = Math.min(len, SLOT_SIZE);
+
+            if( !queue.offer(b, off, n) )
+            {
+                if( overflow == Overflow.DROP_OLDEST )
+                {
+                    dropOldest(b, off, n);
+                }
+                else
+                {
+                    awaitSlot(b, off, n);
+                }
+            }
+
+            off += n;
+            len -= n;
+        }
+
+        wakeWriter();
+    }
+
+    /**
+     * Sends a continuous mode data packet - only the latest one is kept when
+     * conflating, otherwise it is queued like any other packet.  Emulator
+     * thread only.
+     *
+     * @param b The packet bytes.
+     * @param off Offset of the packet.
+     * @param len Packet length.
+     * @throws IOException If the writer has failed.
+     */
+    public void writeLatest(byte[] b, int off, int len) throws IOException
+    {
+        if( latest == null || len > SLOT_SIZE )
+        {
+            write(b, off, len);
+            return;
+        }
+
+        checkWriter();
+
+        if( latest.put(b, off, len) )
+        {
+            metrics.addDroppedPackets(1);
+        }
+
+        wakeWriter();
+    }
+
+    /**
+     * Runs an action on the writer thread as soon as every packet queued so
+     * far has been written (or dropped) - the write that carries the last of
+     * them ends there.  Continuous mode packets that skip the queue
+     * (CONFLATE) are not waited for.  An action that has not run yet is
+     * replaced by the next one.  Emulator thread only.
+     *
+     * @param action What to run.
+     */
+    public void afterQueued(Runnable action)
+    {
+        barrierMark = queue.getQueued();
+        barrier.set(action);
+
+        // The writer may have nothing left to write.
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Throws away queued packets until this one fits.
+     */
+    private void dropOldest(byte[] b, int off, int len)
+    {
+        do
+        {
+            if( queue.dropOldest() )
+            {
+                metrics.addDroppedPackets(1);
+            }
+        }
+        while( !queue.offer(b, off, len) );
+    }
+
+    /**
+     * Waits for the writer to free a slot and queues the packet.
+     */
+    private void awaitSlot(byte[] b, int off, int len) throws IOException
+    {
+        long start = System.nanoTime();
+
+        do
+        {
+            checkWriter();
+            if( closed )
+            {
+                throw new IOException("Output closed on "+name);
+            }
+
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(STALL_PARK_NANOS);
+        }
+        while( !queue.offer(b, off, len) );
+
+        metrics.addQueueStall(System.nanoTime() - start);
+    }
+
+    private void checkWriter() throws IOException
+    {
+        if( failure != null )
+        {
+            throw new IOException("Writer failed on "+name, failure);
+        }
+    }
+
+    private void wakeWriter()
+    {
+        // Only if it has run out of work.
+        if( writerParked )
+        {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Stops the writer - whatever is still queued is discarded.  Does not
+     * wait for a write that is blocked on the transport (closing the
+     * transport ends it).
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark(writer);
+        metrics.setOutputQueue(null);
+    }
+
+    //--------------------------------------------------------------------------
+    @Override
+    public void run()
+    {
+        try
+        {
+            while( !closed )
+            {
+                runBarrier();
+                int len = fill(0);
+
+                if( len == 0 )
+                {
+                    // Check again after saying we are going to sleep, so a
+                    // packet queued in between is not missed.
+                    writerParked = true;
+                    if( isIdle() && !closed )
+                    {
+                        LockSupport.park(this);
+                    }
+                    writerParked = false;
+                    continue;
+                }
+
+                // Give more packets a chance to join this write.
+                long delay = coalesceNanos;
+                if( delay > 0 )
+                {
+                    long deadline = System.nanoTime() + delay;
+                    while( len <= sendBuffer.length - SLOT_SIZE && !closed )
+                    {
+                        long left = deadline - System.nanoTime();
+                        if( left <= 0 )
+                        {
+                            break;
+                        }
+                        if( isIdle() )
+                        {
+                            LockSupport.parkNanos(Math.min(left, LINGER_PARK_NANOS));
+                        }
+                        len = fill(len);
+                    }
+                }
+
+                link.write(sendBuffer, 0, len);
+            }
+        }
+        catch(IOException e)
+        {
+            // A link closed on purpose is not a failure.
+            if( !closed )
+            {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * Takes the packets that are ready - replies first, then the latest data
+     * packet - while there is room in the send buffer.
+     *
+     * @param len Number of bytes already in the send buffer.
+     * @return Number of bytes in the send buffer.
+     */
+    private int fill(int len)
+    {
+        // A waiting action ends the write at the packets in front of it.
+        long mark = ( barrier.get() != null ) ? barrierMark : Long.MAX_VALUE;
+
+        while( len <= sendBuffer.length - SLOT_SIZE )
+        {
+            if( queue.getTaken() >= mark )
+            {
+                return len;
+            }
+
+            int n = queue.poll(sendBuffer, len);
+            if( n < 0 )
+            {
+                break;
+            }
+            len += n;
+        }
+
+        if( latest != null && len <= sendBuffer.length - SLOT_SIZE )
+        {
+            int n = latest.take(sendBuffer, len);
+            if( n > 0 )
+            {
+                len += n;
+            }
+        }
+
+        return len;
+    }
+
+    /**
+     * Runs the waiting action once the packets in front of it have gone.
+     */
+    private void runBarrier()
+    {
+        Runnable action = barrier.get();
+        if( action != null && queue.getTaken() >= barrierMark
+            && barrier.compareAndSet(action, null) )
+        {
+            action.run();
+        }
+    }
+
+    private boolean isIdle()
+    {
+        return queue.isEmpty() && ( latest == null || !latest.hasPacket() );
+    }
+
+} // end of class OutputStage
@@ -0,0 +1,139 @@
+package ahrsemulator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reusable encoder for a fixed layout data packet - any of the 3DM-GX2
+ * single byte protocol replies.
+ * <p>
+ * The packet is rendered once, when the encoder is built - synch bytes,
+ * descriptors, and field lengths never change.  Encoding a packet only patches
+ * the float values (and the timer, for the 3DM-GX2) in
+ * place and then finishes the checksum, so nothing is allocated per packet.
+ * The checksum state of the constant header is also computed once, so each
+ * packet only pays for its payload bytes.  Each emulator owns its own encoder
+ * (the packet array is reused for every packet it sends).
+ *
+ * @author Mike Fouche
+ */
+public class PacketEncoder
+{
+    /**
+     * 3DM-GX2 single byte protocol reply - additive checksum.
+     */
+    public static final int FORMAT_GX2 = 1;
+    /**
+     * MIP packet - Fletcher checksum.
+     */
+    public static final int FORMAT_MIP = 2;
+
+    // The pre-rendered data packet.
+    private final byte[] packet;
+    // Big-endian view of the data packet - used to patch the floats.
+    private final ByteBuffer view;
+    // Packet format (FORMAT_GX2 or FORMAT_MIP).
+    private final int format;
+    // Offset of the first float value.
+    private final int eulerOffset;
+    // Offset of the timer value, or -1 if the packet has no timer.
+    private final int timerOffset;
+    // Offset of the checksum (the last two bytes).
+    private final int checksumOffset;
+    // Checksum state of the constant bytes in front of the first float value.
+    private final int headerChecksum;
+
+    /**
+     * Constructor
+     *
+     * @param template The data packet with everything but the float values,
+     * timer, and checksum filled in.
+     * @param format FORMAT_GX2 or FORMAT_MIP.
+     * @param eulerOffset Offset of the first float value in the packet.
+     * @param timerOffset Offset of the timer value, or -1 if there is none.
+     */
+    public PacketEncoder(byte[] template, int format, int eulerOffset, int timerOffset)
+    {
+        this.packet = template;
+        this.format = format;
+        this.eulerOffset = eulerOffset;
+        this.timerOffset = timerOffset;
+        this.checksumOffset = template.length - 2;
+
+        view = ByteBuffer.wrap(packet);
+        view.order(ByteOrder.BIG_ENDIAN);
+
+        // Everything in front of the first float value is constant.
+        headerChecksum = checksum(Checksum.INITIAL, 0, eulerOffset);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Builds the encoder for a 3DM-GX2 single byte protocol reply that
+     * carries float values.
+     * <p>
+     * |command| - echo of the command byte
+     * 4 bytes for each float value
+     * 4 bytes of timer, 2 bytes of checksum
+     *
+     * @param command The command byte.
+     * @param floatCount Number of float values in the reply.
+     * @return The encoder.
+     */
+    public static PacketEncoder gx2Reply(int command, int floatCount)
+    {
+        byte[] template = new byte[1 + 4 * floatCount + 4 + 2];
+
+        // Echo the command byte back at front of data pack
+        template[0] = (byte)command;
+
+        return new PacketEncoder(template, FORMAT_GX2, 1, 1 + 4 * floatCount);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Patches float values and the timer into the data packet and finishes
+     * the checksum.
+     *
+     * @param values The values, in packet order.
+     * @param count Number of values - must fill the packet.
+     * @param timer Timer ticks - ignored if the packet has no timer.
+     * @return The data packet - the same array every time, valid until the
+     * next call.
+     */
+    public byte[] encodeFloats(float[] values, int count, int timer)
+    {
+        for(int k = 0; k < count; k++)
+        {
+            view.putFloat(eulerOffset + 4 * k, values[k]);
+        }
+
+        if( timerOffset >= 0 )
+        {
+            view.putInt(timerOffset, timer);
+        }
+
+        int sum = checksum(headerChecksum, eulerOffset, checksumOffset - eulerOffset);
+        Checksum.put(sum, packet, checksumOffset);
+
+        return packet;
+    }
+
+    /**
+     * Retrieves the data packet length.
+     *
+     * @return The number of bytes in the data packet.
+     */
+    public int length()
+    {
+        return packet.length;
+    }
+
+    //--------------------------------------------------------------------------
+    private int checksum(int state, int off, int len)
+    {
+        return ( format == FORMAT_MIP ) ? Checksum.mip(state, packet, off, len)
+                                        : Checksum.gx2(state, packet, off, len);
+    }
+
+} // end of class PacketEncoder
@@ -0,0 +1,106 @@
+package ahrsemulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single slot mailbox that always holds the latest packet - a new packet
+ * replaces one the consumer has not taken yet.
+ * <p>
+ * It is a triple buffer: the producer fills its own buffer and swaps it for
+ * the one in the mailbox in a single atomic exchange, and the consumer swaps
+ * its own buffer for the mailbox's when a fresh one is there.  Neither side
+ * ever waits for the other or allocates, and neither ever sees a half
+ * written packet.
+ * <p>
+ * Exactly one thread may call put() and exactly one (other) thread may call
+ * take().
+ *
+ * @author Mike Fouche
+ */
+public class PacketMailbox
+{
+    // Set in the mailbox index while its buffer holds a packet the consumer
+    // has not taken.
+    private static final int FRESH = 4;
+    // Buffer index mask.
+    private static final int INDEX = 3;
+
+    // The three buffers.
+    private final byte[][] buffers;
+    // Number of bytes in each buffer.
+    private final int[] lengths;
+    // Buffer in the mailbox, plus the FRESH bit.
+    private final AtomicInteger mailbox;
+    // Buffer the producer fills next.
+    private int back;
+    // Buffer the consumer took last.
+    private int front;
+
+    /**
+     * Constructor
+     *
+     * @param size Largest packet (bytes).
+     */
+    public PacketMailbox(int size)
+    {
+        buffers = new byte[3][size];
+        lengths = new int[3];
+
+        back = 0;
+        mailbox = new AtomicInteger(1);
+        front = 2;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Posts a packet.  Producer thread only.
+     *
+     * @param b The packet bytes.
+     * @param off Offset of the packet.
+     * @param len Packet length - at most the mailbox size.
+     * @return True if the packet replaced one the consumer had not taken.
+     */
+    public boolean put(byte[] b, int off, int len)
+    {
+        System.arraycopy(b, off, buffers[back], 0, len);
+        lengths[back] = len;
+
+        int old = mailbox.getAndSet(back | FRESH);
+        back = old & INDEX;
+
+        return ( old & FRESH ) != 0;
+    }
+
+    /**
+     * Takes the latest packet, if there is a new one.  Consumer thread only.
+     *
+     * @param dst Receives the packet - must have room for the mailbox size.
+     * @param off Where the packet goes in dst.
+     * @return The packet length, or -1 if nothing new has been posted.
+     */
+    public int take(byte[] dst, int off)
+    {
+        if( !hasPacket() )
+        {
+            return -1;
+        }
+
+        front = mailbox.getAndSet(front) & INDEX;
+
+        int len = lengths[front];
+        System.arraycopy(buffers[front], 0, dst, off, len);
+
+        return len;
+    }
+
+    /**
+     * Retrieves whether a packet is waiting.
+     *
+     * @return True if a packet has been posted and not taken.
+     */
+    public boolean hasPacket()
+    {
+        return ( mailbox.get() & FRESH ) != 0;
+    }
+
+} // end of class PacketMailbox
@@ -0,0 +1,220 @@
+package ahrsemulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single producer / single consumer ring of packet slots.
+ * <p>
+ * Every slot is allocated up front, so a packet is queued by copying it into
+ * the next free slot and taken by copying it back out - no allocation, no
+ * locks.  Only the producer moves the tail, publishing each packet with a
+ * single atomic write, which is all the consumer needs to see the slot
+ * contents.  The consumer moves the head - and so does the producer when it
+ * drops the oldest packet, which is why the head moves by compare and set.
+ * <p>
+ * Exactly one thread may call offer() / dropOldest() and exactly one (other)
+ * thread may call poll().
+ *
+ * @author Mike Fouche
+ */
+public class PacketQueue
+{
+    // Slots - capacity is a power of 2 so a sequence number masks to a slot.
+    private final byte[][] slots;
+    // Number of bytes in each slot.
+    private final int[] lengths;
+    // Sequence number to slot mask.
+    private final int mask;
+    // Largest packet a slot holds.
+    private final int slotSize;
+    // Sequence number of the next packet to take (consumer).
+    private final AtomicLong head;
+    // Sequence number of the next packet to queue (producer).
+    private final AtomicLong tail;
+    // Producer's copy of the head - only re-read when the ring looks full.
+    private long headCache;
+
+    /**
+     * Constructor
+     *
+     * @param depth Number of packets the queue holds - rounded up to a power
+     * of 2.
+     * @param slotSize Largest packet (bytes).
+     */
+    public PacketQueue(int depth, int slotSize)
+    {
+        if( depth < 1 || depth > ( 1 << 20 ) )
+        {
+            throw new IllegalArgumentException("Bad queue depth "+depth);
+        }
+
+        int capacity = Integer.highestOneBit(depth);
+        if( capacity < depth )
+        {
+            capacity <<= 1;
+        }
+
+        this.mask = capacity - 1;
+        this.slotSize = slotSize;
+
+        slots = new byte[capacity][slotSize];
+        lengths = new int[capacity];
+        head = new AtomicLong();
+        tail = new AtomicLong();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Queues a packet.  Producer thread only.
+     *
+     * @param b The packet bytes.
+     * @param off Offset of the packet.
+     * @param len Packet length - at most the slot size.
+     * @return True if queued, false if the queue is full.
+     */
+    public boolean offer(byte[] b, int off, int len)
+    {
+        if( len > slotSize )
+        {
+            throw new IllegalArgumentException("Packet of "+len+" bytes is larger than a slot");
+        }
+
+        long t = tail.get();
+        if( t - headCache > mask )
+        {
+            headCache = head.get();
+            if( t - headCache > mask )
+            {
+                return false;
+            }
+        }
+
+        int slot = (int)t & mask;
+        System.arraycopy(b, off, slots[slot], 0, len);
+        lengths[slot] = len;
+
+        // Publish the slot - a full volatile write, so a consumer about to
+        // park can't miss it (see OutputStage).
+        tail.set(t + 1);
+
+        return true;
+    }
+
+    /**
+     * Throws away the oldest packet to make room.  Producer thread only.
+     *
+     * @return True if a packet was thrown away, false if the consumer took
+     * it first (there is room now either way).
+     */
+    public boolean dropOldest()
+    {
+        long h = head.get();
+        if( h == tail.get() )
+        {
+            return false;
+        }
+
+        boolean dropped = head.compareAndSet(h, h + 1);
+        headCache = head.get();
+
+        return dropped;
+    }
+
+    /**
+     * Takes the oldest packet.  Consumer thread only.
+     *
+     * @param dst Receives the packet - must have room for a full slot.
+     * @param off Where the packet goes in dst.
+     * @return The packet length, or -1 if the queue is empty.
+     */
+    public int poll(byte[] dst, int off)
+    {
+        while( true )
+        {
+            long h = head.get();
+            if( h == tail.get() )
+            {
+                return -1;
+            }
+
+            int slot = (int)h & mask;
+            int len = lengths[slot];
+            System.arraycopy(slots[slot], 0, dst, off, len);
+
+            // The slot can only be reused once the head has moved past it, so
+            // if the head is still here the copy is good.  If not, the
+            // producer dropped the packet (and may be overwriting the slot)
+            // while it was being copied - try the next one.
+            if( head.compareAndSet(h, h + 1) )
+            {
+                return len;
+            }
+        }
+    }
+
+    /**
+     * Retrieves whether any packets are waiting.
+     *
+     * @return True if the queue is empty.
+     */
+    public boolean isEmpty()
+    {
+        return head.get() == tail.get();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves the number of packets waiting.  Safe from any thread.
+     *
+     * @return The number of queued packets.
+     */
+    public int size()
+    {
+        long h = head.get();
+        return (int)( tail.get() - h );
+    }
+
+    /**
+     * Retrieves how many packets have been queued - once getTaken() reaches
+     * this number every one of them has left the queue.  Safe from any
+     * thread.
+     *
+     * @return Sequence number of the next packet to queue.
+     */
+    public long getQueued()
+    {
+        return tail.get();
+    }
+
+    /**
+     * Retrieves how many packets have left the queue, taken or dropped.
+     * Safe from any thread.
+     *
+     * @return Sequence number of the next packet to take.
+     */
+    public long getTaken()
+    {
+        return head.get();
+    }
+
+    /**
+     * Retrieves the number of slots.
+     *
+     * @return The queue capacity (packets).
+     */
+    public int capacity()
+    {
+        return mask + 1;
+    }
+
+    /**
+     * Retrieves the largest packet a slot holds.
+     *
+     * @return The slot size (bytes).
+     */
+    public int getSlotSize()
+    {
+        return slotSize;
+    }
+
+} // end of class PacketQueue
@@ -0,0 +1,99 @@
+package ahrsemulator;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * In-JVM transport - two byte pipes, one in each direction.
+ * <p>
+ * The emulator side uses getInputStream / getOutputStream like any other
+ * transport.  The host side (a test driver, a load generator, a benchmark)
+ * uses getHostInputStream / getHostOutputStream.
+ *
+ * @author Mike Fouche
+ */
+public class PipeTransport implements Transport
+{
+    /**
+     * Default number of bytes each pipe can hold.
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    // Bytes travelling from the host to the emulator (commands).
+    private final BytePipe toDevice;
+    // Bytes travelling from the emulator to the host (data packets).
+    private final BytePipe toHost;
+
+    /**
+     * Constructor
+     */
+    public PipeTransport()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity Number of bytes each pipe can hold.
+     */
+    public PipeTransport(int capacity)
+    {
+        toDevice = new BytePipe(capacity);
+        toHost = new BytePipe(capacity);
+    }
+
+    @Override
+    public void open()
+    {
+        // Nothing to do - the pipes exist as soon as the object does.
+    }
+
+    @Override
+    public InputStream getInputStream()
+    {
+        return toDevice.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream()
+    {
+        return toHost.getOutputStream();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves the stream the host reads the emulator's data packets from.
+     *
+     * @return The host input stream.
+     */
+    public InputStream getHostInputStream()
+    {
+        return toHost.getInputStream();
+    }
+
+    /**
+     * Retrieves the stream the host writes its commands to.
+     *
+     * @return The host output stream.
+     */
+    public OutputStream getHostOutputStream()
+    {
+        return toDevice.getOutputStream();
+    }
+
+    //--------------------------------------------------------------------------
+    @Override
+    public void close()
+    {
+        toDevice.close();
+        toHost.close();
+    }
+
+    @Override
+    public String getName()
+    {
+        return "pipe";
+    }
+
+} // end of class PipeTransport
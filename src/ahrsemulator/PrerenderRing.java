@@ -0,0 +1,369 @@
+package ahrsemulator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Polled data packets rendered ahead of time - answering a poll becomes a
+ * copy out of the ring instead of the motion, the derived quantities, the
+ * encoding, and the checksum on the path from the request to the reply.
+ * <p>
+ * A producer thread of its own keeps the packets for the next N motion time
+ * steps ready in an off-heap ring - the packet for step s lives in slot
+ * s % N - in the format the host polled for last.  The motion source is a
+ * pure function of the time step, so the producer works out the attitude
+ * for any step on its own, and the packet timestamps (MIP time of week,
+ * single byte protocol timer) are those of the start of the step.  A poll in
+ * another format, or one the producer has not got to, is answered on demand
+ * and points the producer at the new format.
+ * <p>
+ * Each slot has a StampedLock.  The producer takes the write lock while it
+ * fills the slot; the emulator copies the packet under an optimistic read
+ * and throws the copy away if the producer got in - so the emulator never
+ * waits, never allocates, and never sends a half written packet.
+ * <p>
+ * Exactly one thread (the emulator's) may call take().
+ *
+ * @author Mike Fouche
+ */
+public class PrerenderRing implements Runnable
+{
+    // Largest packet a slot holds (bytes).
+    private static final int SLOT_SIZE = OutputStage.SLOT_SIZE;
+
+    // Packets, one slot per time step.
+    private final ByteBuffer slots;
+    // Emulator's and producer's views of the packets.
+    private final ByteBuffer readView;
+    private final ByteBuffer writeView;
+    // Guards each slot.
+    private final StampedLock[] locks;
+    // Time step of the packet in each slot.
+    private final long[] steps;
+    // Number of bytes in each slot.
+    private final int[] lengths;
+    // Format the packet in each slot was rendered in.
+    private final Format[] formats;
+    // Number of slots - how many time steps ahead the packets are ready.
+    private final int depth;
+    // Generates the attitude.
+    private final MotionSource motion;
+    // Simulated time of the emulator.
+    private final SimulationClock clock;
+    // Time step at power-up.
+    private final int firstStep;
+    // Single byte protocol timer rate (ticks per second).
+    private final double timerHz;
+    // Producer's attitude and single byte protocol encoder.
+    private final AttitudeState attitude;
+    private final SingleByteProtocol singleByte;
+    // How long the producer sleeps once it is far enough ahead (nanoseconds).
+    private final long parkNanos;
+    // Short description of the link - names the producer thread.
+    private final String name;
+    // Format the host polled for last - null until the first poll.
+    private volatile Format format;
+    // Producer thread - null until started.
+    private volatile Thread producer;
+    // True once the ring has been closed.
+    private volatile boolean closed;
+    // Polls answered from the ring / on demand (emulator thread).
+    private long hits;
+    private long misses;
+
+    /**
+     * Constructor
+     *
+     * @param depth Number of time steps to render ahead.
+     * @param motion Generates the attitude - must be a pure function of the
+     * time step.
+     * @param clock Simulated time of the emulator - already started, and not
+     * as fast as possible.
+     * @param firstStep Time step at power-up.
+     * @param timerHz Single byte protocol timer rate (ticks per second).
+     * @param name Short description of the link - e.g. "tcp:5000".
+     */
+    public PrerenderRing(int depth, MotionSource motion, SimulationClock clock, int firstStep,
+                         double timerHz, String name)
+    {
+        if( depth < 2 || depth > 4096 )
+        {
+            throw new IllegalArgumentException("Bad pre-render depth "+depth);
+        }
+        if( clock.isAsFastAsPossible() )
+        {
+            throw new IllegalArgumentException("No time to render ahead of on an as fast as possible clock");
+        }
+
+        this.depth = depth;
+        this.motion = motion;
+        this.clock = clock;
+        this.firstStep = firstStep;
+        this.timerHz = timerHz;
+        this.name = name;
+
+        slots = ByteBuffer.allocateDirect(depth * SLOT_SIZE);
+        readView = slots.duplicate();
+        writeView = slots.duplicate();
+        locks = new StampedLock[depth];
+        for(int k = 0; k < depth; k++)
+        {
+            locks[k] = new StampedLock();
+        }
+        steps = new long[depth];
+        lengths = new int[depth];
+        formats = new Format[depth];
+
+        attitude = new AttitudeState();
+        singleByte = new SingleByteProtocol();
+
+        // Wake about twice a (wall clock) time step.
+        parkNanos = Math.max(100000L,
+                             (long)( SimulationClock.STEP_NANOS / clock.getTimeScale() / 2.0 ));
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Starts the producer thread.
+     */
+    public void start()
+    {
+        Thread t = new Thread(this, "Prerender-"+name);
+        t.setDaemon(true);
+        producer = t;
+        t.start();
+    }
+
+    /**
+     * Stops the producer thread.
+     */
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark(producer);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Copies out the single byte protocol reply for a time step.  Emulator
+     * thread only.
+     *
+     * @param command The data command polled for.
+     * @param step Integer time step.
+     * @param dst Receives the packet - must have room for any packet.
+     * @return The packet length, or -1 if it is not ready (the producer
+     * renders this command from now on).
+     */
+    public int take(int command, long step, byte[] dst)
+    {
+        Format f = format;
+        if( f == null || f.mipFormat != null || f.command != command )
+        {
+            if( !singleByte.isDataCommand(command) )
+            {
+                return -1;
+            }
+            return retarget(new Format(command, null, 0));
+        }
+
+        return copy(f, step, dst);
+    }
+
+    /**
+     * Copies out the MIP IMU data packet for a time step.  Emulator thread
+     * only.
+     *
+     * @param mipFormat Field descriptors polled for, in packet order.
+     * @param count Number of descriptors.
+     * @param step Integer time step.
+     * @param dst Receives the packet - must have room for any packet.
+     * @return The packet length, or -1 if it is not ready (the producer
+     * renders this format from now on).
+     */
+    public int take(int[] mipFormat, int count, long step, byte[] dst)
+    {
+        Format f = format;
+        if( f == null || f.mipFormat == null || !f.matches(mipFormat, count) )
+        {
+            return retarget(new Format(0, mipFormat, count));
+        }
+
+        return copy(f, step, dst);
+    }
+
+    /**
+     * Copies a packet out of its slot if it is the one asked for.
+     */
+    private int copy(Format f, long step, byte[] dst)
+    {
+        int slot = (int)( step % depth );
+        StampedLock lock = locks[slot];
+
+        long stamp = lock.tryOptimisticRead();
+        int len = lengths[slot];
+        if( stamp == 0 || steps[slot] != step || formats[slot] != f || len > dst.length )
+        {
+            // The producer is behind - hurry it up.
+            return miss();
+        }
+
+        readView.clear();
+        readView.position(slot * SLOT_SIZE);
+        readView.get(dst, 0, len);
+
+        // The producer reused the slot while it was being copied.
+        if( !lock.validate(stamp) )
+        {
+            return miss();
+        }
+
+        hits++;
+        return len;
+    }
+
+    private int retarget(Format f)
+    {
+        format = f;
+        return miss();
+    }
+
+    private int miss()
+    {
+        misses++;
+        LockSupport.unpark(producer);
+        return -1;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Summarizes how the polls were answered.
+     *
+     * @return E.g. "pre-rendered 9950 of 10000 polls (99.5%)".
+     */
+    public String report()
+    {
+        long polls = hits + misses;
+        return String.format("pre-rendered %d of %d polls (%.1f%%)", hits, polls,
+                             ( polls > 0 ) ? 100.0 * hits / polls : 0.0);
+    }
+
+    //--------------------------------------------------------------------------
+    @Override
+    public void run()
+    {
+        // Format the ring holds, and the next time step to render in it.
+        Format rendered = null;
+        long next = 0;
+
+        while( !closed )
+        {
+            Format f = format;
+            long now = firstStep + clock.step(System.nanoTime());
+
+            // A new format starts over from now, and steps that have gone by
+            // are not worth rendering.
+            if( f != rendered || next < now )
+            {
+                rendered = f;
+                next = now;
+            }
+
+            if( f != null && next < now + depth )
+            {
+                render(f, next);
+                next++;
+                continue;
+            }
+
+            LockSupport.parkNanos(this, parkNanos);
+        }
+    }
+
+    /**
+     * Renders the packet for one time step into its slot.
+     */
+    private void render(Format f, long step)
+    {
+        attitude.update(motion, step);
+
+        // Timestamps are those of the start of the step.
+        long simNanos = ( step - firstStep ) * SimulationClock.STEP_NANOS;
+        byte[] packet;
+        int len;
+        if( f.mipFormat == null )
+        {
+            // The timer is 32 bits and simply rolls over.
+            packet = singleByte.encode(f.command, attitude, (int)(long)( simNanos * ( timerHz / 1.0e9 ) ));
+            len = singleByte.length(f.command);
+        }
+        else
+        {
+            packet = f.encoder.encode(attitude, simNanos / 1.0e9);
+            len = f.encoder.length();
+        }
+
+        int slot = (int)( step % depth );
+        StampedLock lock = locks[slot];
+        long stamp = lock.writeLock();
+        try
+        {
+            writeView.clear();
+            writeView.position(slot * SLOT_SIZE);
+            writeView.put(packet, 0, len);
+            steps[slot] = step;
+            lengths[slot] = len;
+            formats[slot] = f;
+        }
+        finally
+        {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class - a packet format the host polls for
+    private static class Format
+    {
+        // Single byte protocol data command.
+        final int command;
+        // MIP field descriptors - null for the single byte protocol.
+        final int[] mipFormat;
+        // Encoder for the MIP fields - used by the producer only.
+        final MipDataEncoder encoder;
+
+        Format(int command, int[] mipFormat, int count)
+        {
+            this.command = command;
+            if( mipFormat == null )
+            {
+                this.mipFormat = null;
+                this.encoder = null;
+            }
+            else
+            {
+                this.mipFormat = new int[count];
+                System.arraycopy(mipFormat, 0, this.mipFormat, 0, count);
+                this.encoder = new MipDataEncoder(mipFormat, count);
+            }
+        }
+
+        boolean matches(int[] format, int count)
+        {
+            if( count != mipFormat.length )
+            {
+                return false;
+            }
+            for(int k = 0; k < count; k++)
+            {
+                if( format[k] != mipFormat[k] )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    } // end of inner class Format
+
+} // end of class PrerenderRing
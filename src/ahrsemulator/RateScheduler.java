@@ -0,0 +1,253 @@
+package ahrsemulator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-rate scheduler for the continuous (streaming) output mode.
+ * <p>
+ * Deadlines are absolute - the n-th packet is due at start + n * period - so
+ * a late wake-up never pushes the following packets back and there is no
+ * cumulative drift.  The wait is a parkNanos up to a short spin window before
+ * the deadline, then a yield loop, which is much tighter than Thread.sleep.
+ * If the scheduler falls more than one period behind, the missed deadlines
+ * are skipped (and counted) rather than sent as a burst.
+ * <p>
+ * It also keeps the achieved rate and the jitter (how late each packet went
+ * out relative to its deadline).
+ *
+ * @author Mike Fouche
+ */
+public class RateScheduler
+{
+    // Wake up this long before the deadline and yield the rest of the way.
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    // Nominal rate (packets per second).
+    private final double rateHz;
+    // Time between packets in nanoseconds.
+    private final long periodNanos;
+    // Time (System.nanoTime) of the first deadline.
+    private long startNanos;
+    // Time (System.nanoTime) the next packet is due.
+    private long nextDeadline;
+
+    // Statistics - written only by the scheduling thread.
+    private volatile long count;
+    private volatile long missed;
+    private volatile long lastNanos;
+    private volatile long sumLateNanos;
+    private volatile long maxLateNanos;
+
+    /**
+     * Constructor
+     *
+     * @param rateHz Packet rate (packets per second).
+     */
+    public RateScheduler(double rateHz)
+    {
+        if( rateHz <= 0.0 )
+        {
+            throw new IllegalArgumentException("Rate must be positive: "+rateHz);
+        }
+
+        this.rateHz = rateHz;
+        this.periodNanos = Math.max(1L, Math.round(1.0e9 / rateHz));
+
+        start(System.nanoTime());
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Restarts the schedule - the first packet is due one period from now.
+     *
+     * @param now The current time (System.nanoTime).
+     */
+    public final void start(long now)
+    {
+        startNanos = now + periodNanos;
+        nextDeadline = startNanos;
+        lastNanos = now;
+
+        count = 0;
+        missed = 0;
+        sumLateNanos = 0;
+        maxLateNanos = 0;
+    }
+
+    /**
+     * Blocks until the next packet is due.  Only waits - the caller records
+     * the packet with markSent once it has been written, so the jitter is
+     * measured the same way as for the callers that do their own waiting.
+     *
+     * @throws InterruptedException If the thread is interrupted while
+     * waiting.
+     */
+    public void awaitNext() throws InterruptedException
+    {
+        awaitDeadline(nextDeadline);
+    }
+
+    /**
+     * Blocks until a point in time - parks until just before it and yields
+     * the rest of the way.
+     *
+     * @param deadline The time to wait for (System.nanoTime).
+     * @throws InterruptedException If the thread is interrupted while
+     * waiting.
+     */
+    public static void awaitDeadline(long deadline) throws InterruptedException
+    {
+        long remaining = deadline - System.nanoTime();
+
+        while( remaining > 0 )
+        {
+            if( remaining > SPIN_NANOS )
+            {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+            else
+            {
+                Thread.yield();
+            }
+
+            if( Thread.interrupted() )
+            {
+                throw new InterruptedException();
+            }
+
+            remaining = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Non-blocking check, for callers that do their own waiting (the emulator
+     * fleet workers).
+     *
+     * @param now The current time (System.nanoTime).
+     * @return True if the next packet is due.
+     */
+    public boolean isDue(long now)
+    {
+        return now - nextDeadline >= 0;
+    }
+
+    /**
+     * Records that the packet that was due has been sent, and moves on to the
+     * next deadline.
+     *
+     * @param now The time the packet was sent (System.nanoTime).
+     */
+    public void markSent(long now)
+    {
+        long late = now - nextDeadline;
+
+        count++;
+        lastNanos = now;
+        sumLateNanos += late;
+        if( late > maxLateNanos )
+        {
+            maxLateNanos = late;
+        }
+
+        nextDeadline += periodNanos;
+
+        // More than a period behind - skip the deadlines that were missed
+        // instead of sending a burst, but stay on the original time grid.
+        if( now - nextDeadline > 0 )
+        {
+            long skip = ( now - nextDeadline ) / periodNanos + 1;
+            nextDeadline += skip * periodNanos;
+            missed += skip;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Retrieves the time the next packet is due.
+     *
+     * @return The deadline (System.nanoTime).
+     */
+    public long getNextDeadline()
+    {
+        return nextDeadline;
+    }
+
+    /**
+     * Retrieves the nominal packet rate.
+     *
+     * @return Packets per second.
+     */
+    public double getRate()
+    {
+        return rateHz;
+    }
+
+    /**
+     * Retrieves the number of packets sent.
+     *
+     * @return The packet count.
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Retrieves the number of deadlines skipped because the scheduler fell
+     * behind.
+     *
+     * @return The missed deadline count.
+     */
+    public long getMissed()
+    {
+        return missed;
+    }
+
+    /**
+     * Retrieves the achieved packet rate.
+     *
+     * @return Packets per second actually sent.
+     */
+    public double getAchievedRate()
+    {
+        long n = count;
+        long elapsed = lastNanos - ( startNanos - periodNanos );
+
+        return ( n == 0 || elapsed <= 0 ) ? 0.0 : n * 1.0e9 / elapsed;
+    }
+
+    /**
+     * Retrieves the average time a packet went out after its deadline.
+     *
+     * @return Mean jitter in microseconds.
+     */
+    public double getMeanJitterMicros()
+    {
+        long n = count;
+        return ( n == 0 ) ? 0.0 : sumLateNanos / (double)n / 1000.0;
+    }
+
+    /**
+     * Retrieves the longest time a packet went out after its deadline.
+     *
+     * @return Maximum jitter in microseconds.
+     */
+    public double getMaxJitterMicros()
+    {
+        return maxLateNanos / 1000.0;
+    }
+
+    /**
+     * Summarizes the statistics for the display window.
+     *
+     * @return The statistics as text.
+     */
+    public String report()
+    {
+        return String.format("%.1f Hz achieved (%.1f Hz set), jitter mean %.1f us / max %.1f us, %d missed",
+                             getAchievedRate(), rateHz, getMeanJitterMicros(),
+                             getMaxJitterMicros(), getMissed());
+    }
+
+} // end of class RateScheduler
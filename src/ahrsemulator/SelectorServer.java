@@ -0,0 +1,785 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves thousands of emulated sensors over TCP on a few selector threads.
+ * <p>
+ * Each emulator is reached either on its own TCP port, or through one shared
+ * port: the host then starts with a handshake line, "DEVICE n\n", naming the
+ * emulator (numbered from 0 in the order they were added), and from there on
+ * the connection is that emulator's link.  Either way one host at a time is
+ * served per emulator, like a serial cable.
+ * <p>
+ * The emulators are dealt out to the selector threads like cards.  A thread
+ * owns everything about its emulators - listening sockets, connections,
+ * buffers - so nothing is shared or locked: when a host's bytes arrive the
+ * thread reads them into the emulator's ChannelTransport, calls the
+ * emulator's non-blocking service(), and sends the reply from the same
+ * preallocated buffers.  Continuous mode emulators are serviced at their
+ * packet deadlines between selects, and a host that stops reading only ever
+ * costs its own emulator data, never the thread's time.
+ *
+ * @author Mike Fouche
+ */
+public class SelectorServer
+{
+    // First word of the handshake line.
+    private static final String HANDSHAKE = "DEVICE ";
+    // Longest handshake line.
+    private static final int MAX_HANDSHAKE = 64;
+    // Connections the shared port queues up while they wait to be accepted.
+    private static final int BACKLOG = 1024;
+    // Longest time between continuous mode checks when nothing is streaming
+    // (nanoseconds).
+    private static final long IDLE_SCAN_NANOS = 100000000L;
+
+    // This object is used to exchanged data between different objects - it
+    // is loaded into the constructors of any objects that are part of the data
+    // exchange.
+    private final EmulatorLog dataObject;
+    // Number of selector threads.
+    private final int poolSize;
+    // The emulators, in the order they were added.
+    private final List<Device> devices;
+    // Shared port with the handshake - 0 for none.
+    private int handshakePort;
+    // Listening socket of the shared port.
+    private ServerSocketChannel handshakeServer;
+    // The selector threads - null until the server is started.
+    private Loop[] loops;
+    private Thread[] threads;
+    // True while the server is running.
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param poolSize Number of selector threads shared by all emulators.
+     * @param dO Data object which is used to report the emulator status.
+     */
+    public SelectorServer(int poolSize, EmulatorLog dO)
+    {
+        this.poolSize = Math.max(1, poolSize);
+        this.dataObject = dO;
+
+        devices = new ArrayList<>();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Adds an emulator.  Emulators can only be added before the server is
+     * started.
+     *
+     * @param ahrsNum The AHRS model number (1 = 3DM-GX2, 2 = 3DM-GX4-25, etc.).
+     * @param port The emulator's own TCP port, or 0 if it is only reached
+     * through the shared port.
+     * @return The emulator.
+     */
+    public synchronized AHRSOutput add(int ahrsNum, int port)
+    {
+        if( loops != null )
+        {
+            throw new IllegalStateException("Selector server is already running");
+        }
+
+        String name = ( port > 0 ) ? "nio:"+port : "nio-mux:"+devices.size();
+        ChannelTransport link = new ChannelTransport(name);
+        AHRSOutput emulator = new AHRSOutput(link, ahrsNum, dataObject);
+        devices.add(new Device(devices.size(), emulator, link, port));
+
+        return emulator;
+    }
+
+    /**
+     * Opens the shared port - the host names the emulator with a handshake
+     * line.  Must be set before the server is started.
+     *
+     * @param port The TCP port, or 0 for none.
+     */
+    public synchronized void setHandshakePort(int port)
+    {
+        this.handshakePort = port;
+    }
+
+    /**
+     * Retrieves the number of emulators.
+     *
+     * @return The number of emulators added.
+     */
+    public synchronized int size()
+    {
+        return devices.size();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Opens the listening sockets and starts the selector threads.  An
+     * emulator whose link cannot be opened is reported and left out.
+     *
+     * @throws IOException If a selector cannot be opened or a port cannot be
+     * bound.
+     */
+    public synchronized void start() throws IOException
+    {
+        if( loops != null )
+        {
+            return;
+        }
+
+        List<Device> live = new ArrayList<>();
+        for (Device d : devices)
+        {
+            // The threads are shared - an emulator that is stopped must not
+            // interrupt them.
+            if( !d.emulator.getLifecycle().begin(null) )
+            {
+                continue;
+            }
+
+            try
+            {
+                d.emulator.openLink();
+                d.emulator.getLifecycle().running();
+                live.add(d);
+            }
+            catch(IOException e)
+            {
+                dataObject.setSentData("Unable to open "+d.link.getName()
+                                       +" for "+d.emulator.getModelName()+": "+e);
+                d.emulator.getLifecycle().finished(e);
+            }
+        }
+
+        int nLoops = Math.max(1, Math.min(poolSize, live.size()));
+        loops = new Loop[nLoops];
+        try
+        {
+            for(int w = 0; w < nLoops; w++)
+            {
+                loops[w] = new Loop();
+            }
+
+            // Deal the emulators out like cards - device n is on loop
+            // n % nLoops.
+            for (Device d : live)
+            {
+                Loop loop = loops[d.index % nLoops];
+                d.loop = loop;
+                d.slot = loop.devices.size();
+                loop.devices.add(d);
+
+                if( d.port > 0 )
+                {
+                    d.listener = ServerSocketChannel.open();
+                    d.listener.socket().setReuseAddress(true);
+                    d.listener.socket().bind(new InetSocketAddress(d.port));
+                    d.listener.configureBlocking(false);
+                    d.listener.register(loop.selector, SelectionKey.OP_ACCEPT, d);
+                }
+            }
+
+            if( handshakePort > 0 )
+            {
+                handshakeServer = ServerSocketChannel.open();
+                handshakeServer.socket().setReuseAddress(true);
+                handshakeServer.socket().bind(new InetSocketAddress(handshakePort), BACKLOG);
+                handshakeServer.configureBlocking(false);
+                handshakeServer.register(loops[0].selector, SelectionKey.OP_ACCEPT, null);
+            }
+        }
+        catch(IOException e)
+        {
+            // The emulators already running never get a thread - let them
+            // go.
+            closeAll();
+            for (Device d : live)
+            {
+                d.loop = null;
+                d.emulator.unregisterMetrics();
+                d.emulator.getLifecycle().finished(e);
+            }
+            loops = null;
+            throw e;
+        }
+
+        running = true;
+
+        threads = new Thread[nLoops];
+        for(int w = 0; w < nLoops; w++)
+        {
+            threads[w] = new Thread(loops[w], "SelectorServer-"+w);
+            threads[w].setDaemon(true);
+            threads[w].start();
+        }
+
+        dataObject.setSentData("Selector server started: "+live.size()+" emulators on "
+                               +nLoops+" threads"
+                               +( ( handshakePort > 0 ) ? ", shared port "+handshakePort : ""));
+    }
+
+    /**
+     * Stops the selector threads and closes every socket.
+     */
+    public synchronized void stop()
+    {
+        if( loops == null )
+        {
+            return;
+        }
+
+        running = false;
+
+        for(int w = 0; w < loops.length; w++)
+        {
+            loops[w].selector.wakeup();
+            try
+            {
+                threads[w].join();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        closeAll();
+        for (Device d : devices)
+        {
+            d.emulator.unregisterMetrics();
+            d.emulator.getLifecycle().finished(null);
+        }
+
+        loops = null;
+        threads = null;
+
+        dataObject.setSentData("Selector server stopped");
+    }
+
+    /**
+     * Retrieves the number of bytes dropped because hosts were not reading
+     * their data fast enough.
+     *
+     * @return The dropped byte count, all emulators.
+     */
+    public synchronized long getDroppedBytes()
+    {
+        long n = 0;
+        for (Device d : devices)
+        {
+            n += d.link.getDroppedBytes();
+        }
+        return n;
+    }
+
+    private void closeAll()
+    {
+        for (Device d : devices)
+        {
+            d.link.close();
+            close(d.listener);
+        }
+        close(handshakeServer);
+
+        if( loops != null )
+        {
+            for (Loop loop : loops)
+            {
+                // A selector that failed to open leaves a gap.
+                if( loop != null )
+                {
+                    close(loop.selector);
+                }
+            }
+        }
+    }
+
+    private static void close(java.io.Closeable c)
+    {
+        if( c == null )
+        {
+            return;
+        }
+
+        try
+        {
+            c.close();
+        }
+        catch(IOException e)
+        {
+            // Nothing more can be done with a socket that won't close.
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class - one emulator and its sockets
+    private static class Device
+    {
+        // Emulator number - the handshake names it.
+        private final int index;
+        private final AHRSOutput emulator;
+        private final ChannelTransport link;
+        // The emulator's own port - 0 for the shared port only.
+        private final int port;
+        // Owning selector thread.
+        private Loop loop;
+        // Position in the owning thread's emulators.
+        private int slot;
+        // Listening socket of the emulator's own port - null for none.
+        private ServerSocketChannel listener;
+        // Registration of the host connection - null when no host.
+        private SelectionKey key;
+
+        public Device(int index, AHRSOutput emulator, ChannelTransport link, int port)
+        {
+            this.index = index;
+            this.emulator = emulator;
+            this.link = link;
+            this.port = port;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class - a shared port connection waiting for its handshake line
+    private static class Handshake
+    {
+        private final ByteBuffer line = ByteBuffer.allocate(MAX_HANDSHAKE);
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class - a connection handed to the thread that owns its emulator
+    private static class Handoff
+    {
+        private final Device device;
+        private final SocketChannel channel;
+        // Bytes that came in behind the handshake line.
+        private final ByteBuffer pending;
+
+        public Handoff(Device device, SocketChannel channel, ByteBuffer pending)
+        {
+            this.device = device;
+            this.channel = channel;
+            this.pending = pending;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class - one selector thread and the emulators it owns
+    private class Loop implements Runnable
+    {
+        private final Selector selector;
+        private final List<Device> devices;
+        // The emulators, by slot - null once retired (thread only).
+        private Device[] slice;
+        // Shared port connections for emulators on this thread.
+        private final ConcurrentLinkedQueue<Handoff> handoffs;
+        // Time (System.nanoTime) of the next continuous mode deadline.
+        private long nextStreamScan;
+
+        public Loop() throws IOException
+        {
+            selector = Selector.open();
+            devices = new ArrayList<>();
+            handoffs = new ConcurrentLinkedQueue<>();
+        }
+
+        @Override
+        public void run()
+        {
+            slice = devices.toArray(new Device[devices.size()]);
+
+            // Continuous and replay mode emulators start their packet clocks
+            // now.
+            long start = System.nanoTime();
+            for(int k = 0; k < slice.length; k++)
+            {
+                try
+                {
+                    slice[k].emulator.startStream(start);
+                }
+                catch(IOException e)
+                {
+                    fail(slice[k], e);
+                }
+            }
+            nextStreamScan = start;
+
+            while( running )
+            {
+                long now = System.nanoTime();
+                if( now - nextStreamScan >= 0 )
+                {
+                    scanStreams(now);
+                }
+
+                Handoff h;
+                while( ( h = handoffs.poll() ) != null )
+                {
+                    connect(h.device, h.channel, null, h.pending);
+                }
+
+                try
+                {
+                    long wait = nextStreamScan - System.nanoTime();
+                    if( wait <= 0 )
+                    {
+                        selector.selectNow();
+                    }
+                    else
+                    {
+                        // select() counts in milliseconds - round up.
+                        selector.select(( wait + 999999 ) / 1000000);
+                    }
+                }
+                catch(IOException e)
+                {
+                    dataObject.setSentData("Selector failed: "+e);
+                    return;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while( keys.hasNext() )
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        }
+
+        /**
+         * Sends the continuous mode packets that are due and finds the next
+         * deadline.
+         */
+        private void scanStreams(long now)
+        {
+            long next = now + IDLE_SCAN_NANOS;
+
+            for(int k = 0; k < slice.length; k++)
+            {
+                if( slice[k] == null )
+                {
+                    continue;
+                }
+
+                // Drop emulators that have been told to stop on their own.
+                AHRSOutput emulator = slice[k].emulator;
+                if( !emulator.getLifecycle().isActive() )
+                {
+                    retire(slice[k], null);
+                    continue;
+                }
+
+                if( emulator.isStreaming() )
+                {
+                    try
+                    {
+                        long due = emulator.serviceStream(now);
+                        if( due - next < 0 )
+                        {
+                            next = due;
+                        }
+                    }
+                    catch(IOException e)
+                    {
+                        fail(slice[k], e);
+                        continue;
+                    }
+                    flush(slice[k]);
+                }
+            }
+
+            nextStreamScan = next;
+        }
+
+        private void handle(SelectionKey key)
+        {
+            if( !key.isValid() )
+            {
+                return;
+            }
+
+            Object attachment = key.attachment();
+
+            if( key.isAcceptable() )
+            {
+                accept((ServerSocketChannel)key.channel(), (Device)attachment);
+            }
+            else if( attachment instanceof Handshake )
+            {
+                handshake(key, (Handshake)attachment);
+            }
+            else
+            {
+                Device d = (Device)attachment;
+                if( key.isReadable() )
+                {
+                    receive(d);
+                }
+                if( key.isValid() && key.isWritable() )
+                {
+                    flush(d);
+                }
+            }
+        }
+
+        /**
+         * Accepts a host on an emulator's own port, or everyone waiting on
+         * the shared port (device null).
+         */
+        private void accept(ServerSocketChannel listener, Device d)
+        {
+            while( true )
+            {
+                SocketChannel sc;
+                try
+                {
+                    sc = listener.accept();
+                    if( sc == null )
+                    {
+                        return;
+                    }
+                    sc.configureBlocking(false);
+                    sc.socket().setTcpNoDelay(true);
+
+                    if( d == null )
+                    {
+                        sc.register(selector, SelectionKey.OP_READ, new Handshake());
+                        continue;
+                    }
+                }
+                catch(IOException e)
+                {
+                    return;
+                }
+
+                connect(d, sc, null, null);
+                return;
+            }
+        }
+
+        /**
+         * Makes a connection the emulator's link - refused if the emulator
+         * already has a host, or has stopped.  A connection already
+         * registered with this thread's selector (key not null) keeps its
+         * registration.
+         */
+        private void connect(Device d, SocketChannel sc, SelectionKey key, ByteBuffer pending)
+        {
+            if( slice[d.slot] == null || !d.emulator.getLifecycle().isActive()
+                || d.link.getClient() != null )
+            {
+                close(sc);
+                return;
+            }
+
+            if( key == null )
+            {
+                try
+                {
+                    key = sc.register(selector, SelectionKey.OP_READ, d);
+                }
+                catch(IOException e)
+                {
+                    close(sc);
+                    return;
+                }
+            }
+            else
+            {
+                key.attach(d);
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            d.key = key;
+            d.link.attach(sc, pending);
+
+            // Commands that came in with the handshake.
+            if( pending != null && pending.hasRemaining() )
+            {
+                service(d);
+            }
+        }
+
+        /**
+         * Collects the handshake line and hands the connection to the
+         * thread that owns the emulator.
+         */
+        private void handshake(SelectionKey key, Handshake hs)
+        {
+            SocketChannel sc = (SocketChannel)key.channel();
+
+            int n;
+            try
+            {
+                n = sc.read(hs.line);
+            }
+            catch(IOException e)
+            {
+                n = -1;
+            }
+
+            int end = -1;
+            for(int k = 0; k < hs.line.position(); k++)
+            {
+                if( hs.line.get(k) == '\n' )
+                {
+                    end = k;
+                    break;
+                }
+            }
+
+            if( end < 0 )
+            {
+                // Hung up, or no end of line in a full buffer.
+                if( n < 0 || !hs.line.hasRemaining() )
+                {
+                    key.cancel();
+                    close(sc);
+                }
+                return;
+            }
+
+            String text = new String(hs.line.array(), 0, end, StandardCharsets.US_ASCII).trim();
+            Device d = null;
+            if( text.startsWith(HANDSHAKE) )
+            {
+                try
+                {
+                    int index = Integer.parseInt(text.substring(HANDSHAKE.length()).trim());
+                    if( index >= 0 && index < SelectorServer.this.devices.size() )
+                    {
+                        d = SelectorServer.this.devices.get(index);
+                    }
+                }
+                catch(NumberFormatException e)
+                {
+                    // Not a device number.
+                }
+            }
+
+            if( d == null || d.loop == null )
+            {
+                key.cancel();
+                close(sc);
+                return;
+            }
+
+            // Whatever followed the handshake line goes to the emulator.
+            hs.line.flip();
+            hs.line.position(end + 1);
+
+            if( d.loop == this )
+            {
+                connect(d, sc, key, hs.line);
+            }
+            else
+            {
+                key.cancel();
+                d.loop.handoffs.add(new Handoff(d, sc, hs.line));
+                d.loop.selector.wakeup();
+            }
+        }
+
+        private void receive(Device d)
+        {
+            if( d.link.receive() < 0 )
+            {
+                // The host hung up - wait for the next one.
+                d.link.detach();
+                d.key = null;
+                return;
+            }
+
+            service(d);
+        }
+
+        private void service(Device d)
+        {
+            try
+            {
+                d.emulator.service();
+            }
+            catch(IOException e)
+            {
+                fail(d, e);
+                return;
+            }
+            flush(d);
+
+            // The host may have turned continuous mode on.
+            if( d.emulator.isStreaming() )
+            {
+                nextStreamScan = System.nanoTime();
+            }
+        }
+
+        /**
+         * Sends the emulator's staged output, and waits for the socket to
+         * drain if it is full.
+         */
+        private void flush(Device d)
+        {
+            SelectionKey key = d.key;
+
+            boolean done;
+            try
+            {
+                done = d.link.flush();
+            }
+            catch(IOException e)
+            {
+                d.link.detach();
+                d.key = null;
+                return;
+            }
+
+            if( key == null || !key.isValid() )
+            {
+                return;
+            }
+
+            int ops = done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if( key.interestOps() != ops )
+            {
+                key.interestOps(ops);
+            }
+        }
+
+        private void fail(Device d, IOException e)
+        {
+            dataObject.setSentData("Exception in module "+d.emulator.getModelName()
+                                   +" on "+d.link.getName()+": "+e);
+            retire(d, e);
+        }
+
+        /**
+         * Drops an emulator from the thread - its sockets are closed, so no
+         * host reaches it any more.
+         *
+         * @param d The emulator.
+         * @param failure Why it stopped, or null if it was asked to.
+         */
+        private void retire(Device d, Throwable failure)
+        {
+            slice[d.slot] = null;
+            d.key = null;
+            close(d.listener);
+            d.emulator.closeLink();
+            d.emulator.unregisterMetrics();
+            d.emulator.getLifecycle().finished(failure);
+        }
+
+    } // end of inner class Loop
+
+} // end of class SelectorServer
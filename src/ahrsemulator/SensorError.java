@@ -0,0 +1,163 @@
+package ahrsemulator;
+
+/**
+ * Error model for one three axis sensor - what is added to the exact value
+ * the emulated motion gives, per axis:
+ * <ul>
+ * <li>white noise - a new independent sample every time step;</li>
+ * <li>bias instability - a first order Gauss-Markov bias that wanders
+ * around zero with a given standard deviation and correlation time;</li>
+ * <li>random walk - a bias that integrates white noise and never settles;</li>
+ * <li>quantization - the result is rounded to a whole number of sensor
+ * counts.</li>
+ * </ul>
+ * Each error source is off when its parameter is 0.  The biases move once
+ * per time step.  When time steps are skipped (a sensor that is only polled
+ * now and then) they are moved over the whole gap in one go, with the
+ * variance the skipped steps would have added, so a poll costs the same
+ * however long the sensor has been idle.
+ * <p>
+ * The random numbers come from the model's own generator, so the same seed
+ * and the same sequence of time steps always give the same errors.
+ *
+ * @author Mike Fouche
+ */
+public class SensorError
+{
+    // White noise standard deviation (per sample).
+    private final double whiteNoise;
+    // Steady state standard deviation of the Gauss-Markov bias.
+    private final double biasInstability;
+    // Correlation time of the Gauss-Markov bias (time steps).
+    private final double biasSteps;
+    // Random walk standard deviation (per time step).
+    private final double randomWalk;
+    // Size of one sensor count - 0 for no quantization.
+    private final float quantization;
+    // Gauss-Markov decay and driving noise for a single time step.
+    private final double decay;
+    private final double drive;
+
+    // Source of the random numbers.
+    private final FastRandom random;
+    // Current Gauss-Markov and random walk biases, per axis.
+    private final double[] markovBias;
+    private final double[] walkBias;
+    // Time step the biases were last moved to - Long.MIN_VALUE before the
+    // first sample.
+    private long lastStep;
+
+    /**
+     * Constructor
+     *
+     * @param whiteNoise White noise standard deviation (sensor units).
+     * @param biasInstability Standard deviation of the bias instability
+     * (sensor units).
+     * @param biasSteps Correlation time of the bias instability (time steps).
+     * @param randomWalk Random walk standard deviation after one time step
+     * (sensor units).
+     * @param quantization Size of one sensor count (sensor units), or 0.
+     * @param seed Seed of the random numbers.
+     */
+    public SensorError(double whiteNoise, double biasInstability, double biasSteps,
+                       double randomWalk, float quantization, long seed)
+    {
+        this.whiteNoise = whiteNoise;
+        this.biasInstability = biasInstability;
+        this.biasSteps = biasSteps;
+        this.randomWalk = randomWalk;
+        this.quantization = quantization;
+
+        decay = StrictMath.exp(-1.0 / biasSteps);
+        drive = biasInstability * StrictMath.sqrt(1.0 - decay * decay);
+
+        random = new FastRandom(seed);
+        markovBias = new double[3];
+        walkBias = new double[3];
+        lastStep = Long.MIN_VALUE;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Adds the errors at one time step to a three axis value.  Call it once
+     * per time step - calling it again for the same step draws new white
+     * noise.
+     *
+     * @param values The exact values - replaced by the measured values.
+     * @param off Offset of the x axis value.
+     * @param step Integer time step.
+     */
+    public void apply(float[] values, int off, long step)
+    {
+        advance(step);
+
+        for(int k = 0; k < 3; k++)
+        {
+            double v = values[off + k] + markovBias[k] + walkBias[k];
+            if( whiteNoise != 0.0 )
+            {
+                v += whiteNoise * random.nextGaussian();
+            }
+
+            float measured = (float)v;
+            if( quantization != 0.0f )
+            {
+                measured = quantization * Math.round(measured / quantization);
+            }
+            values[off + k] = measured;
+        }
+    }
+
+    /**
+     * Moves the biases on to a time step.
+     */
+    private void advance(long step)
+    {
+        if( lastStep == Long.MIN_VALUE )
+        {
+            // First sample - start the Gauss-Markov bias in its steady
+            // state.
+            if( biasInstability != 0.0 )
+            {
+                for(int k = 0; k < 3; k++)
+                {
+                    markovBias[k] = biasInstability * random.nextGaussian();
+                }
+            }
+            lastStep = step;
+            return;
+        }
+
+        // The time step goes backwards when the model is switched - carry
+        // on from there.
+        long n = ( step < lastStep ) ? 1 : step - lastStep;
+        lastStep = step;
+        if( n == 0 )
+        {
+            return;
+        }
+
+        double stepDecay = decay;
+        double stepDrive = drive;
+        double stepWalk = randomWalk;
+        if( n > 1 )
+        {
+            stepDecay = StrictMath.exp(-n / biasSteps);
+            stepDrive = biasInstability * StrictMath.sqrt(1.0 - stepDecay * stepDecay);
+            stepWalk = randomWalk * StrictMath.sqrt((double)n);
+        }
+
+        for(int k = 0; k < 3; k++)
+        {
+            if( biasInstability != 0.0 )
+            {
+                markovBias[k] = stepDecay * markovBias[k] + stepDrive * random.nextGaussian();
+            }
+            if( randomWalk != 0.0 )
+            {
+                walkBias[k] += stepWalk * random.nextGaussian();
+            }
+        }
+    }
+
+} // end of class SensorError
@@ -0,0 +1,122 @@
+package ahrsemulator;
+
+import gnu.io.SerialPort;
+import gnu.io.UnsupportedCommOperationException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Transport that runs over an RXTX serial port.
+ * <p>
+ * The serial port can either be handed in already connected (this is what the
+ * GUI does - the "Connect" button owns the port) or it can be opened by name
+ * and baud rate, in which case this object owns the port and closes it.
+ * <p>
+ * RXTX reads can't be interrupted, so the port gets a receive timeout: a read
+ * returns empty-handed every RECEIVE_TIMEOUT_MS, which lets a stopped
+ * emulator notice without waiting for the host to send something.
+ *
+ * @author Mike Fouche
+ */
+public class SerialTransport implements Transport
+{
+    // Longest a read blocks before it returns with no bytes (milliseconds).
+    private static final int RECEIVE_TIMEOUT_MS = 20;
+
+    // Serial port name - e.g. "COM3".
+    private final String portName;
+    // Baud rate used when this object opens the port itself.
+    private final int baudRate;
+    // This object is used to exchanged data between different objects - it
+    // is loaded into the constructors of any objects that are part of the data
+    // exchange.
+    private final EmulatorLog dataObject;
+    // True if this object opened the serial port (and must close it).
+    private final boolean ownsPort;
+    // Serial port object.
+    private SerialPort sP;
+
+    /**
+     * Constructor for a serial port that has already been connected.
+     *
+     * @param sPort The serial port object.
+     */
+    public SerialTransport(SerialPort sPort)
+    {
+        this.sP = sPort;
+        this.portName = sPort.getName();
+        this.baudRate = sPort.getBaudRate();
+        this.dataObject = null;
+        this.ownsPort = false;
+    }
+
+    /**
+     * Constructor for a serial port that is opened when the link is opened.
+     *
+     * @param portName The serial port name (e.g. "COM3").
+     * @param baudRate The baud rate (e.g. 115200).
+     * @param dO Data object which is used to report serial port errors.
+     */
+    public SerialTransport(String portName, int baudRate, EmulatorLog dO)
+    {
+        this.portName = portName;
+        this.baudRate = baudRate;
+        this.dataObject = dO;
+        this.ownsPort = true;
+    }
+
+    @Override
+    public void open() throws IOException
+    {
+        if( sP == null )
+        {
+            sP = new ConnectSerialPort(dataObject).connect(portName, baudRate);
+
+            if( sP == null )
+            {
+                throw new IOException("Unable to open serial port "+portName);
+            }
+        }
+
+        try
+        {
+            sP.enableReceiveTimeout(RECEIVE_TIMEOUT_MS);
+        }
+        catch(UnsupportedCommOperationException e)
+        {
+            // The driver can't time out - the emulator stops at the next byte.
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        return sP.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        return sP.getOutputStream();
+    }
+
+    @Override
+    public void close()
+    {
+        // Only close the port if it was opened here - otherwise the GUI owns it.
+        if( ownsPort && sP != null )
+        {
+            sP.close();
+            sP = null;
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return "serial:"+portName+"@"+baudRate;
+    }
+
+} // end of class SerialTransport
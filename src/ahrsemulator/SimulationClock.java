@@ -0,0 +1,193 @@
+package ahrsemulator;
+
+/**
+ * The time the emulated sensor lives in - it drives the motion, the on-board
+ * timers, and the timestamps in the data packets, so the attitude depends on
+ * time rather than on how often the host asks for it.
+ * <p>
+ * The time scale picks the mode:
+ * <ul>
+ * <li>1.0 - real time, simulated time is wall clock time;</li>
+ * <li>any other positive value - scaled, e.g. 10.0 runs ten simulated seconds
+ * per wall clock second (continuous mode packets go out ten times as
+ * often);</li>
+ * <li>0 - as fast as possible.  Simulated time only moves when a data packet
+ * is sent: one tick per polled packet, one period per continuous mode
+ * packet, with no waiting in between.  Everything the emulator sends then
+ * depends only on the sequence of requests, never on the host's timing, so
+ * a long flight profile can be pushed through a test driver in minutes and
+ * comes out the same every run.</li>
+ * </ul>
+ * A clock belongs to one emulator and is only used by the emulator's thread.
+ *
+ * @author Mike Fouche
+ */
+public class SimulationClock
+{
+    /**
+     * Length of one motion time step (nanoseconds) - the motion sources
+     * advance 100 steps per simulated second.
+     */
+    public static final long STEP_NANOS = 10000000L;
+
+    // Simulated seconds per wall clock second - 0 for as fast as possible.
+    private final double timeScale;
+    // Simulated time added per polled packet in as fast as possible mode.
+    private final long tickNanos;
+    // Wall clock time (System.nanoTime) the clock was started.
+    private long startNanos;
+    // Simulated time in as fast as possible mode.
+    private long simulatedNanos;
+
+    /**
+     * Constructor - as fast as possible mode moves one motion time step per
+     * polled packet.
+     *
+     * @param timeScale 1.0 for real time, simulated seconds per wall clock
+     * second, or 0 for as fast as possible.
+     */
+    public SimulationClock(double timeScale)
+    {
+        this(timeScale, STEP_NANOS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param timeScale 1.0 for real time, simulated seconds per wall clock
+     * second, or 0 for as fast as possible.
+     * @param tickNanos Simulated time added per polled packet in as fast as
+     * possible mode (nanoseconds).
+     */
+    public SimulationClock(double timeScale, long tickNanos)
+    {
+        if( timeScale < 0.0 )
+        {
+            throw new IllegalArgumentException("Time scale can't be negative: "+timeScale);
+        }
+        if( tickNanos <= 0 )
+        {
+            throw new IllegalArgumentException("Tick must be positive: "+tickNanos);
+        }
+
+        this.timeScale = timeScale;
+        this.tickNanos = tickNanos;
+
+        start(System.nanoTime());
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Restarts simulated time from 0.
+     *
+     * @param now The current time (System.nanoTime).
+     */
+    public final void start(long now)
+    {
+        startNanos = now;
+        simulatedNanos = 0;
+    }
+
+    /**
+     * Retrieves the simulated time.
+     *
+     * @param now The current time (System.nanoTime) - ignored in as fast as
+     * possible mode.
+     * @return Simulated nanoseconds since the clock was started.
+     */
+    public long nanos(long now)
+    {
+        if( timeScale == 0.0 )
+        {
+            return simulatedNanos;
+        }
+        if( timeScale == 1.0 )
+        {
+            return now - startNanos;
+        }
+        return (long)( ( now - startNanos ) * timeScale );
+    }
+
+    /**
+     * Retrieves the motion time step.
+     *
+     * @param now The current time (System.nanoTime).
+     * @return Whole motion time steps since the clock was started.
+     */
+    public long step(long now)
+    {
+        return nanos(now) / STEP_NANOS;
+    }
+
+    /**
+     * A polled data packet has been sent - moves as fast as possible time on
+     * by one tick.  Does nothing in the other modes.
+     */
+    public void tick()
+    {
+        advance(tickNanos);
+    }
+
+    /**
+     * Moves as fast as possible time on.  Does nothing in the other modes.
+     *
+     * @param simNanos Simulated time to add (nanoseconds).
+     */
+    public void advance(long simNanos)
+    {
+        if( timeScale == 0.0 )
+        {
+            simulatedNanos += simNanos;
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Converts a simulated rate to a wall clock rate.
+     *
+     * @param rateHz Events per simulated second.
+     * @return Events per wall clock second - unchanged in as fast as possible
+     * mode, where nothing waits.
+     */
+    public double toWallRate(double rateHz)
+    {
+        return ( timeScale == 0.0 ) ? rateHz : rateHz * timeScale;
+    }
+
+    /**
+     * Retrieves whether the clock runs as fast as possible.
+     *
+     * @return True if nothing should wait for the wall clock.
+     */
+    public boolean isAsFastAsPossible()
+    {
+        return timeScale == 0.0;
+    }
+
+    /**
+     * Retrieves the time scale.
+     *
+     * @return Simulated seconds per wall clock second - 0 for as fast as
+     * possible.
+     */
+    public double getTimeScale()
+    {
+        return timeScale;
+    }
+
+    /**
+     * Summarizes how far the simulation has got.
+     *
+     * @param now The current time (System.nanoTime).
+     * @return e.g. "simulated 86400.0 s in 312.5 s (x276)".
+     */
+    public String report(long now)
+    {
+        double simulated = nanos(now) / 1.0e9;
+        double wall = ( now - startNanos ) / 1.0e9;
+
+        return String.format("simulated %.1f s in %.1f s (x%.0f)", simulated, wall,
+                             ( wall > 0.0 ) ? simulated / wall : 0.0);
+    }
+
+} // end of class SimulationClock
@@ -0,0 +1,326 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Command engine for the single byte protocol of the 3DM-GX2 and the
+ * 3DM-GX3-25.
+ * <p>
+ * Every command starts with one command byte.  A 256 entry table, indexed by
+ * that byte, says how many argument bytes follow and - for the data commands
+ * - which quantities the reply carries, in order, with a pre-rendered reply
+ * encoder.  Every byte of every read is looked up, so commands that arrive
+ * back to back (burst polling) are all answered, and a command whose
+ * arguments are split across reads is completed by the next read.  Bytes
+ * that are not a command are skipped and counted.
+ * <p>
+ * Supported commands:
+ * <pre>
+ *   0xC2  acceleration and angular rate
+ *   0xC4  continuous mode - 0xC4 0xC1 0x29 command, answered with
+ *         0xC4 command timer checksum
+ *   0xC5  orientation matrix
+ *   0xC7  magnetic field
+ *   0xC8  acceleration, angular rate, and orientation matrix
+ *   0xCB  acceleration, angular rate, and magnetic field
+ *   0xCC  acceleration, angular rate, magnetic field, and orientation matrix
+ *   0xCE  Euler angles
+ *   0xCF  Euler angles and angular rate
+ *   0xD2  gyro stabilized acceleration, angular rate, and magnetic field
+ *   0xFA  stop continuous mode - 0xFA 0x75 0xB4, no reply
+ * </pre>
+ *
+ * @author Mike Fouche
+ */
+public class SingleByteProtocol
+{
+    /**
+     * Carries out each complete command.
+     */
+    public interface Handler
+    {
+        /**
+         * Called once for every complete command.
+         *
+         * @param command The command byte (0 - 255).
+         * @param argument For CONTINUOUS the data command to send
+         * continuously, otherwise 0.
+         * @throws IOException If the reply cannot be sent.
+         */
+        void onCommand(int command, int argument) throws IOException;
+    }
+
+    /**
+     * Euler angle data command.
+     */
+    public static final int EULER_ANGLES = 0xCE;
+    /**
+     * Continuous mode command.
+     */
+    public static final int CONTINUOUS = 0xC4;
+    /**
+     * Stop continuous mode command.
+     */
+    public static final int STOP_CONTINUOUS = 0xFA;
+
+    // Continuous mode confirmation bytes.
+    private static final int CONTINUOUS_CONFIRM1 = 0xC1;
+    private static final int CONTINUOUS_CONFIRM2 = 0x29;
+    // Stop continuous mode confirmation bytes.
+    private static final int STOP_CONFIRM1 = 0x75;
+    private static final int STOP_CONFIRM2 = 0xB4;
+    // Most float values in a reply (0xCC).
+    private static final int MAX_VALUES = 18;
+    // Most argument bytes of a command.
+    private static final int MAX_ARGUMENTS = 3;
+
+    // Number of argument bytes after each command byte - -1 if the byte is
+    // not a command.
+    private final int[] argumentCount;
+    // Quantities (AttitudeState) in the reply to each data command - null
+    // for the other commands.
+    private final int[][] quantities;
+    // Reply encoder of each data command.
+    private final PacketEncoder[] encoders;
+    // Reply to the continuous mode command.
+    private final byte[] continuousReply;
+    // Collects the values of one reply.
+    private final float[] values;
+    // Argument bytes of the command being collected.
+    private final int[] arguments;
+    // Command whose arguments are being collected - -1 if none.
+    private int pending;
+    // Number of argument bytes collected.
+    private int argumentLen;
+    // Number of commands handed to the handler.
+    private long commands;
+    // Number of bytes skipped because they were not (part of) a command.
+    private long errors;
+
+    /**
+     * Constructor
+     */
+    public SingleByteProtocol()
+    {
+        argumentCount = new int[256];
+        quantities = new int[256][];
+        encoders = new PacketEncoder[256];
+        continuousReply = new byte[8];
+        values = new float[MAX_VALUES];
+        arguments = new int[MAX_ARGUMENTS];
+        pending = -1;
+
+        Arrays.fill(argumentCount, -1);
+
+        data(0xC2, AttitudeState.ACCELERATION, AttitudeState.ANGULAR_RATE);
+        data(0xC5, AttitudeState.ORIENTATION_MATRIX);
+        data(0xC7, AttitudeState.MAGNETIC_FIELD);
+        data(0xC8, AttitudeState.ACCELERATION, AttitudeState.ANGULAR_RATE,
+                   AttitudeState.ORIENTATION_MATRIX);
+        data(0xCB, AttitudeState.ACCELERATION, AttitudeState.ANGULAR_RATE,
+                   AttitudeState.MAGNETIC_FIELD);
+        data(0xCC, AttitudeState.ACCELERATION, AttitudeState.ANGULAR_RATE,
+                   AttitudeState.MAGNETIC_FIELD, AttitudeState.ORIENTATION_MATRIX);
+        data(EULER_ANGLES, AttitudeState.EULER);
+        data(0xCF, AttitudeState.EULER, AttitudeState.ANGULAR_RATE);
+        data(0xD2, AttitudeState.ACCELERATION, AttitudeState.ANGULAR_RATE,
+                   AttitudeState.MAGNETIC_FIELD);
+
+        argumentCount[CONTINUOUS] = 3;
+        argumentCount[STOP_CONTINUOUS] = 2;
+        continuousReply[0] = (byte)CONTINUOUS;
+    }
+
+    /**
+     * Adds a data command to the table.
+     */
+    private void data(int command, int... reply)
+    {
+        int floats = 0;
+        for (int quantity : reply)
+        {
+            floats += AttitudeState.size(quantity);
+        }
+
+        argumentCount[command] = 0;
+        quantities[command] = reply;
+        encoders[command] = PacketEncoder.gx2Reply(command, floats);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Parses a chunk of bytes.
+     *
+     * @param b Byte array.
+     * @param off Offset of the first byte.
+     * @param len Number of bytes.
+     * @param handler Carries out each complete command.
+     * @return The number of complete commands found in this chunk.
+     * @throws IOException If the handler fails.
+     */
+    public int parse(byte[] b, int off, int len, Handler handler) throws IOException
+    {
+        int found = 0;
+
+        for(int k = off; k < off + len; k++)
+        {
+            int c = b[k] & 0xFF;
+
+            // Collecting the arguments of a multi byte command.
+            if( pending >= 0 )
+            {
+                arguments[argumentLen++] = c;
+                if( argumentLen == argumentCount[pending] )
+                {
+                    int command = pending;
+                    pending = -1;
+                    found += finish(command, handler);
+                }
+                continue;
+            }
+
+            switch (argumentCount[c])
+            {
+                case -1:
+                    // Not a command.
+                    errors++;
+                    break;
+                case 0:
+                    commands++;
+                    found++;
+                    handler.onCommand(c, 0);
+                    break;
+                default:
+                    pending = c;
+                    argumentLen = 0;
+                    break;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Checks the arguments of a multi byte command and hands it on.
+     *
+     * @return 1 if the command was handed on, 0 if it was malformed.
+     */
+    private int finish(int command, Handler handler) throws IOException
+    {
+        if( command == CONTINUOUS && arguments[0] == CONTINUOUS_CONFIRM1
+                                  && arguments[1] == CONTINUOUS_CONFIRM2
+                                  && isDataCommand(arguments[2]) )
+        {
+            commands++;
+            handler.onCommand(CONTINUOUS, arguments[2]);
+            return 1;
+        }
+        else if( command == STOP_CONTINUOUS && arguments[0] == STOP_CONFIRM1
+                                           && arguments[1] == STOP_CONFIRM2 )
+        {
+            commands++;
+            handler.onCommand(STOP_CONTINUOUS, 0);
+            return 1;
+        }
+
+        // The command byte and its arguments are all thrown away.
+        errors += 1 + argumentLen;
+        return 0;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Checks whether a byte is a data command - one that is answered with a
+     * data packet.
+     *
+     * @param command The command byte (0 - 255).
+     * @return True for a data command.
+     */
+    public boolean isDataCommand(int command)
+    {
+        return command >= 0 && command < 256 && encoders[command] != null;
+    }
+
+    /**
+     * Builds the reply to a data command.
+     *
+     * @param command The data command.
+     * @param state The attitude to report.
+     * @param timer Timer ticks.
+     * @return The reply - an array owned by this object, valid until the
+     * next reply to the same command.
+     */
+    public byte[] encode(int command, AttitudeState state, int timer)
+    {
+        int n = 0;
+        for (int quantity : quantities[command])
+        {
+            n = state.put(quantity, values, n);
+        }
+
+        return encoders[command].encodeFloats(values, n, timer);
+    }
+
+    /**
+     * Retrieves the length of the reply to a data command.
+     *
+     * @param command The data command.
+     * @return The number of bytes in the reply.
+     */
+    public int length(int command)
+    {
+        return encoders[command].length();
+    }
+
+    /**
+     * Builds the reply to the continuous mode command.
+     *
+     * @param command The data command to be sent continuously.
+     * @param timer Timer ticks.
+     * @return The reply (8 bytes) - valid until the next call.
+     */
+    public byte[] encodeContinuous(int command, int timer)
+    {
+        continuousReply[1] = (byte)command;
+        continuousReply[2] = (byte)( timer >>> 24 );
+        continuousReply[3] = (byte)( timer >>> 16 );
+        continuousReply[4] = (byte)( timer >>> 8 );
+        continuousReply[5] = (byte)timer;
+        Checksum.put(Checksum.gx2(Checksum.INITIAL, continuousReply, 0, 6), continuousReply, 6);
+
+        return continuousReply;
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Discards any partly received command.
+     */
+    public void reset()
+    {
+        pending = -1;
+        argumentLen = 0;
+    }
+
+    /**
+     * Retrieves the number of complete commands parsed.
+     *
+     * @return The command count.
+     */
+    public long getCommandCount()
+    {
+        return commands;
+    }
+
+    /**
+     * Retrieves the number of bytes skipped because they were not a command
+     * (or belonged to a malformed one).
+     *
+     * @return The error count.
+     */
+    public long getErrors()
+    {
+        return errors;
+    }
+
+} // end of class SingleByteProtocol
@@ -0,0 +1,100 @@
+package ahrsemulator;
+
+/**
+ * Motion made of three sinusoids - one each for roll, pitch, and heading,
+ * each with its own amplitude and period.
+ * <p>
+ * The angle of each axis at time step i is amplitude * sin(i / period), with
+ * the amplitude in degrees and the result in radians.  The degree to radian
+ * conversion is folded into the amplitudes and each period is turned into a
+ * fixed-point phase increment once, in the constructor, so a sample is three
+ * FastSine table lookups and no trigonometry.
+ *
+ * @author Mike Fouche
+ */
+public class SinusoidMotion implements MotionSource
+{
+    // Amplitudes (radians).
+    private final float rollScale;
+    private final float pitchScale;
+    private final float headingScale;
+    // Phase advance per time step (FastSine fixed point).
+    private final long rollStep;
+    private final long pitchStep;
+    private final long headingStep;
+
+    /**
+     * Constructor
+     *
+     * @param rollAmp Amplitude of the roll sinusoid (degrees).
+     * @param pitchAmp Amplitude of the pitch sinusoid (degrees).
+     * @param headingAmp Amplitude of the heading sinusoid (degrees).
+     * @param rollPeriod Time steps per radian of the roll sinusoid.
+     * @param pitchPeriod Time steps per radian of the pitch sinusoid.
+     * @param headingPeriod Time steps per radian of the heading sinusoid.
+     */
+    public SinusoidMotion(float rollAmp, float pitchAmp, float headingAmp,
+                          double rollPeriod, double pitchPeriod, double headingPeriod)
+    {
+        rollScale = rollAmp * (float)Math.PI / 180.0f;
+        pitchScale = pitchAmp * (float)Math.PI / 180.0f;
+        headingScale = headingAmp * (float)Math.PI / 180.0f;
+
+        rollStep = FastSine.phase(1.0 / rollPeriod);
+        pitchStep = FastSine.phase(1.0 / pitchPeriod);
+        headingStep = FastSine.phase(1.0 / headingPeriod);
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Builds the default motion profile for an AHRS model - the motion the
+     * emulators have always produced.
+     *
+     * @param ahrsNum The AHRS model number.
+     * @return The motion source.
+     */
+    public static SinusoidMotion defaultProfile(int ahrsNum)
+    {
+        if( ahrsNum == 2 )
+        {
+            return new SinusoidMotion(50.0f, 50.0f, 50.0f, 50.0, 40.0, 30.0);
+        }
+        else
+        {
+            return new SinusoidMotion(20.0f, 10.0f, 50.0f, 50.0, 40.0, 30.0);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    @Override
+    public void sample(long step, float[] euler, int off)
+    {
+        // The phase is linear in the time step, and integer overflow wraps it
+        // around exactly like the sinusoid does.
+        euler[off] = rollScale * FastSine.sin(step * rollStep);
+        euler[off + 1] = pitchScale * FastSine.sin(step * pitchStep);
+        euler[off + 2] = headingScale * FastSine.sin(step * headingStep);
+    }
+
+    @Override
+    public void sampleBlock(long step, int count, float[] euler, int off)
+    {
+        long rollPhase = step * rollStep;
+        long pitchPhase = step * pitchStep;
+        long headingPhase = step * headingStep;
+
+        // Adding the increment gives the same phase as multiplying, so the
+        // block is identical to count calls to sample().
+        for(int k = off; k < off + 3 * count; k += 3)
+        {
+            euler[k] = rollScale * FastSine.sin(rollPhase);
+            euler[k + 1] = pitchScale * FastSine.sin(pitchPhase);
+            euler[k + 2] = headingScale * FastSine.sin(headingPhase);
+
+            rollPhase += rollStep;
+            pitchPhase += pitchStep;
+            headingPhase += headingStep;
+        }
+    }
+
+} // end of class SinusoidMotion
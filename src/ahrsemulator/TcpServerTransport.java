@@ -0,0 +1,347 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport that listens on a TCP port and serves one host connection at a
+ * time - the TCP equivalent of a serial cable.
+ * <p>
+ * The channels are kept in non-blocking mode so that available() reports the
+ * real number of buffered bytes (the emulator fleet depends on this), and a
+ * blocking read simply waits on a selector.  When the host disconnects, the
+ * next host to connect picks up where it left off - a host that connects
+ * while another is being served is not accepted until then.
+ *
+ * @author Mike Fouche
+ */
+public class TcpServerTransport implements Transport
+{
+    // Size of the input and output staging buffers.
+    private static final int BUFFER_SIZE = 8192;
+
+    // TCP port number to listen on.
+    private final int port;
+    // Listening socket.
+    private ServerSocketChannel server;
+    // The listening socket's registration - only interested in connections
+    // while no host is connected.
+    private SelectionKey acceptKey;
+    // Connected host - null until a host connects.
+    private volatile SocketChannel client;
+    // Used to wait for a connection or for incoming data.
+    private Selector readSelector;
+    // Used to wait for room in the socket send buffer.
+    private Selector writeSelector;
+    // Bytes received from the host but not yet read (kept in "read" mode).
+    private final ByteBuffer inBuf;
+    // Staging buffer for bytes going to the host.
+    private final ByteBuffer outBuf;
+    // True once the transport has been closed.
+    private volatile boolean closed;
+
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * Constructor
+     *
+     * @param port The TCP port to listen on.
+     */
+    public TcpServerTransport(int port)
+    {
+        this.port = port;
+
+        inBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        inBuf.flip();
+        outBuf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        in = new LinkInputStream();
+        out = new LinkOutputStream();
+    }
+
+    @Override
+    public synchronized void open() throws IOException
+    {
+        if( server != null )
+        {
+            return;
+        }
+
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+
+        readSelector = Selector.open();
+        writeSelector = Selector.open();
+        acceptKey = server.register(readSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        checkOpen();
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        checkOpen();
+        return out;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        dropClient();
+
+        try
+        {
+            if( server != null )
+            {
+                server.close();
+                readSelector.close();
+                writeSelector.close();
+            }
+        }
+        catch(IOException e)
+        {
+            // Nothing more can be done with a socket that won't close.
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return "tcp:"+port;
+    }
+
+    //--------------------------------------------------------------------------
+    private void checkOpen() throws IOException
+    {
+        if( server == null )
+        {
+            throw new IOException("Transport "+getName()+" is not open");
+        }
+    }
+
+    /**
+     * Non-blocking attempt to get more bytes from the host.  Accepts a waiting
+     * host first if none is connected.
+     *
+     * @return The number of bytes ready to be read.
+     */
+    private int fill() throws IOException
+    {
+        if( inBuf.hasRemaining() )
+        {
+            return inBuf.remaining();
+        }
+
+        SocketChannel sc = client;
+        if( sc == null )
+        {
+            sc = server.accept();
+            if( sc == null )
+            {
+                return 0;
+            }
+
+            sc.configureBlocking(false);
+            sc.socket().setTcpNoDelay(true);
+            sc.register(readSelector, SelectionKey.OP_READ);
+            sc.register(writeSelector, SelectionKey.OP_WRITE);
+            client = sc;
+
+            // A second host stays in the backlog - a ready accept would
+            // otherwise wake every select while this one is idle.
+            acceptKey.interestOps(0);
+        }
+
+        inBuf.clear();
+        int n;
+        try
+        {
+            n = sc.read(inBuf);
+        }
+        catch(IOException e)
+        {
+            // Connection reset by the host.
+            n = -1;
+        }
+        inBuf.flip();
+
+        // The host hung up - wait for the next one.
+        if( n < 0 )
+        {
+            dropClient();
+            return 0;
+        }
+
+        return n;
+    }
+
+    private void dropClient()
+    {
+        SocketChannel sc = client;
+        client = null;
+
+        if( sc != null )
+        {
+            try
+            {
+                sc.close();
+            }
+            catch(IOException e)
+            {
+                // The connection is being discarded anyway.
+            }
+
+            // Ready for the next host.
+            if( !closed )
+            {
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class for the bytes coming from the host
+    private class LinkInputStream extends InputStream
+    {
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            // Wait until there is a host with something to say.
+            while( fill() == 0 )
+            {
+                if( closed )
+                {
+                    return -1;
+                }
+
+                try
+                {
+                    readSelector.select();
+                    readSelector.selectedKeys().clear();
+                }
+                catch(ClosedSelectorException e)
+                {
+                    // The transport was closed while waiting.
+                    return -1;
+                }
+
+                if( Thread.interrupted() )
+                {
+                    throw new InterruptedIOException("Interrupted while reading "+getName());
+                }
+            }
+
+            int n = Math.min(len, inBuf.remaining());
+            inBuf.get(b, off, n);
+
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return closed ? 0 : fill();
+        }
+
+    } // end of inner class LinkInputStream
+
+    //--------------------------------------------------------------------------
+    // Inner class for the bytes going to the host
+    private class LinkOutputStream extends OutputStream
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException
+        {
+            SocketChannel sc = client;
+
+            // Nobody is listening - the bytes go nowhere, just like a serial
+            // port with no cable attached.
+            if( sc == null )
+            {
+                return;
+            }
+
+            try
+            {
+                while( len > 0 )
+                {
+                    int n = Math.min(len, outBuf.capacity());
+                    outBuf.clear();
+                    outBuf.put(b, off, n);
+                    outBuf.flip();
+
+                    while( outBuf.hasRemaining() )
+                    {
+                        // Socket send buffer full - wait for the host to catch up.
+                        if( sc.write(outBuf) == 0 )
+                        {
+                            writeSelector.select();
+                            writeSelector.selectedKeys().clear();
+
+                            // An interrupted select returns at once.
+                            if( Thread.interrupted() )
+                            {
+                                throw new InterruptedIOException("Interrupted while writing "+getName());
+                            }
+                        }
+                    }
+
+                    off += n;
+                    len -= n;
+                }
+            }
+            catch(InterruptedIOException e)
+            {
+                // Being stopped - the connection stays as it is.
+                throw e;
+            }
+            catch(IOException | ClosedSelectorException e)
+            {
+                // The host hung up in the middle of a packet.  Close the
+                // connection - the reader side sees it and waits for the next
+                // host.
+                try
+                {
+                    sc.close();
+                }
+                catch(IOException ex)
+                {
+                    // The connection is being discarded anyway.
+                }
+            }
+        }
+
+    } // end of inner class LinkOutputStream
+
+} // end of class TcpServerTransport
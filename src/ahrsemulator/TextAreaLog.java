@@ -0,0 +1,117 @@
+package ahrsemulator;
+
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Feeds a display window (JTextArea) from any thread without touching Swing
+ * off the event thread.
+ * <p>
+ * Messages go into a LogRing.  A Swing timer drains the ring on the event
+ * thread about 20 times a second and appends everything that arrived in one
+ * go, then cuts the text area back to its last maxLines lines.  Heavy traffic
+ * costs the emulators one lock-free add per message, the event thread one
+ * append per tick, and the window's memory stays bounded.
+ *
+ * @author Mike Fouche
+ */
+public class TextAreaLog
+{
+    // Time between drains of the ring (milliseconds) - about 20 Hz.
+    private static final int DRAIN_MS = 50;
+
+    // The display window.
+    private final JTextArea textArea;
+    // Messages waiting for the event thread.
+    private final LogRing ring;
+    // Most lines kept in the display window.
+    private final int maxLines;
+    // Collects the messages of one drain - only used on the event thread.
+    private final StringBuilder batch;
+    // Fires the drains on the event thread.
+    private final Timer timer;
+
+    /**
+     * Constructor - starts draining straight away.
+     *
+     * @param textArea The display window.
+     * @param capacity Most messages waiting between drains.
+     * @param maxLines Most lines kept in the display window.
+     */
+    public TextAreaLog(JTextArea textArea, int capacity, int maxLines)
+    {
+        this.textArea = textArea;
+        this.ring = new LogRing(capacity);
+        this.maxLines = maxLines;
+        this.batch = new StringBuilder();
+
+        timer = new Timer(DRAIN_MS, e -> drain());
+        timer.start();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Queues a line for the display window.  Safe to call from any thread and
+     * never blocks.
+     *
+     * @param text The line.
+     */
+    public void append(String text)
+    {
+        ring.offer(text);
+    }
+
+    /**
+     * Stops draining.
+     */
+    public void stop()
+    {
+        timer.stop();
+    }
+
+    //--------------------------------------------------------------------------
+    /**
+     * Appends everything that is waiting - runs on the event thread.
+     */
+    private void drain()
+    {
+        long dropped = ring.takeDropped();
+        String text = ring.poll();
+
+        if( text == null && dropped == 0 )
+        {
+            return;
+        }
+
+        batch.setLength(0);
+        while( text != null )
+        {
+            batch.append(text).append('\n');
+            text = ring.poll();
+        }
+        if( dropped > 0 )
+        {
+            batch.append("... ").append(dropped).append(" messages dropped\n");
+        }
+
+        textArea.append(batch.toString());
+
+        // Keep only the last maxLines lines.
+        int excess = textArea.getLineCount() - 1 - maxLines;
+        if( excess > 0 )
+        {
+            try
+            {
+                textArea.replaceRange("", 0, textArea.getLineStartOffset(excess));
+            }
+            catch(BadLocationException e)
+            {
+                textArea.setText("");
+            }
+        }
+
+        textArea.setCaretPosition(textArea.getDocument().getLength());
+    }
+
+} // end of class TextAreaLog
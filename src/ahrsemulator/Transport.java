@@ -0,0 +1,57 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The communications link between an emulated AHRS and the host that is
+ * polling it.
+ * <p>
+ * AHRSOutput only ever talks to a Transport - it does not care whether the
+ * bytes travel over an RXTX serial port, a TCP socket, UDP datagrams, or an
+ * in-JVM pipe.  The link is opened by the emulator thread (not by the GUI),
+ * since some transports (e.g. a TCP server) have to wait for the host.
+ *
+ * @author Mike Fouche
+ */
+public interface Transport
+{
+    /**
+     * Opens the link.  Transports that are already open (e.g. a serial port
+     * that was connected through the GUI) simply return.
+     *
+     * @throws IOException If the link cannot be opened.
+     */
+    void open() throws IOException;
+
+    /**
+     * Retrieves the stream of bytes coming from the host.
+     *
+     * @return The input stream.
+     * @throws IOException If the link is not open.
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Retrieves the stream of bytes going to the host.
+     *
+     * @return The output stream.
+     * @throws IOException If the link is not open.
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Closes the link and releases the underlying resources.  Any thread
+     * blocked in a read will see the end of the stream.
+     */
+    void close();
+
+    /**
+     * Retrieves a short description of the link - e.g. "tcp:5000".
+     *
+     * @return The transport name.
+     */
+    String getName();
+
+} // end of interface Transport
@@ -0,0 +1,271 @@
+package ahrsemulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Transport that exchanges UDP datagrams with the host.
+ * <p>
+ * Each write to the output stream is sent as one datagram - since the emulator
+ * writes one data packet at a time, each data packet is one datagram.  Replies
+ * go to whoever sent the most recent command unless a fixed host address is
+ * given.
+ *
+ * @author Mike Fouche
+ */
+public class UdpTransport implements Transport
+{
+    // Largest possible UDP payload.
+    private static final int MAX_DATAGRAM = 65507;
+
+    // Local UDP port number.
+    private final int port;
+    // Where the data packets are sent - updated by every received datagram
+    // unless the host address is fixed.
+    private volatile SocketAddress peer;
+    // True if the host address was given in the constructor.
+    private final boolean fixedPeer;
+    // UDP socket.
+    private DatagramChannel channel;
+    // Used to wait for incoming datagrams.
+    private Selector readSelector;
+    // Used to wait for room in the socket send buffer.
+    private Selector writeSelector;
+    // Bytes of the last datagram received but not yet read (kept in "read"
+    // mode).
+    private final ByteBuffer inBuf;
+    // Staging buffer for the datagram going to the host.
+    private final ByteBuffer outBuf;
+    // True once the transport has been closed.
+    private volatile boolean closed;
+
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * Constructor - replies go to the sender of the last command.
+     *
+     * @param port The local UDP port.
+     */
+    public UdpTransport(int port)
+    {
+        this(port, null);
+    }
+
+    /**
+     * Constructor - data packets always go to the given host.
+     *
+     * @param port The local UDP port.
+     * @param host The host address, or null to reply to the last sender.
+     */
+    public UdpTransport(int port, InetSocketAddress host)
+    {
+        this.port = port;
+        this.peer = host;
+        this.fixedPeer = host != null;
+
+        inBuf = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        inBuf.flip();
+        outBuf = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+        in = new DatagramInputStream();
+        out = new DatagramOutputStream();
+    }
+
+    @Override
+    public synchronized void open() throws IOException
+    {
+        if( channel != null )
+        {
+            return;
+        }
+
+        channel = DatagramChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.socket().bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+
+        readSelector = Selector.open();
+        writeSelector = Selector.open();
+        channel.register(readSelector, SelectionKey.OP_READ);
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException
+    {
+        checkOpen();
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException
+    {
+        checkOpen();
+        return out;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+
+        try
+        {
+            if( channel != null )
+            {
+                channel.close();
+                readSelector.close();
+                writeSelector.close();
+            }
+        }
+        catch(IOException e)
+        {
+            // Nothing more can be done with a socket that won't close.
+        }
+    }
+
+    @Override
+    public String getName()
+    {
+        return "udp:"+port;
+    }
+
+    //--------------------------------------------------------------------------
+    private void checkOpen() throws IOException
+    {
+        if( channel == null )
+        {
+            throw new IOException("Transport "+getName()+" is not open");
+        }
+    }
+
+    /**
+     * Non-blocking attempt to receive the next datagram.
+     *
+     * @return The number of bytes ready to be read.
+     */
+    private int fill() throws IOException
+    {
+        if( inBuf.hasRemaining() )
+        {
+            return inBuf.remaining();
+        }
+
+        inBuf.clear();
+        SocketAddress from = channel.receive(inBuf);
+        inBuf.flip();
+
+        if( from != null && !fixedPeer )
+        {
+            peer = from;
+        }
+
+        return inBuf.remaining();
+    }
+
+    //--------------------------------------------------------------------------
+    // Inner class for the datagrams coming from the host
+    private class DatagramInputStream extends InputStream
+    {
+        @Override
+        public int read() throws IOException
+        {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            // Wait for the next datagram.
+            while( fill() == 0 )
+            {
+                if( closed )
+                {
+                    return -1;
+                }
+
+                try
+                {
+                    readSelector.select();
+                    readSelector.selectedKeys().clear();
+                }
+                catch(ClosedSelectorException e)
+                {
+                    // The transport was closed while waiting.
+                    return -1;
+                }
+
+                if( Thread.interrupted() )
+                {
+                    throw new InterruptedIOException("Interrupted while reading "+getName());
+                }
+            }
+
+            int n = Math.min(len, inBuf.remaining());
+            inBuf.get(b, off, n);
+
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return closed ? 0 : fill();
+        }
+
+    } // end of inner class DatagramInputStream
+
+    //--------------------------------------------------------------------------
+    // Inner class for the datagrams going to the host
+    private class DatagramOutputStream extends OutputStream
+    {
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException
+        {
+            SocketAddress dest = peer;
+
+            // No host has spoken yet - there is nobody to send to.
+            if( dest == null )
+            {
+                return;
+            }
+
+            outBuf.clear();
+            outBuf.put(b, off, Math.min(len, MAX_DATAGRAM));
+            outBuf.flip();
+
+            // Socket send buffer full - wait for it to drain.
+            while( channel.send(outBuf, dest) == 0 )
+            {
+                try
+                {
+                    writeSelector.select();
+                    writeSelector.selectedKeys().clear();
+                }
+                catch(ClosedSelectorException e)
+                {
+                    return;
+                }
+            }
+        }
+
+    } // end of inner class DatagramOutputStream
+
+} // end of class UdpTransport